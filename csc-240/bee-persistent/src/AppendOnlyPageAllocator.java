@@ -0,0 +1,35 @@
+/**
+ * The simplest {@link PageAllocator}: every new page goes at the end of the file and freed
+ * pages are never reused.
+ */
+public class AppendOnlyPageAllocator implements PageAllocator {
+
+    private final int pageSize;
+    private long nextOffset;
+
+    /**
+     * @param pageSize the size of each page
+     * @param nextOffset the offset of the first page to hand out, usually the current file length
+     */
+    public AppendOnlyPageAllocator(int pageSize, long nextOffset) {
+        this.pageSize = pageSize;
+        this.nextOffset = nextOffset;
+    }
+
+    @Override
+    public synchronized long allocate() {
+        long offset = nextOffset;
+        nextOffset += pageSize;
+        return offset;
+    }
+
+    @Override
+    public void free(long offset) {
+        // Dead space: the page is simply left behind.
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+}
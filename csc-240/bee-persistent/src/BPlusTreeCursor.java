@@ -0,0 +1,184 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A lazy iterator over the values of a B+-tree that fall in {@code [lo, hi]}.
+ * It descends once to the first leaf of the range and from then on follows the leaf chain,
+ * so a scan reads each leaf page exactly once and never revisits internal nodes.
+ *
+ * If the tree's {@link PageCache} has a {@link Prefetcher}, the cursor also keeps the path of
+ * internal nodes above its leaf. The leaf chain only reveals one next leaf at a time, but the
+ * parents list the offsets of many, so the cursor can keep the prefetcher's depth of leaves
+ * ahead of it requested at once.
+ */
+public class BPlusTreeCursor implements PrimitiveIterator.OfInt {
+
+    private final int lo;
+    private final int hi;
+    private final boolean reverse;
+
+    private PersistentBPlusTreeNode leaf;
+    private int index;
+
+    private boolean ready;
+    private boolean done;
+    private int nextValue;
+
+    private PageCache cache;
+    private int prefetchDepth;
+    private PersistentBPlusTreeNode[] path; // internal nodes from the root down to the leaf's parent
+    private int[] pathIndexes; // the child taken at each of them
+    private PersistentBPlusTreeNode[] aheadNodes;
+    private int[] aheadIndexes;
+    private int leavesUntilReadAhead;
+
+    /**
+     * @param root the root of the tree to scan
+     * @param lo the smallest value to return
+     * @param hi the largest value to return
+     * @param reverse true to return values in descending order
+     */
+    public BPlusTreeCursor(PersistentBPlusTreeNode root, int lo, int hi, boolean reverse) {
+        this.lo = lo;
+        this.hi = hi;
+        this.reverse = reverse;
+        if (root == null || lo > hi) {
+            done = true;
+            return;
+        }
+        cache = root.getPageCache();
+        prefetchDepth = cache == null ? 0 : cache.getPrefetchDepth();
+        if (prefetchDepth == 0) {
+            leaf = root.findLeaf(reverse ? hi : lo, reverse);
+        } else {
+            List<PersistentBPlusTreeNode> nodes = new ArrayList<>();
+            List<Integer> indexes = new ArrayList<>();
+            leaf = root.findLeaf(reverse ? hi : lo, reverse, nodes, indexes);
+            path = nodes.toArray(new PersistentBPlusTreeNode[0]);
+            pathIndexes = indexes.stream().mapToInt(Integer::intValue).toArray();
+            aheadNodes = new PersistentBPlusTreeNode[path.length];
+            aheadIndexes = new int[path.length];
+            readAhead();
+        }
+        index = reverse ? leaf.getNumValues() - 1 : 0;
+    }
+
+    /**
+     * Moves the path to the leaf after (or, in reverse, before) the current one, in step with the
+     * leaf chain. Internal nodes entered on the way are usually cached by {@link #readAhead()}.
+     */
+    private void stepPath() {
+        int step = reverse ? -1 : 1;
+        int level = path.length - 1;
+        while (level >= 0) {
+            int i = pathIndexes[level] + step;
+            if (i >= 0 && i <= path[level].numKeys) {
+                pathIndexes[level] = i;
+                break;
+            }
+            level--;
+        }
+        if (level < 0) {
+            path = new PersistentBPlusTreeNode[0];
+            return;
+        }
+        for (int l = level + 1; l < path.length; l++) {
+            path[l] = path[l - 1].child(pathIndexes[l - 1]);
+            pathIndexes[l] = reverse ? path[l].numKeys : 0;
+        }
+    }
+
+    /**
+     * Requests the next {@code prefetchDepth} leaves past the current one. It walks a copy of the
+     * path forward through cached internal nodes; an internal node that is not cached is requested
+     * itself, and its leaves are requested on a later call.
+     */
+    private void readAhead() {
+        leavesUntilReadAhead = Math.max(1, prefetchDepth / 4);
+        int levels = path.length;
+        if (levels == 0) {
+            return;
+        }
+        System.arraycopy(path, 0, aheadNodes, 0, levels);
+        System.arraycopy(pathIndexes, 0, aheadIndexes, 0, levels);
+        int step = reverse ? -1 : 1;
+        int level = levels - 1;
+        int issued = 0;
+        while (issued < prefetchDepth) {
+            PersistentBPlusTreeNode node = aheadNodes[level];
+            int i = aheadIndexes[level] + step;
+            if (i < 0 || i > node.numKeys) {
+                if (level == 0) {
+                    return;
+                }
+                level--;
+                continue;
+            }
+            aheadIndexes[level] = i;
+            long offset = node.childOffsets[i];
+            if (level == levels - 1) {
+                cache.prefetch(offset);
+                issued++;
+                continue;
+            }
+            PersistentBTreeNode child = cache.peek(offset);
+            if (child == null) {
+                cache.prefetch(offset);
+                return;
+            }
+            level++;
+            aheadNodes[level] = (PersistentBPlusTreeNode) child;
+            aheadIndexes[level] = reverse ? aheadNodes[level].numKeys + 1 : -1;
+        }
+    }
+
+    private void advance() {
+        while (leaf != null) {
+            if (index < 0 || index >= leaf.getNumValues()) {
+                leaf = reverse ? leaf.previousLeaf() : leaf.nextLeaf();
+                if (leaf != null) {
+                    index = reverse ? leaf.getNumValues() - 1 : 0;
+                    if (prefetchDepth > 0) {
+                        stepPath();
+                        if (--leavesUntilReadAhead == 0) {
+                            readAhead();
+                        }
+                    }
+                }
+                continue;
+            }
+            int value = leaf.getValueAt(index);
+            index += reverse ? -1 : 1;
+            if (reverse ? value > hi : value < lo) {
+                continue; // still before the start of the range
+            }
+            if (reverse ? value < lo : value > hi) {
+                break;
+            }
+            nextValue = value;
+            ready = true;
+            return;
+        }
+        leaf = null;
+        done = true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!ready && !done) {
+            advance();
+        }
+        return ready;
+    }
+
+    @Override
+    public int nextInt() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        return nextValue;
+    }
+}
@@ -1,11 +1,22 @@
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 public class BTree<T extends BTreeNode> {
 
     private T root;
     private final int t;
     private final Function<Boolean, T> nodeCreator; // Function to create new nodes
+    private BloomFilter filter;
+    private BTreeMetrics metrics;
 
     /**
      * Create a new BTree with a given degree, root node, and a node creator function.
@@ -35,14 +46,142 @@ public class BTree<T extends BTreeNode> {
         this.root = root;
     }
 
+    /**
+     * @return the current root. It changes when the root splits or collapses, so a persistent
+     * tree should record its offset after a batch of operations.
+     */
+    public T getRoot() {
+        return root;
+    }
+
+    /**
+     * Puts a Bloom filter in front of {@link #search(int)}: values it rules out are reported
+     * absent without descending the tree. Inserts and bulk loads add to it from now on, so it
+     * must already hold every value in the tree, e.g. from {@link #rebuildFilter(double)} or
+     * {@link BloomFilter#load(PageFile)}.
+     * @param filter the filter, or null to search the tree every time
+     */
+    public void setFilter(BloomFilter filter) {
+        this.filter = filter;
+    }
+
+    public BloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Replaces the filter with one built from the values now in the tree. Call it after many
+     * removes, whose values the old filter still lets through, or once the tree has outgrown
+     * the size the filter was made for.
+     * @param falsePositiveRate the rate to size the new filter for
+     * @return the new filter, also installed with {@link #setFilter(BloomFilter)}
+     */
+    public BloomFilter rebuildFilter(double falsePositiveRate) {
+        if (root == null) {
+            filter = new BloomFilter(0, falsePositiveRate);
+            return filter;
+        }
+        long count = rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).count();
+        filter = BloomFilter.of(cursor(Integer.MIN_VALUE, Integer.MAX_VALUE, false), count, falsePositiveRate);
+        return filter;
+    }
+
+    /**
+     * Starts recording operation latencies into the given metrics, and hands them to the root
+     * through {@link BTreeNode#setMetrics}. A {@link PersistentBPlusTreeNode} tree also records
+     * its splits, merges, borrows, page I/O and cache hits there.
+     * @param metrics the metrics to record into, or null to stop recording
+     */
+    public void setMetrics(BTreeMetrics metrics) {
+        this.metrics = metrics;
+        if (root != null) {
+            root.setMetrics(metrics);
+        }
+    }
+
+    public BTreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the metrics recorded so far with the current height and average fill, or null if
+     * no metrics are attached. Measuring the fill visits every node.
+     */
+    public BTreeMetrics.Snapshot getMetricsSnapshot() {
+        return metrics == null ? null : metrics.snapshot(getHeight(), getAverageFill());
+    }
+
+    /**
+     * Walks down the leftmost path only, so a persistent tree loads one node per level.
+     * @return the number of levels, 0 for a tree without a root
+     */
+    public int getHeight() {
+        int height = 0;
+        for (BTreeNode node = root; node != null; node = node.isLeaf() ? null : node.getChild(0)) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Visits every node, so it takes time proportional to the size of the tree.
+     * @return the average fraction of the 2t - 1 value slots in use per node, 0 for an empty tree
+     */
+    public double getAverageFill() {
+        if (root == null) {
+            return 0;
+        }
+        long nodes = 0;
+        long values = 0;
+        ArrayDeque<BTreeNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            BTreeNode node = pending.pop();
+            nodes++;
+            values += node.getNumValues();
+            if (!node.isLeaf()) {
+                for (int i = 0; i <= node.getNumValues(); i++) {
+                    pending.push(node.getChild(i));
+                }
+            }
+        }
+        return (double) values / (nodes * (2L * t - 1));
+    }
+
     public boolean search(int value) {
+        if (BTreeMetrics.ENABLED && metrics != null) {
+            long began = System.nanoTime();
+            boolean found = searchTree(value);
+            metrics.recordSearch(System.nanoTime() - began);
+            return found;
+        }
+        return searchTree(value);
+    }
+
+    private boolean searchTree(int value) {
+        if (filter != null && !filter.mightContain(value)) {
+            return false;
+        }
         return root != null && root.search(value) != null;
     }
 
     public void insert(int value) {
+        if (BTreeMetrics.ENABLED && metrics != null) {
+            long began = System.nanoTime();
+            insertTree(value);
+            metrics.recordInsert(System.nanoTime() - began);
+            return;
+        }
+        insertTree(value);
+    }
+
+    private void insertTree(int value) {
         if (root == null) {
             throw new IllegalStateException("Root is not initialized.");
         }
+        if (filter != null) {
+            filter.add(value);
+        }
 
         if (root.getNumValues() == 2 * t - 1) {
             // Root is full → must split and grow height
@@ -58,16 +197,274 @@ public class BTree<T extends BTreeNode> {
     }
 
     public void remove(int value) {
+        if (BTreeMetrics.ENABLED && metrics != null) {
+            long began = System.nanoTime();
+            removeTree(value);
+            metrics.recordRemove(System.nanoTime() - began);
+            return;
+        }
+        removeTree(value);
+    }
+
+    private void removeTree(int value) {
         if (root == null) return;
 
         root.remove(value);
 
         if (root.getNumValues() == 0 && !root.isLeaf()) {
+            T oldRoot = root;
             root = (T) root.getChildren()[0];
+            if (oldRoot instanceof PersistentBTreeNode) {
+                ((PersistentBTreeNode) oldRoot).discard();
+            }
         }
     }
 
     public String traverse() {
         return root == null ? "" : root.traverse();
     }
+
+    /**
+     * Returns a lazy, ascending iterator over every value in {@code [lo, hi]}.
+     * Nodes are visited only as the iterator reaches them, so a scan can be abandoned early.
+     * The root picks the cursor ({@link BTreeNode#cursor}), so B+-trees are scanned along their
+     * leaf chain with a {@link BPlusTreeCursor}.
+     * @param lo the smallest value to return
+     * @param hi the largest value to return
+     * @param reverse true to iterate from hi down to lo instead
+     * @return a cursor over the range
+     */
+    public PrimitiveIterator.OfInt cursor(int lo, int hi, boolean reverse) {
+        return root == null ? new BTreeCursor(null, lo, hi, reverse) : root.cursor(lo, hi, reverse);
+    }
+
+    /**
+     * Returns the values in {@code [lo, hi]} in ascending order as a lazy stream.
+     * Use this instead of {@link #traverse()} for anything larger than a toy tree.
+     */
+    public IntStream rangeScan(int lo, int hi) {
+        return stream(cursor(lo, hi, false), Spliterator.SORTED);
+    }
+
+    /**
+     * Returns the values in {@code [lo, hi]} in descending order as a lazy stream.
+     */
+    public IntStream rangeScanDescending(int lo, int hi) {
+        return stream(cursor(lo, hi, true), 0);
+    }
+
+    private static IntStream stream(PrimitiveIterator.OfInt cursor, int extraCharacteristics) {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(cursor,
+                Spliterator.ORDERED | Spliterator.NONNULL | extraCharacteristics), false);
+    }
+
+    /**
+     * Builds the tree bottom-up from values that are already sorted, instead of inserting them
+     * one at a time. Leaves are filled to {@code fillFactor} of their capacity (never fewer than
+     * t - 1 values), and each internal level is built from the level below it, so no node is
+     * ever split.
+     * @param sortedValues the values in non-decreasing order
+     * @param fillFactor the fraction (0, 1] of the 2t - 1 slots to fill in each node
+     */
+    public void bulkLoad(IntStream sortedValues, double fillFactor) {
+        bulkLoad(sortedValues.iterator(), fillFactor, node -> { });
+    }
+
+    /**
+     * Sorts the values with an {@link ExternalIntSorter} (spilling sorted runs to temporary files
+     * when they do not fit in memory) and bulk loads the result.
+     * @param values the values in any order
+     * @param fillFactor the fraction (0, 1] of the 2t - 1 slots to fill in each node
+     */
+    public void bulkLoadUnsorted(IntStream values, double fillFactor) {
+        bulkLoad(new ExternalIntSorter().sort(values.iterator()), fillFactor, node -> { });
+    }
+
+    /**
+     * Builds the tree bottom-up from values that are already sorted.
+     * {@code onNodeBuilt} is called once for every node as soon as its contents are final.
+     * A node is always completed after all of its children and the root is completed last,
+     * so a persistent tree can write each node in the callback. Nodes are created in almost the
+     * same order, so with an {@link AppendOnlyPageAllocator} they also get consecutive offsets.
+     *
+     * The empty root is reused as the first leaf. B+-tree nodes ({@link BTreeNode#keepsValuesInLeaves()})
+     * are supported: their leaves keep every value, separators are copies of the first value to
+     * their right, and each leaf is completed once it is linked to the next one.
+     * @param sortedValues the values in non-decreasing order
+     * @param fillFactor the fraction (0, 1] of the 2t - 1 slots to fill in each node
+     * @param onNodeBuilt called with each finished node, children before parents
+     */
+    public void bulkLoad(PrimitiveIterator.OfInt sortedValues, double fillFactor, Consumer<? super T> onNodeBuilt) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Fill factor must be in (0, 1]");
+        }
+        if (root != null && root.getNumValues() > 0) {
+            throw new IllegalStateException("Bulk load requires an empty tree.");
+        }
+        if (root == null) {
+            root = nodeCreator.apply(true);
+        }
+        int perNode = (int) Math.round(fillFactor * (2 * t - 1));
+        perNode = Math.max(t - 1, Math.min(2 * t - 1, perNode));
+        new BulkLoader(perNode, onNodeBuilt).load(sortedValues);
+    }
+
+    /**
+     * The state of one {@link #bulkLoad} run.
+     */
+    private class BulkLoader {
+        private final int perNode;
+        private final Consumer<? super T> onNodeBuilt;
+        private final boolean valuesInLeaves;
+        private final ArrayList<BulkLevel<T>> levels = new ArrayList<>();
+        private T spare; // the empty root, reused as the first leaf
+        private T unfinishedLeaf; // B+-tree: the last leaf, completed once its successor is linked
+
+        BulkLoader(int perNode, Consumer<? super T> onNodeBuilt) {
+            this.perNode = perNode;
+            this.onNodeBuilt = onNodeBuilt;
+            this.valuesInLeaves = root.keepsValuesInLeaves();
+            this.spare = root.isLeaf() ? root : null;
+        }
+
+        void load(PrimitiveIterator.OfInt sortedValues) {
+            levels.add(new BulkLevel<>());
+            BulkLevel<T> leaves = levels.get(0);
+            // Only cut a leaf once enough values remain behind it to form a legal last leaf.
+            // A B+-tree leaf keeps its separator as the first value of the next leaf.
+            int cutAt = valuesInLeaves ? perNode + t - 1 : perNode + t;
+            boolean first = true;
+            int previous = 0;
+            while (sortedValues.hasNext()) {
+                int value = sortedValues.nextInt();
+                if (!first && value < previous) {
+                    throw new IllegalArgumentException("Values are not sorted: " + value + " after " + previous);
+                }
+                first = false;
+                previous = value;
+                if (filter != null) {
+                    filter.add(value);
+                }
+                leaves.addKey(value);
+                if (leaves.keyCount >= cutAt) {
+                    T leaf = buildNode(true, leaves, 0, perNode);
+                    pushUp(1, leaf, leaves.keys[perNode]);
+                    leaves.consume(valuesInLeaves ? perNode : perNode + 1, 0);
+                }
+            }
+
+            // Flush the partially filled tail of every level, bottom-up.
+            for (int level = 0; level < levels.size(); level++) {
+                BulkLevel<T> current = levels.get(level);
+                boolean leaf = level == 0;
+                int keys = current.keyCount;
+                if (!leaf && current.children.isEmpty()) {
+                    continue;
+                }
+                if (keys <= 2 * t - 1) {
+                    T node = buildNode(leaf, current, 0, keys);
+                    if (leaf) {
+                        finishLeaves();
+                    }
+                    if (level == levels.size() - 1) {
+                        root = node;
+                        return;
+                    }
+                    levels.get(level + 1).children.add(node);
+                } else {
+                    // Too many for one node: split evenly around a middle separator.
+                    int left = keys / 2;
+                    int right = leaf && valuesInLeaves ? left : left + 1;
+                    T leftNode = buildNode(leaf, current, 0, left);
+                    T rightNode = buildNode(leaf, current, right, keys - right);
+                    if (leaf) {
+                        finishLeaves();
+                    }
+                    if (level == levels.size() - 1) {
+                        levels.add(new BulkLevel<>());
+                    }
+                    BulkLevel<T> parent = levels.get(level + 1);
+                    parent.children.add(leftNode);
+                    parent.addKey(current.keys[left]);
+                    parent.children.add(rightNode);
+                }
+                current.consume(keys, current.children.size());
+            }
+        }
+
+        private void pushUp(int level, T child, int separator) {
+            if (level == levels.size()) {
+                levels.add(new BulkLevel<>());
+            }
+            BulkLevel<T> current = levels.get(level);
+            current.children.add(child);
+            current.addKey(separator);
+            // perNode + 1 children go into the node, and at least t must stay behind it.
+            // The newest child (a leaf that may still be unfinished) is therefore never included.
+            if (current.children.size() >= perNode + 1 + t) {
+                T node = buildNode(false, current, 0, perNode);
+                pushUp(level + 1, node, current.keys[perNode]);
+                current.consume(perNode + 1, perNode + 1);
+            }
+        }
+
+        private T buildNode(boolean leaf, BulkLevel<T> level, int from, int count) {
+            T node;
+            if (leaf && spare != null) {
+                node = spare;
+                spare = null;
+            } else {
+                node = nodeCreator.apply(leaf);
+            }
+            for (int i = 0; i < count; i++) {
+                node.appendValue(level.keys[from + i]);
+            }
+            if (!leaf) {
+                for (int i = 0; i <= count; i++) {
+                    node.setChild(i, level.children.get(from + i));
+                }
+            }
+            if (leaf && valuesInLeaves) {
+                if (unfinishedLeaf != null) {
+                    unfinishedLeaf.setNextLeaf(node);
+                    onNodeBuilt.accept(unfinishedLeaf);
+                }
+                unfinishedLeaf = node;
+            } else {
+                onNodeBuilt.accept(node);
+            }
+            return node;
+        }
+
+        private void finishLeaves() {
+            if (unfinishedLeaf != null) {
+                onNodeBuilt.accept(unfinishedLeaf);
+                unfinishedLeaf = null;
+            }
+        }
+    }
+
+    /**
+     * The pending separators (and, above the leaves, the finished children between them)
+     * of one level of a bulk load that have not been packed into a node yet.
+     * Keys are kept in a plain int array so loading does not box every value.
+     */
+    private static class BulkLevel<T> {
+        int[] keys = new int[16];
+        int keyCount;
+        final ArrayList<T> children = new ArrayList<>();
+
+        void addKey(int key) {
+            if (keyCount == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[keyCount++] = key;
+        }
+
+        void consume(int keyCount, int childCount) {
+            System.arraycopy(keys, keyCount, keys, 0, this.keyCount - keyCount);
+            this.keyCount -= keyCount;
+            children.subList(0, childCount).clear();
+        }
+    }
 }
@@ -0,0 +1,383 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+
+/**
+ * Measures single-threaded B-tree workloads for each node type and minimum degree, to pick a
+ * degree and to catch regressions.
+ *
+ * Backends: {@code memory} ({@link IntegerBTreeNode}), {@code persistent}
+ * ({@link PersistentIntegerBTreeNode}) and {@code bplus} ({@link PersistentBPlusTreeNode}). The
+ * persistent ones run against a temporary file behind a {@link PageCache} of {@code cachePages}
+ * pages. For every combination the workloads run in this order:
+ * <ul>
+ *   <li>{@code insert-seq}: {@code keys} ascending inserts into an empty tree</li>
+ *   <li>{@code insert-rand}: {@code keys} inserts in a scattered order into a second empty tree,
+ *       which the remaining workloads use</li>
+ *   <li>{@code lookup-hit}, {@code lookup-miss}: searches for random present and absent keys</li>
+ *   <li>{@code scan}: range scans of {@value #SCAN_LENGTH} keys from random starting points</li>
+ *   <li>{@code churn}: random keys, each removed if present and inserted back if not</li>
+ *   <li>{@code delete}: removes every remaining key</li>
+ * </ul>
+ * Lookups, scans and churn run {@code min(keys, }{@value #MAX_PROBES}{@code )} operations. The
+ * dirty pages of a mutating workload are flushed inside its timing.
+ *
+ * Each row reports operations per second, the allocation rate of the benchmark thread (MB/s)
+ * and the bytes the page file read and wrote per operation. A small warm-up round runs first so
+ * the JIT has compiled the tree code, but single runs are noisy: repeat a run before trusting a
+ * difference of a few percent.
+ *
+ * Usage: {@code java BTreeBenchmark [keys] [degrees] [cachePages] [backends]}
+ * (defaults: 100000, 2,3,16,64,256, 1024, memory,persistent,bplus). A backend whose nodes do
+ * not keep their values yet is left out with a note before any row is printed.
+ */
+public class BTreeBenchmark {
+
+    private static final int[] DEFAULT_DEGREES = {2, 3, 16, 64, 256};
+    private static final String[] DEFAULT_BACKENDS = {"memory", "persistent", "bplus"};
+    private static final int SCAN_LENGTH = 100;
+    private static final int MAX_PROBES = 1_000_000;
+    private static final int WARM_UP_KEYS = 20_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                    ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+    public static void main(String[] args) throws IOException {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int[] degrees = args.length > 1
+                ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray() : DEFAULT_DEGREES;
+        int cachePages = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        List<String> backends = new ArrayList<>();
+        for (String backend : args.length > 3 ? args[3].split(",") : DEFAULT_BACKENDS) {
+            if (nodesWork(backend, cachePages)) {
+                backends.add(backend);
+            } else {
+                System.out.printf("%-10s skipped: its nodes do not keep their values yet%n", backend);
+            }
+        }
+
+        for (String backend : backends) {
+            run(backend, 16, WARM_UP_KEYS, cachePages, false);
+        }
+        System.out.printf("keys=%d, cache=%d pages, scans of %d keys%n", keys, cachePages, SCAN_LENGTH);
+        System.out.printf("%-10s %4s %-12s %10s %14s %12s %12s %12s%n", "backend", "t", "workload",
+                "ops", "ops/s", "alloc MB/s", "read B/op", "written B/op");
+        for (String backend : backends) {
+            for (int t : degrees) {
+                run(backend, t, keys, cachePages, true);
+            }
+        }
+    }
+
+    /**
+     * Inserts and searches a few thousand values at a small degree, so the benchmark does not time
+     * a node class that is still a stub.
+     */
+    private static boolean nodesWork(String backend, int cachePages) throws IOException {
+        try (Subject subject = Subject.open(backend, 3, cachePages)) {
+            try {
+                for (int value = 0; value < 5000; value++) {
+                    subject.tree.insert(value);
+                }
+                for (int value = 0; value < 5000; value++) {
+                    if (!subject.tree.search(value)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Runs every workload for one backend and degree.
+     */
+    private static void run(String backend, int t, int keys, int cachePages, boolean print) throws IOException {
+        int probes = Math.min(keys, MAX_PROBES);
+        Permutation order = new Permutation(keys);
+        SplittableRandom random = new SplittableRandom(t);
+        try (Subject sequential = Subject.open(backend, t, cachePages);
+             Subject subject = Subject.open(backend, t, cachePages)) {
+            measure(print, sequential, "insert-seq", () -> {
+                for (int i = 0; i < keys; i++) {
+                    sequential.tree.insert(i);
+                }
+                return keys;
+            });
+
+            // Even values only, so odd values are guaranteed misses.
+            measure(print, subject, "insert-rand", () -> {
+                for (int i = 0; i < keys; i++) {
+                    subject.tree.insert(2 * order.get(i));
+                }
+                return keys;
+            });
+            if (!subject.tree.search(2 * (keys - 1)) || subject.tree.search(1)) {
+                if (print) {
+                    System.out.printf("%-10s %4d skipped: the tree does not find the keys it was given%n",
+                            backend, t);
+                }
+                return;
+            }
+            measure(print, subject, "lookup-hit", () -> {
+                for (int i = 0; i < probes; i++) {
+                    subject.tree.search(2 * random.nextInt(keys));
+                }
+                return probes;
+            });
+            measure(print, subject, "lookup-miss", () -> {
+                for (int i = 0; i < probes; i++) {
+                    subject.tree.search(2 * random.nextInt(keys) + 1);
+                }
+                return probes;
+            });
+            int scans = Math.max(1, probes / SCAN_LENGTH);
+            measure(print, subject, "scan", () -> {
+                for (int i = 0; i < scans; i++) {
+                    int lo = 2 * random.nextInt(keys);
+                    subject.tree.rangeScan(lo, lo + 2 * (SCAN_LENGTH - 1)).sum();
+                }
+                return scans;
+            });
+
+            BitSet present = new BitSet(keys);
+            present.set(0, keys);
+            measure(print, subject, "churn", () -> {
+                for (int i = 0; i < probes; i++) {
+                    int key = random.nextInt(keys);
+                    if (present.get(key)) {
+                        subject.tree.remove(2 * key);
+                    } else {
+                        subject.tree.insert(2 * key);
+                    }
+                    present.flip(key);
+                }
+                return probes;
+            });
+            measure(print, subject, "delete", () -> {
+                int removed = 0;
+                for (int i = 0; i < keys; i++) {
+                    int key = order.get(i);
+                    if (present.get(key)) {
+                        subject.tree.remove(2 * key);
+                        removed++;
+                    }
+                }
+                return removed;
+            });
+        }
+    }
+
+    private interface Workload {
+        /**
+         * @return the number of operations done
+         */
+        long run();
+    }
+
+    /**
+     * Times one workload, then flushes the tree's dirty pages and prints a row.
+     */
+    private static void measure(boolean print, Subject subject, String name, Workload workload) {
+        long allocatedBefore = allocatedBytes();
+        long readBefore = subject.file == null ? 0 : subject.file.bytesRead;
+        long writtenBefore = subject.file == null ? 0 : subject.file.bytesWritten;
+        long began = System.nanoTime();
+        long ops;
+        try {
+            ops = workload.run();
+            if (subject.cache != null) {
+                subject.cache.flush();
+            }
+        } catch (RuntimeException e) {
+            if (print) {
+                System.out.printf("%-10s %4d %-12s failed: %s%n", subject.backend, subject.t, name, e);
+            }
+            return;
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (!print) {
+            return;
+        }
+        double perOp = Math.max(1, ops);
+        System.out.printf("%-10s %4d %-12s %10d %14.0f %12s %12.1f %12.1f%n", subject.backend, subject.t, name,
+                ops, ops / seconds, allocatedBefore < 0 ? "n/a" : String.format("%.1f", allocated / seconds / 1e6),
+                subject.file == null ? 0.0 : (subject.file.bytesRead - readBefore) / perOp,
+                subject.file == null ? 0.0 : (subject.file.bytesWritten - writtenBefore) / perOp);
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A tree under test, with the cache and counted page file of the persistent backends.
+     */
+    private static final class Subject implements AutoCloseable {
+        final String backend;
+        final int t;
+        final BTree<? extends BTreeNode> tree;
+        final PageCache cache;
+        final CountingPageFile file;
+        final File path;
+
+        private Subject(String backend, int t, BTree<? extends BTreeNode> tree, PageCache cache,
+                        CountingPageFile file, File path) {
+            this.backend = backend;
+            this.t = t;
+            this.tree = tree;
+            this.cache = cache;
+            this.file = file;
+            this.path = path;
+        }
+
+        static Subject open(String backend, int t, int cachePages) throws IOException {
+            if (backend.equals("memory")) {
+                Function<Boolean, IntegerBTreeNode> nodeCreator = isLeaf -> new IntegerBTreeNode(t, isLeaf);
+                return new Subject(backend, t, new BTree<>(t, nodeCreator.apply(true), nodeCreator),
+                        null, null, null);
+            }
+            File path = File.createTempFile("btree-benchmark", ".bin");
+            path.deleteOnExit();
+            CountingPageFile file = new CountingPageFile(PageFile.open(path.getPath(), false));
+            if (backend.equals("bplus")) {
+                int pageSize = PersistentBPlusTreeNode.pageSizeFor(t);
+                PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(t, true);
+                storage.setPageFile(file);
+                storage.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+                PageCache cache = new PageCache((long) cachePages * pageSize, pageSize, storage::load);
+                storage.setPageCache(cache);
+                PersistentBPlusTreeNode root = storage.newNode(true);
+                return new Subject(backend, t, new BTree<>(t, root, root::newNode), cache, file, path);
+            }
+            if (backend.equals("persistent")) {
+                int pageSize = NodePage.pageSizeFor(t);
+                AppendOnlyPageAllocator allocator = new AppendOnlyPageAllocator(pageSize, 0);
+                PageCache[] cache = new PageCache[1];
+                Function<Boolean, PersistentIntegerBTreeNode> nodeCreator = isLeaf -> {
+                    PersistentIntegerBTreeNode node = new PersistentIntegerBTreeNode(t, isLeaf);
+                    node.setPageFile(file);
+                    node.setPageCache(cache[0]);
+                    node.setAllocator(allocator);
+                    node.setOffset(allocator.allocate());
+                    cache[0].put(node);
+                    return node;
+                };
+                cache[0] = new PageCache((long) cachePages * pageSize, pageSize, offset -> {
+                    PersistentIntegerBTreeNode node = new PersistentIntegerBTreeNode(t, true);
+                    node.setPageFile(file);
+                    node.setPageCache(cache[0]);
+                    node.setAllocator(allocator);
+                    node.readFromDisk(offset);
+                    return node;
+                });
+                return new Subject(backend, t, new BTree<>(t, nodeCreator.apply(true), nodeCreator),
+                        cache[0], file, path);
+            }
+            file.close();
+            path.delete();
+            throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                file.close();
+                path.delete();
+            }
+        }
+    }
+
+    /**
+     * A page file that counts the bytes read from and written to the file it wraps.
+     */
+    private static final class CountingPageFile implements PageFile {
+        private final PageFile file;
+        long bytesRead;
+        long bytesWritten;
+
+        CountingPageFile(PageFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int length) throws IOException {
+            bytesRead += length;
+            return file.read(offset, length);
+        }
+
+        @Override
+        public void write(long offset, byte[] bytes) throws IOException {
+            bytesWritten += bytes.length;
+            file.write(offset, bytes);
+        }
+
+        @Override
+        public void write(long offset, ByteBuffer[] pages) throws IOException {
+            for (ByteBuffer page : pages) {
+                bytesWritten += page.remaining();
+            }
+            file.write(offset, pages);
+        }
+
+        @Override
+        public long length() throws IOException {
+            return file.length();
+        }
+
+        @Override
+        public void truncate(long length) throws IOException {
+            file.truncate(length);
+        }
+
+        @Override
+        public void force() throws IOException {
+            file.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Visits {@code 0..n-1} in a scattered but repeatable order, without an array of n ints:
+     * {@code i -> (i * step + n / 2) mod n} with {@code step} coprime to n.
+     */
+    private static final class Permutation {
+        private final int n;
+        private final long step;
+
+        Permutation(int n) {
+            this.n = n;
+            long step = 0x9E3779B1L % n;
+            while (gcd(step, n) != 1) {
+                step++;
+            }
+            this.step = step;
+        }
+
+        int get(int i) {
+            return (int) ((i * step + n / 2) % n);
+        }
+
+        private static long gcd(long a, long b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+    }
+}
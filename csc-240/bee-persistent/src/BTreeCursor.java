@@ -0,0 +1,140 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A lazy in-order iterator over the values of a B-tree that fall in {@code [lo, hi]}.
+ *
+ * The cursor keeps an explicit stack of (node, index) positions along the current
+ * root-to-leaf path, so memory use is bounded by the height of the tree. Children are
+ * fetched with {@link BTreeNode#getChild(int)} only when the cursor reaches them, which
+ * lets persistent nodes be read on demand. Stop calling {@link #nextInt()} at any time to
+ * end the scan early. A reverse cursor yields the same values from {@code hi} down to {@code lo}.
+ */
+public class BTreeCursor implements PrimitiveIterator.OfInt {
+
+    private final int lo;
+    private final int hi;
+    private final boolean reverse;
+
+    private BTreeNode[] nodes;
+    // For a forward cursor: the next value to emit from each node once the child to its left is done.
+    // For a reverse cursor: the same, walking right to left.
+    private int[] indexes;
+    private int depth;
+
+    private boolean ready;
+    private boolean done;
+    private int nextValue;
+
+    /**
+     * @param root the root of the tree to scan (may be null for an empty tree)
+     * @param lo the smallest value to return
+     * @param hi the largest value to return
+     * @param reverse true to return values in descending order
+     */
+    public BTreeCursor(BTreeNode root, int lo, int hi, boolean reverse) {
+        this.lo = lo;
+        this.hi = hi;
+        this.reverse = reverse;
+        this.nodes = new BTreeNode[8];
+        this.indexes = new int[8];
+        this.depth = 0;
+        if (root == null || lo > hi) {
+            done = true;
+        } else {
+            seek(root);
+        }
+    }
+
+    /**
+     * Descends from the given node to the first value of the range, stacking the path.
+     */
+    private void seek(BTreeNode node) {
+        while (true) {
+            int n = node.getNumValues();
+            int index;
+            if (reverse) {
+                index = n - 1;
+                while (index >= 0 && node.getValueAt(index) > hi) {
+                    index--;
+                }
+            } else {
+                index = 0;
+                while (index < n && node.getValueAt(index) < lo) {
+                    index++;
+                }
+            }
+            push(node, index);
+            if (node.isLeaf()) {
+                return;
+            }
+            node = node.getChild(reverse ? index + 1 : index);
+        }
+    }
+
+    /**
+     * Pushes the leftmost (or, in reverse, rightmost) path of the subtree rooted at node.
+     */
+    private void descendToEdge(BTreeNode node) {
+        while (true) {
+            push(node, reverse ? node.getNumValues() - 1 : 0);
+            if (node.isLeaf()) {
+                return;
+            }
+            node = node.getChild(reverse ? node.getNumValues() : 0);
+        }
+    }
+
+    private void push(BTreeNode node, int index) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            indexes = Arrays.copyOf(indexes, depth * 2);
+        }
+        nodes[depth] = node;
+        indexes[depth] = index;
+        depth++;
+    }
+
+    private void advance() {
+        while (depth > 0) {
+            BTreeNode node = nodes[depth - 1];
+            int index = indexes[depth - 1];
+            if (index < 0 || index >= node.getNumValues()) {
+                nodes[--depth] = null;
+                continue;
+            }
+            int value = node.getValueAt(index);
+            if (reverse ? value < lo : value > hi) {
+                break;
+            }
+            indexes[depth - 1] = reverse ? index - 1 : index + 1;
+            if (!node.isLeaf()) {
+                descendToEdge(node.getChild(reverse ? index : index + 1));
+            }
+            nextValue = value;
+            ready = true;
+            return;
+        }
+        done = true;
+        Arrays.fill(nodes, 0, depth, null);
+        depth = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!ready && !done) {
+            advance();
+        }
+        return ready;
+    }
+
+    @Override
+    public int nextInt() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        return nextValue;
+    }
+}
@@ -0,0 +1,259 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a B-tree does: structural changes, page I/O, cache hits, and the latency of each
+ * operation.
+ *
+ * Every counter is a {@link LongAdder}, so threads that record at the same time update
+ * different cells instead of fighting over one, and recording stays cheap enough to leave on.
+ * Setting {@link #ENABLED} to false and recompiling removes every recording site: the calls are
+ * all guarded by {@code if (BTreeMetrics.ENABLED && ...)}, which javac drops for a false constant.
+ *
+ * Attach one with {@link BTree#setMetrics(BTreeMetrics)}. The tree records operation latencies
+ * itself. Structural events and page I/O are recorded by the nodes, which
+ * {@link PersistentBPlusTreeNode} does. {@link PageCache#setMetrics(BTreeMetrics)} adds cache
+ * hits and misses, and the B+-tree attaches its cache automatically. Your own node classes can
+ * call the {@code record...} methods too.
+ *
+ * {@link BTree#getMetricsSnapshot()} returns a {@link Snapshot} that also holds the height and
+ * average fill of the tree.
+ */
+public class BTreeMetrics {
+
+    /** Set to false to compile every recording site out. */
+    public static final boolean ENABLED = true;
+
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder borrowsFromPrev = new LongAdder();
+    private final LongAdder borrowsFromNext = new LongAdder();
+    private final LongAdder pageReads = new LongAdder();
+    private final LongAdder pageWrites = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LatencyHistogram searches = new LatencyHistogram();
+    private final LatencyHistogram inserts = new LatencyHistogram();
+    private final LatencyHistogram removes = new LatencyHistogram();
+
+    public void recordSplit() {
+        splits.increment();
+    }
+
+    public void recordMerge() {
+        merges.increment();
+    }
+
+    public void recordBorrowFromPrev() {
+        borrowsFromPrev.increment();
+    }
+
+    public void recordBorrowFromNext() {
+        borrowsFromNext.increment();
+    }
+
+    public void recordPageRead() {
+        pageReads.increment();
+    }
+
+    public void recordPageWrite() {
+        pageWrites.increment();
+    }
+
+    public void recordPageWrites(long count) {
+        pageWrites.add(count);
+    }
+
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    public void recordSearch(long nanos) {
+        searches.record(nanos);
+    }
+
+    public void recordInsert(long nanos) {
+        inserts.record(nanos);
+    }
+
+    public void recordRemove(long nanos) {
+        removes.record(nanos);
+    }
+
+    /**
+     * @return the counters and histograms as they are now, without the tree's shape
+     */
+    public Snapshot snapshot() {
+        return snapshot(-1, -1);
+    }
+
+    /**
+     * @param height the height of the tree, or -1 if not measured
+     * @param averageFill the average fraction of a node's value slots in use, or -1
+     */
+    public Snapshot snapshot(int height, double averageFill) {
+        return new Snapshot(this, height, averageFill);
+    }
+
+    /**
+     * Sets every counter and histogram back to zero. Records made during the reset may be lost.
+     */
+    public void reset() {
+        for (LongAdder adder : new LongAdder[] {splits, merges, borrowsFromPrev, borrowsFromNext,
+                pageReads, pageWrites, cacheHits, cacheMisses}) {
+            adder.reset();
+        }
+        searches.reset();
+        inserts.reset();
+        removes.reset();
+    }
+
+    /**
+     * Counts latencies in power-of-two buckets: bucket {@code b} holds values in
+     * {@code [2^(b-1), 2^b)} nanoseconds, bucket 0 holds 0. Percentiles are reported as the upper
+     * bound of their bucket, so they are accurate to within a factor of two.
+     */
+    public static final class LatencyHistogram {
+        private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+        private final LongAdder total = new LongAdder();
+
+        LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+            total.add(value);
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            total.reset();
+        }
+
+        long[] counts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        long sum() {
+            return total.sum();
+        }
+    }
+
+    /**
+     * The values of a {@link BTreeMetrics} at one moment. Counters are read one after the other
+     * while other threads may still record, so they can be off from each other by the operations
+     * in progress.
+     */
+    public static final class Snapshot {
+        private final Map<String, Number> values = new LinkedHashMap<>();
+
+        private Snapshot(BTreeMetrics metrics, int height, double averageFill) {
+            values.put("splits", metrics.splits.sum());
+            values.put("merges", metrics.merges.sum());
+            values.put("borrowsFromPrev", metrics.borrowsFromPrev.sum());
+            values.put("borrowsFromNext", metrics.borrowsFromNext.sum());
+            values.put("pageReads", metrics.pageReads.sum());
+            values.put("pageWrites", metrics.pageWrites.sum());
+            values.put("cacheHits", metrics.cacheHits.sum());
+            values.put("cacheMisses", metrics.cacheMisses.sum());
+            long[][] histograms = new long[][] {metrics.searches.counts(), metrics.inserts.counts(), metrics.removes.counts()};
+            String[] names = {"search", "insert", "remove"};
+            long[] sums = {metrics.searches.sum(), metrics.inserts.sum(), metrics.removes.sum()};
+            for (int h = 0; h < names.length; h++) {
+                long count = count(histograms[h]);
+                values.put(names[h] + "Count", count);
+                values.put(names[h] + "MeanNanos", count == 0 ? 0 : sums[h] / count);
+                values.put(names[h] + "P50Nanos", percentile(histograms[h], 0.50));
+                values.put(names[h] + "P99Nanos", percentile(histograms[h], 0.99));
+                values.put(names[h] + "MaxNanos", percentile(histograms[h], 1.0));
+            }
+            values.put("height", height);
+            values.put("averageFill", averageFill);
+        }
+
+        private static long count(long[] histogram) {
+            long count = 0;
+            for (long bucket : histogram) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given fraction of the values, or 0
+         */
+        private static long percentile(long[] histogram, double fraction) {
+            long count = count(histogram);
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int b = 0; b < histogram.length; b++) {
+                seen += histogram[b];
+                if (seen >= rank) {
+                    return b == 0 ? 0 : b >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * @param name one of the keys of {@link #toMap()}, e.g. {@code "splits"} or {@code "searchP99Nanos"}
+         */
+        public long get(String name) {
+            Number value = values.get(name);
+            if (value == null) {
+                throw new IllegalArgumentException("No metric named " + name);
+            }
+            return value.longValue();
+        }
+
+        public int getHeight() {
+            return values.get("height").intValue();
+        }
+
+        public double getAverageFill() {
+            return values.get("averageFill").doubleValue();
+        }
+
+        /**
+         * @return every value by name, in a fixed order; a copy that can be handed to an exporter
+         */
+        public Map<String, Number> toMap() {
+            return new LinkedHashMap<>(values);
+        }
+
+        /**
+         * @return one {@code name value} line per metric, the format of a Prometheus text export
+         * without type lines, with names prefixed by {@code prefix}
+         */
+        public String export(String prefix) {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Number> entry : values.entrySet()) {
+                out.append(prefix).append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            return out.toString();
+        }
+
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+}
@@ -124,5 +124,93 @@ int getValueAt(int index);
  */
 BTreeNode[] getChildren();
 
+/**
+ * Returns the child at the given position. Cursors and other read-only walks use this
+ * instead of {@link #getChildren()} so that persistent nodes can load the child from disk
+ * only when it is actually visited.
+ *
+ * @param index the position of the child (0 to {@code getNumValues()}).
+ * @return the child node.
+ */
+default BTreeNode getChild(int index) {
+    return getChildren()[index];
+}
+
+/**
+ * Returns a lazy iterator over the values in {@code [lo, hi]} of the tree rooted at this node.
+ * {@link BTree#cursor} uses this; the default walks the tree with a {@link BTreeCursor}, and
+ * node classes with a faster way to scan, such as a leaf chain, override it.
+ *
+ * @param lo the smallest value to return.
+ * @param hi the largest value to return.
+ * @param reverse true to iterate from hi down to lo instead.
+ * @return a cursor over the range.
+ */
+default java.util.PrimitiveIterator.OfInt cursor(int lo, int hi, boolean reverse) {
+    return new BTreeCursor(this, lo, hi, reverse);
+}
+
+/**
+ * Records this tree's structural changes and page I/O into the given metrics.
+ * {@link BTree#setMetrics(BTreeMetrics)} calls this on the root; the default records nothing.
+ *
+ * @param metrics the metrics to record into, or null to stop recording.
+ */
+default void setMetrics(BTreeMetrics metrics) {
+}
+
+/**
+ * Replaces the child at the given position. {@link BTree#bulkLoad} attaches children with this;
+ * the default stores the child in the {@link #getChildren()} array.
+ *
+ * @param index the position of the child (0 to {@code getNumValues()}).
+ * @param child the new child.
+ */
+default void setChild(int index, BTreeNode child) {
+    getChildren()[index] = child;
+}
+
+/**
+ * Appends a value after all of the values already stored in this node.
+ * Used by {@link BTree#bulkLoad} to fill freshly created nodes; the caller guarantees that
+ * the value is not smaller than the current last value and that the node is not full.
+ * Children are attached separately through {@link #setChild(int, BTreeNode)}.
+ * The default throws, so bulk loading needs a node class that overrides it.
+ *
+ * @param value the value to append.
+ */
+default void appendValue(int value) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not support appendValue");
+}
+
+/**
+ * Replaces the value at the given position, e.g. with its predecessor while removing it.
+ * The caller keeps the values in sorted order. Used by {@link ConcurrentBTree}; the default throws.
+ *
+ * @param index the position of the value to replace (0-based).
+ * @param value the new value.
+ */
+default void setValueAt(int index, int value) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not support setValueAt");
+}
+
+/**
+ * @return true if this node belongs to a B+-tree, where every value lives in a leaf and internal
+ * nodes only hold copies of the first value of each subtree. {@link BTree#bulkLoad} builds such
+ * trees differently and chains their leaves with {@link #setNextLeaf(BTreeNode)}.
+ */
+default boolean keepsValuesInLeaves() {
+    return false;
+}
+
+/**
+ * Links this B+-tree leaf to the leaf on its right, and that leaf back to this one.
+ *
+ * @param next the next leaf.
+ */
+default void setNextLeaf(BTreeNode next) {
+    throw new UnsupportedOperationException(getClass().getName() + " has no leaf chain");
+}
+
 
 }
@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An offline checker for a B-tree file in the {@link NodePage} format (the format of
+ * {@link PersistentIntegerBTreeNode}). It reads every page reachable from the root straight
+ * from the file, without any node class, and reports:
+ * <ul>
+ *   <li>pages that fail their checksum or do not decode;</li>
+ *   <li>values that are out of order, or outside the range their parent allows;</li>
+ *   <li>nodes with fewer than t - 1 or more than 2t - 1 values (the root may have fewer);</li>
+ *   <li>child offsets that point outside the file, off a page boundary, at a free page or
+ *       back to a page already seen;</li>
+ *   <li>leaves at different depths.</li>
+ * </ul>
+ * It then reads every other allocated page and reports those that fail their checksum or do not
+ * decode. If the file starts with a {@link FreeListPageAllocator} header, the allocated pages are
+ * the ones it handed out and did not free, and the scan is skipped when the header is unclean
+ * (its free list was dropped, so free pages cannot be told apart). Otherwise every page in the
+ * file counts as allocated.
+ *
+ * Usage: {@code java BTreeVerifier <file> <rootOffset> [t]}. The degree defaults to
+ * {@link PersistentIntegerBTreeNode#PAGE_DEGREE}. The exit status is 1 if any problem is found.
+ */
+public class BTreeVerifier {
+
+    private final PageFile pageFile;
+    private final int t;
+    private final int pageSize;
+    private final long fileLength;
+    private final long firstPage; // the header page, if any, comes before it
+    private final long endOfPages;
+    private final HashSet<Long> free = new HashSet<>();
+    private final boolean scanAllocated;
+    private final HashSet<Long> visited = new HashSet<>();
+    private final List<String> problems = new ArrayList<>();
+    private int leafDepth = -1;
+    private long values;
+
+    private BTreeVerifier(PageFile pageFile, int t) throws IOException {
+        this.pageFile = pageFile;
+        this.t = t;
+        this.pageSize = NodePage.pageSizeFor(t);
+        this.fileLength = pageFile.length();
+        FreeListPageAllocator allocator;
+        try {
+            allocator = FreeListPageAllocator.open(pageFile);
+        } catch (IOException | IllegalArgumentException e) {
+            allocator = null; // no header: the nodes start at offset 0
+        }
+        if (allocator == null) {
+            firstPage = 0;
+            endOfPages = fileLength / pageSize * pageSize;
+            scanAllocated = true;
+        } else {
+            if (allocator.getPageSize() != pageSize) {
+                problems.add("Header page size is " + allocator.getPageSize() + ", expected " + pageSize);
+            }
+            firstPage = pageSize;
+            endOfPages = Math.min(allocator.getHighWaterMark(), fileLength / pageSize * pageSize);
+            scanAllocated = allocator.isClean();
+            for (long offset : allocator.getFreePages()) {
+                free.add(offset);
+            }
+        }
+    }
+
+    /**
+     * Checks the tree stored in a page file.
+     * @param pageFile the file holding the tree
+     * @param rootOffset the offset of the root page
+     * @param t the minimum degree the tree was built with
+     * @return one line per problem found; empty if the tree is intact
+     */
+    public static List<String> verify(PageFile pageFile, long rootOffset, int t) throws IOException {
+        BTreeVerifier verifier = new BTreeVerifier(pageFile, t);
+        verifier.check(rootOffset);
+        return verifier.problems;
+    }
+
+    private void check(long rootOffset) throws IOException {
+        if (reach(rootOffset, "Root")) {
+            visit(rootOffset, 0, Long.MIN_VALUE, Long.MAX_VALUE, true);
+        }
+        if (scanAllocated) {
+            int[] keys = new int[2 * t - 1];
+            long[] children = new long[2 * t];
+            for (long offset = firstPage; offset < endOfPages; offset += pageSize) {
+                if (!visited.contains(offset) && !free.contains(offset)) {
+                    decode(offset, pageFile.read(offset, pageSize), keys, children, "Unreachable: ");
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a page offset found in the tree may be read, and marks the page as seen.
+     * @param from what the offset was found in, for the problem report
+     * @return whether the page should be visited
+     */
+    private boolean reach(long offset, String from) {
+        if (offset < firstPage || offset + pageSize > fileLength) {
+            problems.add(from + " points to offset " + offset + ", outside the pages of the file ("
+                    + fileLength + " bytes)");
+            return false;
+        }
+        if (offset % pageSize != 0) {
+            problems.add(from + " points to offset " + offset + ", which is not a page boundary");
+            return false;
+        }
+        if (free.contains(offset)) {
+            problems.add(from + " points to the free page at offset " + offset);
+            return false;
+        }
+        if (!visited.add(offset)) {
+            problems.add(from + " points to the page at offset " + offset + ", which is reachable more than once");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param prefix put in front of the problem report
+     * @return whether the page decoded; if not, the problem has been reported
+     */
+    private boolean decode(long offset, ByteBuffer page, int[] keys, long[] children, String prefix) {
+        try {
+            NodePage.decode(page, keys, children, pageSize);
+            return true;
+        } catch (CorruptPageException e) {
+            problems.add(prefix + e.atOffset(offset).getMessage());
+        } catch (RuntimeException e) {
+            problems.add(prefix + "Page at offset " + offset + " does not decode: " + e);
+        }
+        return false;
+    }
+
+    private void visit(long offset, int depth, long lo, long hi, boolean isRoot) throws IOException {
+        int[] keys = new int[2 * t - 1];
+        long[] children = new long[2 * t];
+        ByteBuffer page = pageFile.read(offset, pageSize);
+        if (!decode(offset, page, keys, children, "")) {
+            return;
+        }
+        boolean isLeaf = NodePage.isLeaf(page);
+        int count = NodePage.count(page);
+        values += count;
+
+        int min = isRoot ? (isLeaf ? 0 : 1) : t - 1;
+        if (count < min || count > 2 * t - 1) {
+            problems.add("Page at offset " + offset + " holds " + count + " values, expected "
+                    + min + ".." + (2 * t - 1));
+        }
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && keys[i] < keys[i - 1]) {
+                problems.add("Page at offset " + offset + " is not sorted at index " + i);
+            }
+            if (keys[i] < lo || keys[i] > hi) {
+                problems.add("Page at offset " + offset + " holds " + keys[i]
+                        + ", outside the range [" + lo + ", " + hi + "] its parent allows");
+            }
+        }
+
+        if (isLeaf) {
+            if (leafDepth < 0) {
+                leafDepth = depth;
+            } else if (leafDepth != depth) {
+                problems.add("Leaf at offset " + offset + " is at depth " + depth + ", expected " + leafDepth);
+            }
+            return;
+        }
+        for (int i = 0; i <= count; i++) {
+            if (reach(children[i], "Child " + i + " of the page at offset " + offset)) {
+                long childLo = i == 0 ? lo : keys[i - 1];
+                long childHi = i == count ? hi : keys[i];
+                visit(children[i], depth + 1, childLo, childHi, false);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java BTreeVerifier <file> <rootOffset> [t]");
+            System.exit(2);
+        }
+        long rootOffset = Long.parseLong(args[1]);
+        int t = args.length > 2 ? Integer.parseInt(args[2]) : PersistentIntegerBTreeNode.PAGE_DEGREE;
+        try (PageFile pageFile = PageFile.open(args[0], false)) {
+            BTreeVerifier verifier = new BTreeVerifier(pageFile, t);
+            verifier.check(rootOffset);
+            for (String problem : verifier.problems) {
+                System.out.println(problem);
+            }
+            System.out.println(verifier.visited.size() + " pages, " + verifier.values + " values, height "
+                    + (verifier.leafDepth + 1) + ": " + (verifier.problems.isEmpty() ? "OK"
+                    : verifier.problems.size() + " problem(s)"));
+            if (!verifier.problems.isEmpty()) {
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A background thread that writes the dirty nodes of a {@link PageCache} back to their
+ * {@link PageFile}, so inserts do not pay for write I/O themselves.
+ *
+ * Each round takes every dirty, unpinned node, serializes it and marks it clean, then writes the
+ * images in offset order. Runs of adjacent pages go out as one vectored
+ * {@link PageFile#write(long, ByteBuffer[])} call. A round runs every {@code intervalMillis}, or
+ * sooner once {@code lowWatermark} nodes are dirty. At {@code highWatermark} dirty nodes, writers
+ * that pin or add a node wait for the next round, which keeps the dirty set from growing faster
+ * than the disk can take it.
+ *
+ * While a {@link WriteAheadLog} is attached to the cache the flusher writes nothing:
+ * {@link PageCache#commit()} stays the only way pages reach the file. {@link #close()} runs a
+ * final round, so nothing is left dirty when the flusher stops.
+ */
+public class BackgroundFlusher implements AutoCloseable {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+
+    private final PageCache cache;
+    private final PageFile pageFile;
+    private final long intervalMillis;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final Thread thread;
+    private volatile boolean running;
+    private volatile IOException failure;
+
+    private long rounds;
+    private long pagesWritten;
+    private long writeCalls;
+
+    /**
+     * Starts a flusher that runs every {@value #DEFAULT_INTERVAL_MILLIS} ms, wakes early at a
+     * quarter of the cache dirty and throttles writers at half of it.
+     */
+    public BackgroundFlusher(PageCache cache, PageFile pageFile) {
+        this(cache, pageFile, DEFAULT_INTERVAL_MILLIS,
+                Math.max(1, cache.getCapacity() / 4), Math.max(1, cache.getCapacity() / 2));
+    }
+
+    /**
+     * Starts a flusher for the cache.
+     * @param cache the cache whose dirty nodes to write
+     * @param pageFile the file the nodes belong to
+     * @param intervalMillis the longest time between two rounds
+     * @param lowWatermark the number of dirty nodes that starts a round early
+     * @param highWatermark the number of dirty nodes at which writers wait for a round
+     */
+    public BackgroundFlusher(PageCache cache, PageFile pageFile, long intervalMillis,
+                             int lowWatermark, int highWatermark) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        if (lowWatermark <= 0 || lowWatermark > highWatermark || highWatermark > cache.getCapacity()) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 < low <= high <= "
+                    + cache.getCapacity() + ", got " + lowWatermark + " and " + highWatermark);
+        }
+        this.cache = cache;
+        this.pageFile = pageFile;
+        this.intervalMillis = intervalMillis;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.running = true;
+        cache.attachFlusher(this);
+        this.thread = new Thread(this::run, "page-flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                cache.awaitWork(intervalMillis);
+                if (running) {
+                    flushRound();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Runs one round on the calling thread and returns when its writes are done.
+     * @return the number of nodes written
+     */
+    public int flushNow() throws IOException {
+        return flushRound();
+    }
+
+    private int flushRound() throws IOException {
+        List<PageCache.DirtyPage> pages = cache.takeDirtyPages();
+        boolean written = false;
+        try {
+            int calls = writeRuns(pages);
+            written = true;
+            BTreeMetrics metrics = cache.getMetrics();
+            if (BTreeMetrics.ENABLED && metrics != null) {
+                metrics.recordPageWrites(pages.size());
+            }
+            synchronized (this) {
+                rounds++;
+                pagesWritten += pages.size();
+                writeCalls += calls;
+            }
+        } finally {
+            cache.finishFlush(pages, !written);
+        }
+        return pages.size();
+    }
+
+    /**
+     * Writes the pages, sorted by offset, with one vectored call per run of adjacent pages.
+     * @return the number of calls made
+     */
+    private int writeRuns(List<PageCache.DirtyPage> pages) throws IOException {
+        int calls = 0;
+        int start = 0;
+        while (start < pages.size()) {
+            int end = start + 1;
+            while (end < pages.size() && pages.get(end).offset
+                    == pages.get(end - 1).offset + pages.get(end - 1).image.length) {
+                end++;
+            }
+            ByteBuffer[] run = new ByteBuffer[end - start];
+            for (int i = start; i < end; i++) {
+                run[i - start] = ByteBuffer.wrap(pages.get(i).image);
+            }
+            pageFile.write(pages.get(start).offset, run);
+            calls++;
+            start = end;
+        }
+        return calls;
+    }
+
+    /**
+     * Stops the thread, writes whatever is still dirty and detaches from the cache.
+     * @throws IOException if the final round fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        cache.wakeFlusher();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flushRound();
+            // Nodes of a failed round were marked dirty again, so this round wrote them.
+            failure = null;
+        } finally {
+            cache.attachFlusher(null);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the error of the last background round that failed, or null. Its nodes stay
+     * dirty and are tried again in the next round.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public synchronized long getRounds() {
+        return rounds;
+    }
+
+    public synchronized long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /**
+     * @return the number of write calls made; fewer than {@link #getPagesWritten()} when
+     * adjacent pages were coalesced.
+     */
+    public synchronized long getWriteCalls() {
+        return writeCalls;
+    }
+}
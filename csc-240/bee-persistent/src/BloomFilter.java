@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.PrimitiveIterator;
+
+/**
+ * A blocked Bloom filter over int keys, kept next to a tree so that most lookups of absent keys
+ * are answered without reading a single page.
+ *
+ * Every key hashes to one 512-bit block (one cache line) and sets its {@code k} bits inside that
+ * block, so a query touches one line of memory however many bits it checks. The price is that
+ * blocks fill unevenly, so it takes more bits than a classic filter for the same rate, the more so
+ * the lower the rate. The constructor accounts for that when it sizes the filter.
+ *
+ * Keys can be added but not removed: after many deletes the filter still answers "maybe" for
+ * the removed keys. Rebuild it from the tree with {@link BTree#rebuildFilter(double)}, also when
+ * far more keys than expected have been added ({@link #getEstimatedFalsePositiveRate()} grows).
+ *
+ * {@link #save(PageFile)} writes the filter to its own file with a checksum; {@link #load(PageFile)}
+ * reads it back. Like {@link BTree}, a filter is not safe for use by several threads at once.
+ */
+public class BloomFilter {
+
+    private static final int MAGIC = 0x424C4F4D; // "BLOM"
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_POSITION = 4;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 4 + 4 + 8;
+    private static final int BLOCK_BITS = 512;
+    private static final int WORDS_PER_BLOCK = BLOCK_BITS / Long.SIZE;
+    private static final int MAX_HASHES = 16;
+    private static final int POSITIONS_PER_HASH = Long.SIZE / 9;
+
+    private final long[] words;
+    private final int blocks;
+    private final int hashes;
+    private long insertions;
+
+    private long queries;
+    private long rejections;
+
+    /**
+     * Creates an empty filter.
+     * @param expectedKeys the number of keys it will hold
+     * @param falsePositiveRate the fraction of absent keys it may let through at that size,
+     *                          e.g. 0.01; lower rates need more memory
+     */
+    public BloomFilter(long expectedKeys, double falsePositiveRate) {
+        if (expectedKeys < 0) {
+            throw new IllegalArgumentException("Expected key count must not be negative");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False-positive rate must be between 0 and 1, got "
+                    + falsePositiveRate);
+        }
+        // Start from the size of a classic filter and grow until the blocked layout meets the rate.
+        double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        while (blockedFalsePositiveRate(bitsPerKey, hashesFor(bitsPerKey)) > falsePositiveRate) {
+            bitsPerKey += 0.5;
+        }
+        long bits = (long) Math.ceil(Math.max(1, expectedKeys) * bitsPerKey);
+        long blockCount = (bits + BLOCK_BITS - 1) / BLOCK_BITS;
+        if (blockCount > Integer.MAX_VALUE / WORDS_PER_BLOCK) {
+            throw new IllegalArgumentException("A filter for " + expectedKeys + " keys at rate "
+                    + falsePositiveRate + " does not fit in an array");
+        }
+        this.blocks = (int) blockCount;
+        this.hashes = hashesFor(bitsPerKey);
+        this.words = new long[blocks * WORDS_PER_BLOCK];
+    }
+
+    private static int hashesFor(double bitsPerKey) {
+        return (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    /**
+     * The expected rate of a blocked filter: the number of keys in a block is Poisson-distributed
+     * around {@code BLOCK_BITS / bitsPerKey}, and each block has the rate of a small classic filter.
+     */
+    private static double blockedFalsePositiveRate(double bitsPerKey, int hashes) {
+        double mean = BLOCK_BITS / bitsPerKey;
+        double probability = Math.exp(-mean); // of a block holding exactly `keys` keys
+        double rate = 0;
+        int limit = (int) Math.ceil(mean + 12 * Math.sqrt(mean) + 12);
+        for (int keys = 0; keys <= limit; keys++) {
+            double unset = Math.pow(1 - 1.0 / BLOCK_BITS, (double) keys * hashes);
+            rate += probability * Math.pow(1 - unset, hashes);
+            probability *= mean / (keys + 1);
+        }
+        return rate;
+    }
+
+    private BloomFilter(int blocks, int hashes, long insertions) {
+        this.blocks = blocks;
+        this.hashes = hashes;
+        this.insertions = insertions;
+        this.words = new long[blocks * WORDS_PER_BLOCK];
+    }
+
+    /**
+     * Builds a filter holding the given keys.
+     */
+    public static BloomFilter of(PrimitiveIterator.OfInt keys, long expectedKeys, double falsePositiveRate) {
+        BloomFilter filter = new BloomFilter(expectedKeys, falsePositiveRate);
+        while (keys.hasNext()) {
+            filter.add(keys.nextInt());
+        }
+        return filter;
+    }
+
+    public void add(int key) {
+        long hash = mix(key);
+        int base = block(hash) * WORDS_PER_BLOCK;
+        long seed = mix(hash);
+        long bits = seed;
+        for (int i = 0; i < hashes; i++) {
+            if (i > 0 && i % POSITIONS_PER_HASH == 0) {
+                // A 64-bit hash holds 7 bit positions of 9 bits; take the next ones from a new hash.
+                seed = mix(seed + 0x9E3779B97F4A7C15L);
+                bits = seed;
+            }
+            int bit = (int) (bits & (BLOCK_BITS - 1));
+            words[base + (bit >>> 6)] |= 1L << bit;
+            bits >>>= 9;
+        }
+        insertions++;
+    }
+
+    /**
+     * @return false if the key was certainly never added, true if it may have been
+     */
+    public boolean mightContain(int key) {
+        queries++;
+        long hash = mix(key);
+        int base = block(hash) * WORDS_PER_BLOCK;
+        long seed = mix(hash);
+        long bits = seed;
+        for (int i = 0; i < hashes; i++) {
+            if (i > 0 && i % POSITIONS_PER_HASH == 0) {
+                // A 64-bit hash holds 7 bit positions of 9 bits; take the next ones from a new hash.
+                seed = mix(seed + 0x9E3779B97F4A7C15L);
+                bits = seed;
+            }
+            int bit = (int) (bits & (BLOCK_BITS - 1));
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                rejections++;
+                return false;
+            }
+            bits >>>= 9;
+        }
+        return true;
+    }
+
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32);
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3: every input bit affects every output bit.
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    /**
+     * @return the chance that an absent key gets through, judged from how many bits are set in
+     * each block
+     */
+    public double getEstimatedFalsePositiveRate() {
+        double rate = 0;
+        for (int block = 0; block < blocks; block++) {
+            int set = 0;
+            for (int w = 0; w < WORDS_PER_BLOCK; w++) {
+                set += Long.bitCount(words[block * WORDS_PER_BLOCK + w]);
+            }
+            rate += Math.pow((double) set / BLOCK_BITS, hashes);
+        }
+        return rate / blocks;
+    }
+
+    public long getBitCount() {
+        return (long) words.length * Long.SIZE;
+    }
+
+    public int getHashCount() {
+        return hashes;
+    }
+
+    /**
+     * @return the number of {@link #add} calls, counting repeated keys each time
+     */
+    public long getInsertions() {
+        return insertions;
+    }
+
+    /**
+     * @return the number of {@link #mightContain} calls
+     */
+    public long getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the number of queries answered "certainly absent"
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * Writes the filter to the start of the file, replacing whatever was there.
+     */
+    public void save(PageFile file) throws IOException {
+        ByteBuffer image = ByteBuffer.allocate(HEADER_SIZE + words.length * Long.BYTES);
+        image.putInt(MAGIC).putInt(0).putInt(VERSION).putInt(hashes).putInt(blocks).putInt(0).putLong(insertions);
+        image.asLongBuffer().put(words);
+        byte[] bytes = image.array();
+        PageChecksum.store(bytes, CHECKSUM_POSITION);
+        file.truncate(0);
+        file.write(0, bytes);
+        file.force();
+    }
+
+    /**
+     * Reads a filter written by {@link #save(PageFile)}.
+     * @throws IOException if the file does not hold a filter
+     * @throws CorruptPageException if the filter was damaged after it was written
+     */
+    public static BloomFilter load(PageFile file) throws IOException {
+        ByteBuffer header = file.read(0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a Bloom filter file: bad magic");
+        }
+        int version = header.getInt(8);
+        if (version != VERSION) {
+            throw new IOException("Unsupported Bloom filter version " + version);
+        }
+        int hashes = header.getInt(12);
+        int blocks = header.getInt(16);
+        if (hashes < 1 || hashes > MAX_HASHES || blocks < 1 || blocks > Integer.MAX_VALUE / WORDS_PER_BLOCK) {
+            throw new CorruptPageException("Bloom filter header out of range");
+        }
+        BloomFilter filter = new BloomFilter(blocks, hashes, header.getLong(24));
+        int length = HEADER_SIZE + filter.words.length * Long.BYTES;
+        ByteBuffer image = file.read(0, length);
+        PageChecksum.verify(image, 0, length, CHECKSUM_POSITION);
+        image.position(HEADER_SIZE);
+        image.asLongBuffer().get(filter.words);
+        return filter;
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps many named B+-trees in one file, sharing one {@link FreeListPageAllocator}, one
+ * {@link PageCache} and, if one is attached to the cache, one {@link WriteAheadLog}.
+ *
+ * The catalog maps each tree's name to the offset of its root. It lives in a chain of pages
+ * whose first offset is the root offset in the allocator's header. The catalog is never
+ * changed in place: a new version is written to fresh pages, and the header is switched to it
+ * by {@link FreeListPageAllocator#sync()}. A crash therefore leaves either the old catalog or
+ * the new one. That makes {@link #createTree(String)} and {@link #dropTree(String)} atomic. Both
+ * are durable when they return.
+ *
+ * Roots move when they split or collapse. {@link #checkpoint()} writes the dirty nodes of every
+ * tree, then records the roots that moved. It is not a snapshot: nodes reach the file between
+ * checkpoints too, in place through eviction and {@link PageCache#flush()} without a log, or
+ * through {@link PageCache#commit()} with one. After a crash, a tree changed since the last
+ * checkpoint may therefore be half-written without a log. With a log it shows its last commit,
+ * but its entry may still point at a root that has since moved. With a log, every catalog change
+ * also empties the log, so that pages freed or reused afterwards are never overwritten by an
+ * old image when the log is replayed.
+ *
+ * Do not call {@link PersistentBPlusTreeNode#vacuum()} on a tree in a catalog: vacuum assumes
+ * one tree owns the whole file.
+ *
+ * Catalog page layout: magic (4 bytes), checksum (4), version (4), minimum degree (4), entry
+ * count (4), next page (8), then per entry: name length (2), UTF-8 name, root offset (8).
+ */
+public class Catalog {
+
+    public static final int MAX_NAME_BYTES = 255;
+
+    private static final int MAGIC = 0x43544C47; // "CTLG"
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_POSITION = 4;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 4 + 8;
+
+    private final PageFile pageFile;
+    private final FreeListPageAllocator allocator;
+    private final PageCache cache;
+    private final PersistentBPlusTreeNode storage;
+    private final int t;
+    private final int pageSize;
+
+    private final Map<String, Long> roots = new LinkedHashMap<>(); // as recorded in the current catalog
+    private final Map<String, BTree<PersistentBPlusTreeNode>> trees = new LinkedHashMap<>();
+    private List<Long> catalogPages = new ArrayList<>();
+
+    private Catalog(PageFile pageFile, FreeListPageAllocator allocator, int t, long cacheBytes) {
+        this.pageFile = pageFile;
+        this.allocator = allocator;
+        this.t = t;
+        this.pageSize = PersistentBPlusTreeNode.pageSizeFor(t);
+        this.storage = new PersistentBPlusTreeNode(t, true);
+        storage.setPageFile(pageFile);
+        storage.setAllocator(allocator);
+        this.cache = new PageCache(cacheBytes, pageSize, storage::load);
+        storage.setPageCache(cache);
+    }
+
+    /**
+     * Formats a new file with an empty catalog.
+     * @param pageFile the file to format; anything already in it is lost
+     * @param t the minimum degree of every tree in the file
+     * @param cacheBytes the memory budget of the shared page cache
+     */
+    public static Catalog create(PageFile pageFile, int t, long cacheBytes) throws IOException {
+        FreeListPageAllocator allocator =
+                FreeListPageAllocator.create(pageFile, PersistentBPlusTreeNode.pageSizeFor(t));
+        Catalog catalog = new Catalog(pageFile, allocator, t, cacheBytes);
+        catalog.publish();
+        return catalog;
+    }
+
+    /**
+     * Opens a file formatted by {@link #create(PageFile, int, long)}.
+     * @throws IOException if the file has no catalog or was made for another degree
+     * @throws CorruptPageException if a catalog page is damaged
+     */
+    public static Catalog open(PageFile pageFile, int t, long cacheBytes) throws IOException {
+        FreeListPageAllocator allocator = FreeListPageAllocator.open(pageFile);
+        if (allocator.getPageSize() != PersistentBPlusTreeNode.pageSizeFor(t)) {
+            throw new IOException("File has " + allocator.getPageSize() + "-byte pages, degree " + t
+                    + " needs " + PersistentBPlusTreeNode.pageSizeFor(t));
+        }
+        if (allocator.getRootOffset() < 0) {
+            throw new IOException("File has no catalog");
+        }
+        Catalog catalog = new Catalog(pageFile, allocator, t, cacheBytes);
+        catalog.read(allocator.getRootOffset());
+        return catalog;
+    }
+
+    /**
+     * Creates an empty tree. Like every catalog change, it first checkpoints the other trees.
+     * @return the new tree
+     * @throws IllegalArgumentException if a tree of that name exists or the name is too long
+     */
+    public synchronized BTree<PersistentBPlusTreeNode> createTree(String name) throws IOException {
+        if (roots.containsKey(name)) {
+            throw new IllegalArgumentException("Tree " + name + " already exists");
+        }
+        if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Tree name longer than " + MAX_NAME_BYTES + " bytes: " + name);
+        }
+        PersistentBPlusTreeNode root = storage.newNode(true);
+        BTree<PersistentBPlusTreeNode> tree = new BTree<>(t, root, root::newNode);
+        trees.put(name, tree);
+        roots.put(name, root.getOffset());
+        writeNodes();
+        publish();
+        return tree;
+    }
+
+    /**
+     * @return the tree of that name; the same object every time until it is dropped
+     * @throws IllegalArgumentException if there is no such tree
+     */
+    public synchronized BTree<PersistentBPlusTreeNode> openTree(String name) {
+        BTree<PersistentBPlusTreeNode> tree = trees.get(name);
+        if (tree != null) {
+            return tree;
+        }
+        Long rootOffset = roots.get(name);
+        if (rootOffset == null) {
+            throw new IllegalArgumentException("No tree named " + name);
+        }
+        PersistentBPlusTreeNode root = (PersistentBPlusTreeNode) cache.get(rootOffset);
+        tree = new BTree<>(t, root, root::newNode);
+        trees.put(name, tree);
+        return tree;
+    }
+
+    /**
+     * Removes a tree and gives its pages back to the allocator. Trees returned for that name
+     * before must not be used again.
+     * @throws IllegalArgumentException if there is no such tree
+     */
+    public synchronized void dropTree(String name) throws IOException {
+        if (!roots.containsKey(name)) {
+            throw new IllegalArgumentException("No tree named " + name);
+        }
+        writeNodes();
+        long rootOffset = currentRoot(name);
+        trees.remove(name);
+        roots.remove(name);
+        publish();
+        // The catalog no longer reaches these pages, so they can be reused.
+        for (long page : pagesOf(rootOffset)) {
+            cache.invalidate(page);
+            allocator.free(page);
+        }
+        allocator.sync();
+    }
+
+    /**
+     * Writes the dirty nodes of every tree (through {@link PageCache#commit()} and
+     * {@link WriteAheadLog#checkpoint(PageFile)} when a log is attached), records roots that
+     * moved, and syncs the allocator.
+     */
+    public synchronized void checkpoint() throws IOException {
+        writeNodes();
+        boolean moved = false;
+        for (String name : trees.keySet()) {
+            moved |= roots.get(name) != currentRoot(name);
+        }
+        if (moved) {
+            publish();
+        } else {
+            allocator.sync();
+        }
+    }
+
+    public synchronized boolean contains(String name) {
+        return roots.containsKey(name);
+    }
+
+    /**
+     * @return the names of the trees, in the order they were created
+     */
+    public synchronized Set<String> getTreeNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(roots.keySet()));
+    }
+
+    public PageCache getPageCache() {
+        return cache;
+    }
+
+    public FreeListPageAllocator getAllocator() {
+        return allocator;
+    }
+
+    public int getMinimumDegree() {
+        return t;
+    }
+
+    private long currentRoot(String name) {
+        BTree<PersistentBPlusTreeNode> tree = trees.get(name);
+        return tree == null ? roots.get(name) : tree.getRoot().getOffset();
+    }
+
+    /**
+     * Writes every dirty node to the file. With a log, it then empties the log, which must happen
+     * before any page is freed or written outside the log: replaying an old image of a page that
+     * was reused since would destroy it.
+     */
+    private void writeNodes() throws IOException {
+        WriteAheadLog log = cache.getWriteAheadLog();
+        if (log != null) {
+            cache.commit();
+            log.checkpoint(pageFile);
+        } else {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Writes the current roots as a new catalog on fresh pages, switches the header to it, and
+     * frees the pages of the old one.
+     */
+    private void publish() throws IOException {
+        Map<String, Long> entries = new LinkedHashMap<>();
+        for (String name : roots.keySet()) {
+            entries.put(name, currentRoot(name));
+        }
+        List<byte[]> pages = encode(entries);
+        List<Long> offsets = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i++) {
+            offsets.add(allocator.allocate());
+        }
+        for (int i = 0; i < pages.size(); i++) {
+            ByteBuffer page = ByteBuffer.wrap(pages.get(i));
+            page.putLong(20, i + 1 < offsets.size() ? offsets.get(i + 1) : -1);
+            PageChecksum.store(pages.get(i), CHECKSUM_POSITION);
+            pageFile.write(offsets.get(i), pages.get(i));
+        }
+        allocator.setRootOffset(offsets.get(0));
+        allocator.sync();
+
+        // Only now is the old catalog unreachable. Its pages get free-list links at the next sync,
+        // which is after the header stopped pointing at them.
+        for (long page : catalogPages) {
+            allocator.free(page);
+        }
+        catalogPages = offsets;
+        roots.putAll(entries);
+        allocator.sync();
+    }
+
+    private List<byte[]> encode(Map<String, Long> entries) {
+        List<byte[]> pages = new ArrayList<>();
+        ByteBuffer page = null;
+        int count = 0;
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (page == null || page.remaining() < 2 + name.length + 8) {
+                if (page != null) {
+                    page.putInt(16, count);
+                }
+                page = newPage();
+                pages.add(page.array());
+                count = 0;
+            }
+            page.putShort((short) name.length).put(name).putLong(entry.getValue());
+            count++;
+        }
+        if (page == null) {
+            page = newPage();
+            pages.add(page.array());
+        }
+        page.putInt(16, count);
+        return pages;
+    }
+
+    private ByteBuffer newPage() {
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        page.putInt(MAGIC).putInt(0).putInt(VERSION).putInt(t).putInt(0).putLong(-1);
+        return page;
+    }
+
+    private void read(long offset) throws IOException {
+        while (offset >= 0) {
+            ByteBuffer page;
+            try {
+                page = pageFile.read(offset, pageSize);
+                PageChecksum.verify(page, 0, pageSize, CHECKSUM_POSITION);
+            } catch (CorruptPageException e) {
+                throw e.atOffset(offset);
+            }
+            if (page.getInt(0) != MAGIC) {
+                throw new IOException("Page " + offset + " is not a catalog page");
+            }
+            if (page.getInt(8) != VERSION) {
+                throw new IOException("Unsupported catalog version " + page.getInt(8));
+            }
+            if (page.getInt(12) != t) {
+                throw new IOException("Catalog was made for degree " + page.getInt(12) + ", not " + t);
+            }
+            int count = page.getInt(16);
+            long next = page.getLong(20);
+            page.position(HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[page.getShort() & 0xFFFF];
+                page.get(name);
+                roots.put(new String(name, StandardCharsets.UTF_8), page.getLong());
+            }
+            catalogPages.add(offset);
+            offset = next;
+        }
+    }
+
+    /**
+     * @return the offsets of every node of the tree with the given root
+     */
+    private List<Long> pagesOf(long rootOffset) {
+        List<Long> pages = new ArrayList<>();
+        ArrayDeque<Long> pending = new ArrayDeque<>();
+        pending.add(rootOffset);
+        while (!pending.isEmpty()) {
+            long page = pending.poll();
+            pages.add(page);
+            PersistentBPlusTreeNode node = (PersistentBPlusTreeNode) cache.get(page);
+            if (!node.isLeaf()) {
+                for (int i = 0; i <= node.numKeys; i++) {
+                    pending.add(node.childOffsets[i]);
+                }
+            }
+        }
+        return pages;
+    }
+}
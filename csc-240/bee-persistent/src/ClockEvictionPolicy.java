@@ -0,0 +1,45 @@
+import java.util.function.IntPredicate;
+
+/**
+ * The CLOCK (second chance) approximation of LRU.
+ * Every access sets a reference bit; the clock hand sweeps the frames, clearing
+ * reference bits as it goes, and evicts the first evictable frame whose bit is already clear.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final boolean[] referenced;
+    private int hand;
+
+    public ClockEvictionPolicy(int capacity) {
+        this.referenced = new boolean[capacity];
+        this.hand = 0;
+    }
+
+    @Override
+    public void recordAccess(int frame) {
+        referenced[frame] = true;
+    }
+
+    @Override
+    public void remove(int frame) {
+        referenced[frame] = false;
+    }
+
+    @Override
+    public int chooseVictim(IntPredicate evictable) {
+        // Two full sweeps are enough: the first one clears every reference bit.
+        for (int i = 0; i < 2 * referenced.length; i++) {
+            int frame = hand;
+            hand = (hand + 1) % referenced.length;
+            if (!evictable.test(frame)) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,321 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * A B-tree that many threads can search, insert into and remove from at the same time.
+ *
+ * Every node gets a read/write latch, and operations move down the tree with latch crabbing:
+ * the child is latched before the parent is released, so no thread ever sees a node halfway
+ * through a split or merge. Because splits and merges are done proactively on the way down
+ * (the same one-pass algorithm as {@link BTree}), a writer never has to go back up, and it only
+ * ever holds the latch of one node plus the children it is changing:
+ * <ul>
+ *   <li>search holds read latches on a parent and a child;</li>
+ *   <li>insert holds write latches on a parent and a child, plus the new sibling of a split;</li>
+ *   <li>remove holds write latches on a parent, a child and the sibling it borrows from or merges with.</li>
+ * </ul>
+ * The root pointer has its own latch, which a writer keeps only while the root might split or collapse.
+ *
+ * The tree drives {@link BTreeNode#splitChild}, {@link BTreeNode#borrowFromPrev},
+ * {@link BTreeNode#borrowFromNext} and {@link BTreeNode#merge} itself instead of calling the
+ * recursive {@link BTreeNode#insertNonFull} and {@link BTreeNode#remove} on internal nodes.
+ * A value that sits in an internal node is removed by pushing it down one level at a time
+ * (with a borrow or a merge) until it reaches a leaf, or by replacing it with its predecessor
+ * when both neighbouring children are full.
+ *
+ * Latches are kept in a map keyed by node identity, so every node must be a single object in
+ * memory and must not override {@code equals}. This holds for {@link IntegerBTreeNode}.
+ * Besides the node-level operations above, the nodes must support {@link BTreeNode#setValueAt}
+ * and insertNonFull and remove on leaves. B+-tree nodes keep a different layout and are not supported.
+ */
+public class ConcurrentBTree<T extends BTreeNode> {
+
+    private final int t;
+    private final Function<Boolean, T> nodeCreator;
+    private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<BTreeNode, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+    private BTreeNode root;
+
+    /**
+     * Create a new, empty concurrent B-tree.
+     * @param t the minimum degree
+     * @param nodeCreator a function that creates new nodes (given whether the node is a leaf)
+     */
+    public ConcurrentBTree(int t, Function<Boolean, T> nodeCreator) {
+        this(t, nodeCreator.apply(true), nodeCreator);
+    }
+
+    /**
+     * Create a concurrent B-tree over an existing root.
+     * @param t the minimum degree
+     * @param root the root node
+     * @param nodeCreator a function that creates new nodes (given whether the node is a leaf)
+     */
+    public ConcurrentBTree(int t, T root, Function<Boolean, T> nodeCreator) {
+        if (root == null) {
+            throw new IllegalArgumentException("Root must not be null");
+        }
+        if (root.keepsValuesInLeaves()) {
+            throw new IllegalArgumentException("B+-tree nodes are not supported by ConcurrentBTree");
+        }
+        this.t = t;
+        this.root = root;
+        this.nodeCreator = nodeCreator;
+    }
+
+    public boolean search(int value) {
+        rootLatch.readLock().lock();
+        BTreeNode node = root;
+        ReentrantReadWriteLock latch = latch(node);
+        latch.readLock().lock();
+        rootLatch.readLock().unlock();
+
+        while (true) {
+            int i = lowerBound(node, value);
+            if (i < node.getNumValues() && node.getValueAt(i) == value) {
+                latch.readLock().unlock();
+                return true;
+            }
+            if (node.isLeaf()) {
+                latch.readLock().unlock();
+                return false;
+            }
+            BTreeNode child = node.getChildren()[i];
+            ReentrantReadWriteLock childLatch = latch(child);
+            childLatch.readLock().lock();
+            latch.readLock().unlock();
+            node = child;
+            latch = childLatch;
+        }
+    }
+
+    public void insert(int value) {
+        rootLatch.writeLock().lock();
+        BTreeNode node = root;
+        writeLatch(node).lock();
+        if (node.getNumValues() == 2 * t - 1) {
+            // Root is full → must split and grow height
+            BTreeNode newRoot = nodeCreator.apply(false);
+            writeLatch(newRoot).lock();
+            newRoot.getChildren()[0] = node;
+            newRoot.splitChild(0, node);
+            writeLatch(node).unlock();
+            root = newRoot;
+            node = newRoot;
+        }
+        // The root is not full, so it cannot split again during this insert.
+        rootLatch.writeLock().unlock();
+
+        while (!node.isLeaf()) {
+            int i = upperBound(node, value);
+            BTreeNode child = node.getChildren()[i];
+            writeLatch(child).lock();
+            if (child.getNumValues() == 2 * t - 1) {
+                node.splitChild(i, child);
+                if (value > node.getValueAt(i)) {
+                    writeLatch(child).unlock();
+                    child = node.getChildren()[i + 1];
+                    writeLatch(child).lock();
+                }
+            }
+            writeLatch(node).unlock();
+            node = child;
+        }
+        node.insertNonFull(value);
+        writeLatch(node).unlock();
+    }
+
+    public void remove(int value) {
+        rootLatch.writeLock().lock();
+        BTreeNode node = root;
+        writeLatch(node).lock();
+        // A root with two or more values can lose at most one to a merge, so it cannot collapse.
+        boolean holdingRoot = !node.isLeaf() && node.getNumValues() < 2;
+        if (!holdingRoot) {
+            rootLatch.writeLock().unlock();
+        }
+
+        while (!node.isLeaf()) {
+            BTreeNode next = stepDown(node, value);
+            if (holdingRoot) {
+                boolean collapsed = node.getNumValues() == 0;
+                if (collapsed) {
+                    // The root's last value was merged into its only child.
+                    root = next;
+                }
+                rootLatch.writeLock().unlock();
+                holdingRoot = false;
+                if (collapsed) {
+                    release(node);
+                    node = next;
+                    continue;
+                }
+            }
+            writeLatch(node).unlock();
+            if (next == null) {
+                return;
+            }
+            node = next;
+        }
+        node.remove(value);
+        writeLatch(node).unlock();
+    }
+
+    /**
+     * Takes one step of a remove down from {@code node}, whose write latch the caller holds.
+     * @return the write-latched child to continue in, which has at least t values,
+     * or null if the value was found in {@code node} and has already been removed
+     */
+    private BTreeNode stepDown(BTreeNode node, int value) {
+        int i = lowerBound(node, value);
+        if (i < node.getNumValues() && node.getValueAt(i) == value) {
+            return pushDown(node, i);
+        }
+        return fillChild(node, i);
+    }
+
+    /**
+     * Moves the value at {@code index} of an internal node into one of its two neighbouring
+     * children with a borrow or a merge, so the remove can go on one level down.
+     * If both children are full, neither can take it; the value is then replaced by its
+     * predecessor, which is removed from the left subtree instead.
+     */
+    private BTreeNode pushDown(BTreeNode node, int index) {
+        BTreeNode[] children = node.getChildren();
+        BTreeNode left = children[index];
+        BTreeNode right = children[index + 1];
+        writeLatch(left).lock();
+        writeLatch(right).lock();
+        int max = 2 * t - 1;
+        if (right.getNumValues() >= t && left.getNumValues() < max) {
+            node.borrowFromNext(index); // the value becomes the last value of left
+            writeLatch(right).unlock();
+            return left;
+        }
+        if (left.getNumValues() >= t && right.getNumValues() < max) {
+            node.borrowFromPrev(index + 1); // the value becomes the first value of right
+            writeLatch(left).unlock();
+            return right;
+        }
+        if (left.getNumValues() < t && right.getNumValues() < t) {
+            node.merge(index);
+            release(right);
+            return left;
+        }
+        writeLatch(right).unlock();
+        node.setValueAt(index, removeLast(left));
+        return null;
+    }
+
+    /**
+     * Removes and returns the largest value of a subtree whose write-latched root has at least t values.
+     */
+    private int removeLast(BTreeNode node) {
+        while (!node.isLeaf()) {
+            BTreeNode next = fillChild(node, node.getNumValues());
+            writeLatch(node).unlock();
+            node = next;
+        }
+        int last = node.getValueAt(node.getNumValues() - 1);
+        node.remove(last);
+        writeLatch(node).unlock();
+        return last;
+    }
+
+    /**
+     * Makes sure the child at {@code index} has at least t values, borrowing from or merging
+     * with a sibling if needed, and returns it write-latched.
+     */
+    private BTreeNode fillChild(BTreeNode node, int index) {
+        int n = node.getNumValues();
+        BTreeNode[] children = node.getChildren();
+        BTreeNode child = children[index];
+        writeLatch(child).lock();
+        if (child.getNumValues() >= t) {
+            return child;
+        }
+        BTreeNode prev = index > 0 ? children[index - 1] : null;
+        if (prev != null) {
+            writeLatch(prev).lock();
+            if (prev.getNumValues() >= t) {
+                node.borrowFromPrev(index);
+                writeLatch(prev).unlock();
+                return child;
+            }
+        }
+        BTreeNode next = index < n ? children[index + 1] : null;
+        if (next != null) {
+            writeLatch(next).lock();
+            if (next.getNumValues() >= t) {
+                node.borrowFromNext(index);
+                writeLatch(next).unlock();
+            } else {
+                node.merge(index);
+                release(next);
+            }
+            if (prev != null) {
+                writeLatch(prev).unlock();
+            }
+            return child;
+        }
+        node.merge(index - 1);
+        release(child);
+        return prev;
+    }
+
+    /**
+     * Unlatches a node that a merge just removed from the tree and forgets its latch.
+     * Nobody else can be waiting for it: reaching it would need the parent's latch.
+     */
+    private void release(BTreeNode removed) {
+        writeLatch(removed).unlock();
+        latches.remove(removed);
+    }
+
+    /**
+     * @return the index of the first value in the node that is not smaller than {@code value}.
+     */
+    private static int lowerBound(BTreeNode node, int value) {
+        int i = 0;
+        int n = node.getNumValues();
+        while (i < n && node.getValueAt(i) < value) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the first value in the node that is larger than {@code value}.
+     */
+    private static int upperBound(BTreeNode node, int value) {
+        int i = 0;
+        int n = node.getNumValues();
+        while (i < n && node.getValueAt(i) <= value) {
+            i++;
+        }
+        return i;
+    }
+
+    private ReentrantReadWriteLock latch(BTreeNode node) {
+        ReentrantReadWriteLock latch = latches.get(node);
+        return latch != null ? latch : latches.computeIfAbsent(node, key -> new ReentrantReadWriteLock());
+    }
+
+    private ReentrantReadWriteLock.WriteLock writeLatch(BTreeNode node) {
+        return latch(node).writeLock();
+    }
+
+    /**
+     * Returns the values in sorted order. Nodes are not latched, so only call this while no
+     * other thread is using the tree.
+     */
+    public String traverse() {
+        rootLatch.readLock().lock();
+        try {
+            return root.traverse();
+        } finally {
+            rootLatch.readLock().unlock();
+        }
+    }
+}
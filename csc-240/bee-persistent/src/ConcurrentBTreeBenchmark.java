@@ -0,0 +1,122 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Measures the throughput of a mixed search/insert/remove workload on a {@link BTree} behind one
+ * global lock and on a {@link ConcurrentBTree}, for an increasing number of threads.
+ *
+ * Usage: {@code java ConcurrentBTreeBenchmark [degree] [seconds] [searchPercent]}
+ * (defaults: 16, 2, 90). Inserts and removes split the remaining operations evenly.
+ */
+public class ConcurrentBTreeBenchmark {
+
+    private static final int KEY_RANGE = 200_000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws InterruptedException {
+        int degree = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2.0;
+        int searchPercent = args.length > 2 ? Integer.parseInt(args[2]) : 90;
+
+        if (!nodesWork(degree)) {
+            System.out.println("IntegerBTreeNode does not keep its values yet; implement it before running this benchmark.");
+            return;
+        }
+        System.out.printf("degree=%d, %.1fs per run, %d%% searches, %d cores%n",
+                degree, seconds, searchPercent, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %18s %18s %8s%n", "threads", "global lock ops/s", "crabbing ops/s", "speedup");
+        for (int threads : THREAD_COUNTS) {
+            BTree<IntegerBTreeNode> locked =
+                    new BTree<>(degree, new IntegerBTreeNode(degree, true), isLeaf -> new IntegerBTreeNode(degree, isLeaf));
+            Object lock = new Object();
+            double lockedOps = run(threads, seconds, searchPercent,
+                    value -> { synchronized (lock) { return locked.search(value); } },
+                    value -> { synchronized (lock) { locked.insert(value); } },
+                    value -> { synchronized (lock) { locked.remove(value); } });
+
+            ConcurrentBTree<IntegerBTreeNode> concurrent =
+                    new ConcurrentBTree<>(degree, isLeaf -> new IntegerBTreeNode(degree, isLeaf));
+            double concurrentOps = run(threads, seconds, searchPercent,
+                    concurrent::search, concurrent::insert, concurrent::remove);
+
+            System.out.printf("%8d %18.0f %18.0f %7.2fx%n", threads, lockedOps, concurrentOps,
+                    concurrentOps / lockedOps);
+        }
+    }
+
+    /**
+     * Inserts and searches a few thousand values single-threaded, so the benchmark does not time a
+     * node class that is still a stub.
+     */
+    private static boolean nodesWork(int degree) {
+        try {
+            BTree<IntegerBTreeNode> tree =
+                    new BTree<>(degree, new IntegerBTreeNode(degree, true), isLeaf -> new IntegerBTreeNode(degree, isLeaf));
+            for (int value = 0; value < 5000; value++) {
+                tree.insert(value);
+            }
+            for (int value = 0; value < 5000; value++) {
+                if (!tree.search(value)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads half of the key range, then lets the threads run random operations for the given time.
+     * @return the number of operations per second over all threads
+     */
+    private static double run(int threads, double seconds, int searchPercent,
+                              IntPredicate search, IntConsumer insert, IntConsumer remove)
+            throws InterruptedException {
+        for (int value = 0; value < KEY_RANGE; value += 2) {
+            insert.accept(value);
+        }
+        LongAdder operations = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            workers[w] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (running.get()) {
+                    int value = random.nextInt(KEY_RANGE);
+                    int dice = random.nextInt(100);
+                    if (dice < searchPercent) {
+                        search.test(value);
+                    } else if (dice % 2 == 0) {
+                        insert.accept(value);
+                    } else {
+                        remove.accept(value);
+                    }
+                    done++;
+                }
+                operations.add(done);
+            });
+            workers[w].start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - began) / 1e9;
+        return operations.sum() / elapsed;
+    }
+}
@@ -0,0 +1,566 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent B-tree of int values that never overwrites a committed page (shadow paging).
+ *
+ * Pages use the {@link NodePage} format, so the file can be read by
+ * {@link PersistentIntegerBTreeNode} and checked with {@link BTreeVerifier}. An insert or remove
+ * copies every node it changes, from the root down to the leaf, to a fresh page; nodes it does not
+ * touch are shared with the previous version. Further changes before the next {@link #commit()}
+ * reuse those fresh pages in place. {@code commit()} writes them, forces the file and then stores
+ * the new root offset in the {@link FreeListPageAllocator} header, a single small write: after a
+ * crash the file holds either the old tree or the new one, never a mix.
+ *
+ * Readers call {@link #openSnapshot()} and get a {@link Snapshot} of the last committed version.
+ * A snapshot only follows offsets from its own root, and committed pages are never written again
+ * while a snapshot can reach them, so readers take no locks and never see a writer's changes.
+ * The pages a commit replaces are put aside with that commit's version number and handed back to
+ * the allocator once every snapshot older than that version has been closed.
+ *
+ * There is one writer at a time: the mutating methods are synchronized.
+ */
+public class CopyOnWriteBTree {
+
+    private final int t;
+    private final PageFile pageFile;
+    private final FreeListPageAllocator allocator;
+    private final int pageSize;
+    private volatile KeySearch keySearch;
+
+    private volatile Version committed;
+    private final Set<Snapshot> snapshots = ConcurrentHashMap.newKeySet();
+
+    // Writer state, guarded by this.
+    private long workingRoot;
+    private final Map<Long, Page> fresh = new HashMap<>(); // pages allocated since the last commit
+    private final List<Long> replaced = new ArrayList<>(); // committed pages the next commit makes unreachable
+    private final ArrayDeque<Retired> retired = new ArrayDeque<>();
+
+    private CopyOnWriteBTree(PageFile pageFile, FreeListPageAllocator allocator, int t) {
+        if (t < 2 || t > PersistentIntegerBTreeNode.PAGE_DEGREE) {
+            throw new IllegalArgumentException("Minimum degree must be between 2 and "
+                    + PersistentIntegerBTreeNode.PAGE_DEGREE + ", got " + t);
+        }
+        this.t = t;
+        this.pageFile = pageFile;
+        this.allocator = allocator;
+        this.pageSize = NodePage.PAGE_SIZE;
+        this.keySearch = KeySearch.forDegree(t);
+        this.committed = new Version(allocator.getRootOffset(), 0);
+        this.workingRoot = committed.rootOffset;
+    }
+
+    /**
+     * Formats a new, empty tree file.
+     * @param pageFile the file to format; anything already in it is lost
+     * @param t the minimum degree, at most {@link PersistentIntegerBTreeNode#PAGE_DEGREE}
+     */
+    public static CopyOnWriteBTree create(PageFile pageFile, int t) throws IOException {
+        return new CopyOnWriteBTree(pageFile, FreeListPageAllocator.create(pageFile, NodePage.PAGE_SIZE), t);
+    }
+
+    /**
+     * Opens a tree file written by a {@code CopyOnWriteBTree}, at its last committed version.
+     * @param pageFile the file to open
+     * @param t the minimum degree the tree was created with
+     * @throws IOException if the file has no valid header
+     */
+    public static CopyOnWriteBTree open(PageFile pageFile, int t) throws IOException {
+        FreeListPageAllocator allocator = FreeListPageAllocator.open(pageFile);
+        if (allocator.getPageSize() != NodePage.PAGE_SIZE) {
+            throw new IOException("Page size " + allocator.getPageSize() + " is not a node page file");
+        }
+        return new CopyOnWriteBTree(pageFile, allocator, t);
+    }
+
+    /**
+     * Returns a read-only view of the last committed version. The view does not change when the
+     * tree does; close it so the pages it holds on to can be reused.
+     */
+    public Snapshot openSnapshot() {
+        while (true) {
+            Version version = committed;
+            Snapshot snapshot = new Snapshot(this, version.rootOffset, version.number);
+            snapshots.add(snapshot);
+            // A commit that published a newer version before we registered may already have
+            // reclaimed pages of this one; take the newer version instead.
+            if (committed == version) {
+                return snapshot;
+            }
+            snapshots.remove(snapshot);
+        }
+    }
+
+    void release(Snapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    /**
+     * @return whether the value is in the tree, including changes that are not committed yet.
+     */
+    public synchronized boolean search(int value) {
+        long offset = workingRoot;
+        while (offset >= 0) {
+            Page node = read(offset);
+            int i = lowerBound(node, value);
+            if (i < node.count && node.keys[i] == value) {
+                return true;
+            }
+            offset = node.leaf ? -1 : node.children[i];
+        }
+        return false;
+    }
+
+    /**
+     * Inserts a value. It becomes visible to new snapshots at the next {@link #commit()}.
+     */
+    public synchronized void insert(int value) {
+        Page root;
+        if (workingRoot < 0) {
+            root = newPage(true);
+        } else {
+            root = read(workingRoot);
+            if (root.count == 2 * t - 1) {
+                Page newRoot = newPage(false);
+                newRoot.children[0] = root.offset;
+                splitChild(newRoot, 0, root);
+                root = newRoot;
+            } else {
+                root = own(root);
+            }
+        }
+        workingRoot = root.offset;
+
+        Page node = root;
+        while (!node.leaf) {
+            int i = upperBound(node, value);
+            Page child = read(node.children[i]);
+            if (child.count == 2 * t - 1) {
+                splitChild(node, i, child);
+                if (value >= node.keys[i]) {
+                    i++;
+                }
+                child = read(node.children[i]);
+            } else {
+                child = own(child);
+                node.children[i] = child.offset;
+            }
+            node = child;
+        }
+        int i = node.count;
+        while (i > 0 && node.keys[i - 1] > value) {
+            node.keys[i] = node.keys[i - 1];
+            i--;
+        }
+        node.keys[i] = value;
+        node.count++;
+    }
+
+    /**
+     * Removes one occurrence of a value. It disappears for new snapshots at the next {@link #commit()}.
+     * @return false if the value was not in the tree
+     */
+    public synchronized boolean remove(int value) {
+        if (!search(value)) {
+            return false;
+        }
+        Page root = own(read(workingRoot));
+        workingRoot = root.offset;
+        delete(root, value);
+        if (root.count == 0 && !root.leaf) {
+            workingRoot = root.children[0];
+            drop(root);
+        }
+        return true;
+    }
+
+    /**
+     * Makes every change since the last commit durable and visible to new snapshots, then reclaims
+     * replaced pages that no open snapshot can reach any more.
+     */
+    public synchronized void commit() throws IOException {
+        if (fresh.isEmpty() && replaced.isEmpty() && workingRoot == committed.rootOffset) {
+            return;
+        }
+        for (Page page : fresh.values()) {
+            pageFile.write(page.offset, NodePage.encode(page.leaf, page.keys, page.count, page.children, pageSize, 0));
+        }
+        // Every new page must be on disk before the header points at them.
+        pageFile.force();
+        allocator.setRootOffset(workingRoot);
+        allocator.sync();
+
+        Version version = new Version(workingRoot, committed.number + 1);
+        committed = version;
+        if (!replaced.isEmpty()) {
+            long[] offsets = new long[replaced.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = replaced.get(i);
+            }
+            retired.add(new Retired(version.number, offsets));
+            replaced.clear();
+        }
+        fresh.clear();
+        reclaim();
+    }
+
+    /**
+     * Throws away every change since the last commit.
+     */
+    public synchronized void rollback() {
+        for (long offset : fresh.keySet()) {
+            allocator.free(offset);
+        }
+        fresh.clear();
+        replaced.clear();
+        workingRoot = committed.rootOffset;
+    }
+
+    /**
+     * Hands the pages that no open snapshot can reach back to the allocator. {@link #commit()}
+     * calls this; call it yourself to free space after closing snapshots while no writes happen.
+     * Freed pages are recorded on disk by the next commit.
+     * @return the number of pages freed
+     */
+    public synchronized int reclaim() {
+        long oldest = committed.number;
+        for (Snapshot snapshot : snapshots) {
+            oldest = Math.min(oldest, snapshot.getVersion());
+        }
+        int freed = 0;
+        // Pages retired by version v are reachable only from versions before v.
+        while (!retired.isEmpty() && retired.peekFirst().version <= oldest) {
+            for (long offset : retired.pollFirst().offsets) {
+                allocator.free(offset);
+                freed++;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return the root offset of the last committed version, or -1 if nothing was committed yet.
+     */
+    public long getRootOffset() {
+        return committed.rootOffset;
+    }
+
+    /**
+     * @return the number of commits since the tree was opened.
+     */
+    public long getVersion() {
+        return committed.number;
+    }
+
+    public int getOpenSnapshotCount() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return the number of replaced pages still waiting for older snapshots to close.
+     */
+    public synchronized int getRetiredPageCount() {
+        int count = 0;
+        for (Retired r : retired) {
+            count += r.offsets.length;
+        }
+        return count;
+    }
+
+    public FreeListPageAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Sets how keys are located within a page, for the writer and for snapshots. The default is
+     * {@link KeySearch#forDegree(int)}.
+     */
+    public void setKeySearch(KeySearch keySearch) {
+        this.keySearch = keySearch;
+    }
+
+    public KeySearch getKeySearch() {
+        return keySearch;
+    }
+
+    public int getMinimumDegree() {
+        return t;
+    }
+
+    // -------- Deletion --------
+
+    /**
+     * Removes a value from the subtree of an owned node. Every node it descends into is first
+     * given at least t values, so the removal never has to walk back up.
+     */
+    private void delete(Page node, int value) {
+        while (true) {
+            int i = lowerBound(node, value);
+            if (i < node.count && node.keys[i] == value) {
+                if (node.leaf) {
+                    removeKey(node, i);
+                    return;
+                }
+                Page left = read(node.children[i]);
+                if (left.count >= t) {
+                    left = own(left);
+                    node.children[i] = left.offset;
+                    value = max(left);
+                    node.keys[i] = value;
+                    node = left;
+                    continue;
+                }
+                Page right = read(node.children[i + 1]);
+                if (right.count >= t) {
+                    right = own(right);
+                    node.children[i + 1] = right.offset;
+                    value = min(right);
+                    node.keys[i] = value;
+                    node = right;
+                    continue;
+                }
+                node = merge(node, i, left, right);
+                continue;
+            }
+            if (node.leaf) {
+                return;
+            }
+            node = fill(node, i);
+        }
+    }
+
+    /**
+     * Makes sure child i of an owned node has at least t values, borrowing from a sibling or
+     * merging with one, and returns the owned child.
+     */
+    private Page fill(Page parent, int i) {
+        Page child = read(parent.children[i]);
+        if (child.count >= t) {
+            child = own(child);
+            parent.children[i] = child.offset;
+            return child;
+        }
+        if (i > 0) {
+            Page left = read(parent.children[i - 1]);
+            if (left.count >= t) {
+                left = own(left);
+                child = own(child);
+                System.arraycopy(child.keys, 0, child.keys, 1, child.count);
+                if (!child.leaf) {
+                    System.arraycopy(child.children, 0, child.children, 1, child.count + 1);
+                    child.children[0] = left.children[left.count];
+                }
+                child.keys[0] = parent.keys[i - 1];
+                parent.keys[i - 1] = left.keys[left.count - 1];
+                left.count--;
+                child.count++;
+                parent.children[i - 1] = left.offset;
+                parent.children[i] = child.offset;
+                return child;
+            }
+        }
+        if (i < parent.count) {
+            Page right = read(parent.children[i + 1]);
+            if (right.count >= t) {
+                right = own(right);
+                child = own(child);
+                child.keys[child.count] = parent.keys[i];
+                if (!child.leaf) {
+                    child.children[child.count + 1] = right.children[0];
+                    System.arraycopy(right.children, 1, right.children, 0, right.count);
+                }
+                parent.keys[i] = right.keys[0];
+                System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+                right.count--;
+                child.count++;
+                parent.children[i] = child.offset;
+                parent.children[i + 1] = right.offset;
+                return child;
+            }
+        }
+        if (i > 0) {
+            return merge(parent, i - 1, read(parent.children[i - 1]), child);
+        }
+        return merge(parent, i, child, read(parent.children[i + 1]));
+    }
+
+    /**
+     * Merges children i and i + 1 of an owned node around value i and returns the owned result.
+     */
+    private Page merge(Page parent, int i, Page left, Page right) {
+        left = own(left);
+        left.keys[left.count] = parent.keys[i];
+        System.arraycopy(right.keys, 0, left.keys, left.count + 1, right.count);
+        if (!left.leaf) {
+            System.arraycopy(right.children, 0, left.children, left.count + 1, right.count + 1);
+        }
+        left.count += right.count + 1;
+        System.arraycopy(parent.keys, i + 1, parent.keys, i, parent.count - i - 1);
+        System.arraycopy(parent.children, i + 2, parent.children, i + 1, parent.count - i - 1);
+        parent.count--;
+        parent.children[i] = left.offset;
+        drop(right);
+        return left;
+    }
+
+    private int max(Page node) {
+        while (!node.leaf) {
+            node = read(node.children[node.count]);
+        }
+        return node.keys[node.count - 1];
+    }
+
+    private int min(Page node) {
+        while (!node.leaf) {
+            node = read(node.children[0]);
+        }
+        return node.keys[0];
+    }
+
+    private static void removeKey(Page node, int i) {
+        System.arraycopy(node.keys, i + 1, node.keys, i, node.count - i - 1);
+        node.count--;
+    }
+
+    // -------- Pages --------
+
+    /**
+     * Splits the full child i of an owned node into two owned halves.
+     */
+    private void splitChild(Page parent, int i, Page full) {
+        Page left = own(full);
+        Page right = newPage(left.leaf);
+        right.count = t - 1;
+        System.arraycopy(left.keys, t, right.keys, 0, t - 1);
+        if (!left.leaf) {
+            System.arraycopy(left.children, t, right.children, 0, t);
+        }
+        left.count = t - 1;
+        System.arraycopy(parent.keys, i, parent.keys, i + 1, parent.count - i);
+        System.arraycopy(parent.children, i + 1, parent.children, i + 2, parent.count - i);
+        parent.keys[i] = left.keys[t - 1];
+        parent.children[i] = left.offset;
+        parent.children[i + 1] = right.offset;
+        parent.count++;
+    }
+
+    /**
+     * Returns a page the writer may change: the page itself if it was allocated since the last
+     * commit, otherwise a copy moved to a fresh page. The caller must point the parent at the
+     * returned page's offset.
+     */
+    private Page own(Page page) {
+        if (fresh.get(page.offset) == page) {
+            return page;
+        }
+        replaced.add(page.offset);
+        page.offset = allocator.allocate();
+        fresh.put(page.offset, page);
+        return page;
+    }
+
+    private Page newPage(boolean leaf) {
+        Page page = new Page(t);
+        page.leaf = leaf;
+        page.offset = allocator.allocate();
+        fresh.put(page.offset, page);
+        return page;
+    }
+
+    /**
+     * Forgets a page that is no longer part of the working tree.
+     */
+    private void drop(Page page) {
+        if (fresh.remove(page.offset) != null) {
+            allocator.free(page.offset);
+        } else {
+            replaced.add(page.offset);
+        }
+    }
+
+    /**
+     * Reads a page for the writer: a fresh page from memory, a committed one from disk.
+     * The committed copy is private to the caller until it is passed to {@link #own(Page)}.
+     */
+    private Page read(long offset) {
+        Page page = fresh.get(offset);
+        return page != null ? page : readCommitted(offset);
+    }
+
+    /**
+     * Reads and decodes a committed page. Safe to call from any thread.
+     */
+    Page readCommitted(long offset) {
+        try {
+            ByteBuffer buffer = pageFile.read(offset, pageSize);
+            Page page = new Page(t);
+            NodePage.decode(buffer, page.keys, page.children, pageSize);
+            page.leaf = NodePage.isLeaf(buffer);
+            page.count = NodePage.count(buffer);
+            page.offset = offset;
+            return page;
+        } catch (CorruptPageException e) {
+            throw e.atOffset(offset);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read node from disk", e);
+        }
+    }
+
+    /**
+     * @return the index of the first value that is at least {@code value}.
+     */
+    int lowerBound(Page node, int value) {
+        return keySearch.lowerBound(node.keys, node.count, value);
+    }
+
+    /**
+     * @return the index of the first value that is greater than {@code value}.
+     */
+    private int upperBound(Page node, int value) {
+        return keySearch.upperBound(node.keys, node.count, value);
+    }
+
+    /**
+     * A decoded node page.
+     */
+    static final class Page {
+        final int[] keys;
+        final long[] children;
+        int count;
+        boolean leaf;
+        long offset;
+
+        Page(int t) {
+            this.keys = new int[2 * t - 1];
+            this.children = new long[2 * t];
+        }
+    }
+
+    private static final class Version {
+        final long rootOffset;
+        final long number;
+
+        Version(long rootOffset, long number) {
+            this.rootOffset = rootOffset;
+            this.number = number;
+        }
+    }
+
+    private static final class Retired {
+        final long version; // the first version that cannot reach the pages
+        final long[] offsets;
+
+        Retired(long version, long[] offsets) {
+            this.version = version;
+            this.offsets = offsets;
+        }
+    }
+}
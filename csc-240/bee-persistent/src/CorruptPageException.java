@@ -0,0 +1,38 @@
+/**
+ * Thrown when a page read from disk fails its checksum or does not decode, e.g. after a torn
+ * write or bit rot. The page is never turned into a node, so the damage cannot spread into
+ * the rest of the tree.
+ */
+public class CorruptPageException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+
+    public CorruptPageException(String reason) {
+        this(-1, reason, null);
+    }
+
+    public CorruptPageException(long offset, String reason, Throwable cause) {
+        super((offset >= 0 ? "Corrupt page at offset " + offset + ": " : "Corrupt page: ") + reason, cause);
+        this.offset = offset;
+    }
+
+    /**
+     * @return the file offset of the page, or -1 if it is not known.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return this exception with the offset of the page filled in.
+     */
+    public CorruptPageException atOffset(long offset) {
+        if (this.offset >= 0) {
+            return this;
+        }
+        String reason = getMessage().substring("Corrupt page: ".length());
+        return new CorruptPageException(offset, reason, this);
+    }
+}
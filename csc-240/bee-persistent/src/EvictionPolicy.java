@@ -0,0 +1,27 @@
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which frame of a {@link PageCache} gets reused when the cache is full.
+ * Frames are identified by their index in the cache, from 0 to capacity - 1.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called whenever the page held by a frame is loaded or requested again.
+     * @param frame the index of the frame that was accessed.
+     */
+    void recordAccess(int frame);
+
+    /**
+     * Called when a frame is emptied so that its history can be forgotten.
+     * @param frame the index of the frame that no longer holds a page.
+     */
+    void remove(int frame);
+
+    /**
+     * Picks the frame to reuse.
+     * @param evictable tells the policy whether a frame may be evicted (it is occupied and not pinned).
+     * @return the index of the victim frame, or -1 if no frame can be evicted.
+     */
+    int chooseVictim(IntPredicate evictable);
+}
@@ -0,0 +1,161 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts a stream of ints that may not fit in memory (external merge sort).
+ * The input is cut into runs of {@code runSize} values; each run is sorted in memory and, if
+ * there is more than one, spilled to a temporary file. The runs are then merged lazily with a
+ * priority queue, one buffered value per run.
+ */
+public class ExternalIntSorter {
+
+    public static final int DEFAULT_RUN_SIZE = 1 << 22; // 16 MiB of ints
+
+    private final int runSize;
+    private final File tempDirectory;
+
+    public ExternalIntSorter() {
+        this(DEFAULT_RUN_SIZE, null);
+    }
+
+    /**
+     * @param runSize how many values to sort in memory at once
+     * @param tempDirectory where to write sorted runs, or null for the system default
+     */
+    public ExternalIntSorter(int runSize, File tempDirectory) {
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("Run size must be positive");
+        }
+        this.runSize = runSize;
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Consumes the input and returns its values in non-decreasing order.
+     * Temporary files are deleted as soon as their run has been fully merged.
+     * @param values the values to sort
+     * @return an iterator over the sorted values
+     */
+    public PrimitiveIterator.OfInt sort(PrimitiveIterator.OfInt values) {
+        int[] run = new int[Math.min(runSize, 1024)];
+        int count = 0;
+        ArrayList<File> runs = new ArrayList<>();
+        try {
+            while (values.hasNext()) {
+                if (count == run.length) {
+                    if (count == runSize) {
+                        runs.add(spill(run, count));
+                        count = 0;
+                    } else {
+                        run = Arrays.copyOf(run, Math.min(runSize, run.length * 2));
+                    }
+                }
+                run[count++] = values.nextInt();
+            }
+            Arrays.sort(run, 0, count);
+            if (runs.isEmpty()) {
+                return Arrays.stream(run, 0, count).iterator();
+            }
+            if (count > 0) {
+                runs.add(spill(run, count));
+            }
+            return new MergeIterator(runs);
+        } catch (IOException e) {
+            for (File file : runs) {
+                file.delete();
+            }
+            throw new UncheckedIOException("Failed to spill a sorted run", e);
+        }
+    }
+
+    private File spill(int[] run, int count) throws IOException {
+        Arrays.sort(run, 0, count);
+        File file = File.createTempFile("btree-run", ".bin", tempDirectory);
+        file.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (int i = 0; i < count; i++) {
+                out.writeInt(run[i]);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * One spilled run being merged: the next value it will produce and the rest of its file.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        final File file;
+        final DataInputStream in;
+        int head;
+
+        RunReader(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                head = in.readInt();
+                return true;
+            } catch (EOFException e) {
+                in.close();
+                file.delete();
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return Integer.compare(head, other.head);
+        }
+    }
+
+    private static class MergeIterator implements PrimitiveIterator.OfInt {
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<>();
+
+        MergeIterator(ArrayList<File> runs) throws IOException {
+            for (File file : runs) {
+                RunReader reader = new RunReader(file);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public int nextInt() {
+            RunReader reader = queue.poll();
+            if (reader == null) {
+                throw new NoSuchElementException();
+            }
+            int value = reader.head;
+            try {
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read a sorted run", e);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * A {@link PageAllocator} that reuses the pages of removed nodes.
+ *
+ * The first page of the file is a header; nodes live in the pages after it. Freed pages go on a
+ * free list and are handed out again before the file grows. When it does have to grow, the file
+ * is extended by a whole chunk of pages at once rather than one page per new node.
+ *
+ * The free list is kept in memory and written to disk by {@link #sync()}: each free page then
+ * holds the offset of the next one, and the header holds the first. Until {@code sync()} runs,
+ * a freed page may still be part of the tree on disk, so it is held back: nothing is written
+ * into it and {@link #allocate()} does not hand it out before the next sync. The header
+ * is marked unclean on the first change after a sync. If the file is opened while unclean (after
+ * a crash), the free list is dropped and every page up to the end of the file counts as used:
+ * space can leak but a page is never handed out twice. {@link PersistentBPlusTreeNode#vacuum()}
+ * gets the leaked space back.
+ *
+ * Header layout: magic (4 bytes), version (4), page size (4), clean flag (4), high-water mark (8),
+ * capacity (8), first free page (8), free page count (8), root offset (8).
+ */
+public class FreeListPageAllocator implements PageAllocator {
+
+    public static final int DEFAULT_CHUNK_PAGES = 256;
+
+    private static final int MAGIC = 0x42545245; // "BTRE"
+    private static final int FREE_PAGE_MAGIC = 0x46524545; // "FREE"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8 + 8;
+    private static final int FREE_LINK_SIZE = 4 + 8;
+
+    private final PageFile pageFile;
+    private final int pageSize;
+    private final int chunkPages;
+
+    private long highWater; // end of the last page ever handed out
+    private long capacity; // end of the space reserved in the file
+    private long[] freePages; // free as of the last sync, ready to hand out
+    private int freeCount;
+    private long[] releasedPages; // freed since the last sync
+    private int releasedCount;
+    private final HashSet<Long> free = new HashSet<>(); // offsets on either list
+    private long rootOffset;
+    private boolean clean;
+
+    private FreeListPageAllocator(PageFile pageFile, int pageSize, int chunkPages) {
+        if (pageSize < HEADER_SIZE) {
+            throw new IllegalArgumentException("Page size must be at least " + HEADER_SIZE + " bytes");
+        }
+        if (chunkPages <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.pageFile = pageFile;
+        this.pageSize = pageSize;
+        this.chunkPages = chunkPages;
+        this.freePages = new long[16];
+        this.releasedPages = new long[16];
+        this.rootOffset = -1;
+    }
+
+    /**
+     * Formats a new, empty file: writes the header page and reserves the first chunk.
+     * @param pageFile the file to format; anything already in it is lost
+     * @param pageSize the size of every page, e.g. {@link PersistentBPlusTreeNode#pageSizeFor(int)}
+     * @return an allocator for the file
+     */
+    public static FreeListPageAllocator create(PageFile pageFile, int pageSize) throws IOException {
+        return create(pageFile, pageSize, DEFAULT_CHUNK_PAGES);
+    }
+
+    /**
+     * Formats a new, empty file.
+     * @param pageFile the file to format; anything already in it is lost
+     * @param pageSize the size of every page
+     * @param chunkPages how many pages to add each time the file grows
+     * @return an allocator for the file
+     */
+    public static FreeListPageAllocator create(PageFile pageFile, int pageSize, int chunkPages) throws IOException {
+        FreeListPageAllocator allocator = new FreeListPageAllocator(pageFile, pageSize, chunkPages);
+        pageFile.truncate(0);
+        allocator.highWater = pageSize;
+        allocator.capacity = pageSize;
+        allocator.extend();
+        allocator.sync();
+        return allocator;
+    }
+
+    /**
+     * Opens a file formatted by {@link #create(PageFile, int)}.
+     * @param pageFile the file to open
+     * @return an allocator for the file
+     * @throws IOException if the file has no valid header
+     */
+    public static FreeListPageAllocator open(PageFile pageFile) throws IOException {
+        return open(pageFile, DEFAULT_CHUNK_PAGES);
+    }
+
+    /**
+     * Opens a file formatted by {@link #create(PageFile, int, int)}.
+     * @param pageFile the file to open
+     * @param chunkPages how many pages to add each time the file grows
+     * @return an allocator for the file
+     * @throws IOException if the file has no valid header
+     */
+    public static FreeListPageAllocator open(PageFile pageFile, int chunkPages) throws IOException {
+        ByteBuffer header = pageFile.read(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a B-tree file: bad header magic");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported B-tree file version " + version);
+        }
+        FreeListPageAllocator allocator = new FreeListPageAllocator(pageFile, header.getInt(), chunkPages);
+        boolean clean = header.getInt() != 0;
+        allocator.highWater = header.getLong();
+        allocator.capacity = header.getLong();
+        long firstFree = header.getLong();
+        long freeCount = header.getLong();
+        allocator.rootOffset = header.getLong();
+
+        if (clean) {
+            allocator.readFreeList(firstFree, freeCount);
+        } else {
+            // The free list and high-water mark may be stale: treat every page in the file as used.
+            long end = pageFile.length() / allocator.pageSize * allocator.pageSize;
+            allocator.highWater = Math.max(allocator.highWater, end);
+            allocator.capacity = Math.max(allocator.capacity, allocator.highWater);
+        }
+        allocator.clean = clean;
+        return allocator;
+    }
+
+    @Override
+    public synchronized long allocate() {
+        try {
+            markChanged();
+            if (freeCount > 0) {
+                long offset = freePages[--freeCount];
+                free.remove(offset);
+                return offset;
+            }
+            if (highWater + pageSize > capacity) {
+                extend();
+            }
+            long offset = highWater;
+            highWater += pageSize;
+            return offset;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to allocate a page", e);
+        }
+    }
+
+    /**
+     * Puts a page on the free list. It is handed out again only after the next {@link #sync()}.
+     * @throws IllegalArgumentException if the offset is not an allocated page or is already free
+     */
+    @Override
+    public synchronized void free(long offset) {
+        if (offset < pageSize || offset >= highWater || offset % pageSize != 0) {
+            throw new IllegalArgumentException("Offset " + offset + " is not an allocated page");
+        }
+        if (free.contains(offset)) {
+            throw new IllegalArgumentException("Page at offset " + offset + " is already free");
+        }
+        try {
+            markChanged();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to free a page", e);
+        }
+        if (releasedCount == releasedPages.length) {
+            releasedPages = Arrays.copyOf(releasedPages, releasedCount * 2);
+        }
+        releasedPages[releasedCount++] = offset;
+        free.add(offset);
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Writes the free list and the header and forces the file. Call it after the page cache has
+     * been flushed or committed, so that no page on the free list is still used on disk. Pages
+     * freed since the last sync can be handed out again from then on.
+     */
+    public synchronized void sync() throws IOException {
+        if (freeCount + releasedCount > freePages.length) {
+            freePages = Arrays.copyOf(freePages, Math.max(freePages.length * 2, freeCount + releasedCount));
+        }
+        System.arraycopy(releasedPages, 0, freePages, freeCount, releasedCount);
+        freeCount += releasedCount;
+        releasedCount = 0;
+        ByteBuffer link = ByteBuffer.allocate(FREE_LINK_SIZE);
+        for (int i = 0; i < freeCount; i++) {
+            link.clear();
+            link.putInt(FREE_PAGE_MAGIC).putLong(i == 0 ? -1 : freePages[i - 1]);
+            pageFile.write(freePages[i], link.array());
+        }
+        clean = true;
+        writeHeader();
+        pageFile.force();
+    }
+
+    /**
+     * Remembers the offset of the tree's root in the header, so the tree can be found again
+     * after reopening the file. It is written by the next {@link #sync()}.
+     * @param rootOffset the offset of the root node
+     */
+    public synchronized void setRootOffset(long rootOffset) throws IOException {
+        if (this.rootOffset != rootOffset) {
+            markChanged();
+            this.rootOffset = rootOffset;
+        }
+    }
+
+    /**
+     * @return the root offset stored with {@link #setRootOffset(long)}, or -1 if there is none.
+     */
+    public synchronized long getRootOffset() {
+        return rootOffset;
+    }
+
+    /**
+     * @return false if the file was opened after a crash and its free list was dropped.
+     */
+    public synchronized boolean isClean() {
+        return clean;
+    }
+
+    /**
+     * @return the offsets of the pages on the free list, in ascending order, including those freed
+     *         since the last sync.
+     */
+    public synchronized long[] getFreePages() {
+        long[] pages = Arrays.copyOf(freePages, freeCount + releasedCount);
+        System.arraycopy(releasedPages, 0, pages, freeCount, releasedCount);
+        Arrays.sort(pages);
+        return pages;
+    }
+
+    public synchronized int getFreePageCount() {
+        return freeCount + releasedCount;
+    }
+
+    /**
+     * @return the number of pages handed out and not freed.
+     */
+    public synchronized long getUsedPageCount() {
+        return (highWater - pageSize) / pageSize - freeCount - releasedCount;
+    }
+
+    /**
+     * @return the end of the last page ever handed out; everything after it is reserved but unused.
+     */
+    public synchronized long getHighWaterMark() {
+        return highWater;
+    }
+
+    /**
+     * @return the number of bytes reserved in the file, including the header and unused chunk space.
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Forgets the free list and cuts the file at {@code end}. Called by
+     * {@link PersistentBPlusTreeNode#vacuum()} once every live page sits below that offset.
+     * @param end the new end of the file, a multiple of the page size
+     */
+    synchronized void truncateTo(long end) throws IOException {
+        if (end < pageSize || end % pageSize != 0) {
+            throw new IllegalArgumentException("Cannot truncate to " + end);
+        }
+        markChanged();
+        freeCount = 0;
+        releasedCount = 0;
+        free.clear();
+        highWater = end;
+        capacity = end;
+        pageFile.truncate(end);
+    }
+
+    private void extend() throws IOException {
+        // Write zeros over the whole chunk: only writing its last page would leave a hole that
+        // the file system fills one block at a time as nodes are written.
+        byte[] zeros = new byte[pageSize];
+        ByteBuffer[] pages = new ByteBuffer[chunkPages];
+        for (int i = 0; i < chunkPages; i++) {
+            pages[i] = ByteBuffer.wrap(zeros);
+        }
+        pageFile.write(capacity, pages);
+        capacity += (long) chunkPages * pageSize;
+    }
+
+    private void markChanged() throws IOException {
+        if (clean) {
+            clean = false;
+            writeHeader();
+            // The flag must reach the disk before any page it covers is written.
+            pageFile.force();
+        }
+    }
+
+    private void readFreeList(long firstFree, long count) throws IOException {
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt header: " + count + " free pages");
+        }
+        freePages = new long[Math.max(16, (int) count)];
+        long offset = firstFree;
+        for (int i = 0; i < count; i++) {
+            if (offset < pageSize || offset >= highWater || !free.add(offset)) {
+                throw new IOException("Corrupt free list: bad page offset " + offset);
+            }
+            ByteBuffer link = pageFile.read(offset, FREE_LINK_SIZE);
+            if (link.getInt() != FREE_PAGE_MAGIC) {
+                throw new IOException("Corrupt free list: page " + offset + " is not free");
+            }
+            freePages[i] = offset;
+            offset = link.getLong();
+        }
+        freeCount = (int) count;
+        // The list was written with the top of the stack first.
+        for (int i = 0, j = freeCount - 1; i < j; i++, j--) {
+            long swap = freePages[i];
+            freePages[i] = freePages[j];
+            freePages[j] = swap;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(pageSize).putInt(clean ? 1 : 0);
+        header.putLong(highWater).putLong(capacity);
+        header.putLong(freeCount == 0 ? -1 : freePages[freeCount - 1]).putLong(freeCount);
+        header.putLong(rootOffset);
+        pageFile.write(0, header.array());
+    }
+}
@@ -98,6 +98,16 @@ public class IntegerBTreeNode implements BTreeNode {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public void appendValue(int value) {
+        values[numValues++] = value;
+    }
+
+    @Override
+    public void setValueAt(int index, int value) {
+        values[index] = value;
+    }
+
     
   
 }
@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * Orders the keys of a {@link KeyValueBTree} and turns them into bytes for its pages.
+ *
+ * A fixed-size codec (e.g. {@link #LONG}, {@link #UUID}) is stored without a length; a
+ * variable-size one (e.g. {@link #UTF8}) is stored after a varint length.
+ *
+ * @param <K> the key type
+ */
+public interface KeyCodec<K> extends Comparator<K> {
+
+    /**
+     * @return the size of every encoded key, or -1 if the size depends on the key.
+     */
+    int fixedSize();
+
+    /**
+     * @return the number of bytes {@link #encode} writes for the key; it must match exactly,
+     *         because the length is written before the key.
+     * @throws IllegalArgumentException if the key cannot be encoded
+     */
+    int size(K key);
+
+    /**
+     * Writes the key at the buffer's position.
+     */
+    void encode(K key, ByteBuffer out);
+
+    /**
+     * Reads a key of the given size from the buffer's position.
+     */
+    K decode(ByteBuffer in, int size);
+
+    /** 8-byte big-endian longs in numeric order. */
+    KeyCodec<Long> LONG = new KeyCodec<>() {
+        @Override
+        public int fixedSize() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public int size(Long key) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(Long key, ByteBuffer out) {
+            out.putLong(key);
+        }
+
+        @Override
+        public Long decode(ByteBuffer in, int size) {
+            return in.getLong();
+        }
+
+        @Override
+        public int compare(Long a, Long b) {
+            return Long.compare(a, b);
+        }
+    };
+
+    /** 16-byte UUIDs in {@link UUID#compareTo} order. */
+    KeyCodec<UUID> UUID = new KeyCodec<>() {
+        @Override
+        public int fixedSize() {
+            return 2 * Long.BYTES;
+        }
+
+        @Override
+        public int size(UUID key) {
+            return 2 * Long.BYTES;
+        }
+
+        @Override
+        public void encode(UUID key, ByteBuffer out) {
+            out.putLong(key.getMostSignificantBits()).putLong(key.getLeastSignificantBits());
+        }
+
+        @Override
+        public UUID decode(ByteBuffer in, int size) {
+            return new UUID(in.getLong(), in.getLong());
+        }
+
+        @Override
+        public int compare(UUID a, UUID b) {
+            return a.compareTo(b);
+        }
+    };
+
+    /**
+     * Strings as UTF-8 bytes, in {@link String#compareTo} order. A string with an unpaired
+     * surrogate has no UTF-8 form and is rejected with an IllegalArgumentException.
+     */
+    KeyCodec<String> UTF8 = new KeyCodec<>() {
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+
+        @Override
+        public int size(String key) {
+            int size = 0;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (c < 0x80) {
+                    size += 1;
+                } else if (c < 0x800) {
+                    size += 2;
+                } else if (Character.isSurrogate(c)) {
+                    if (!Character.isHighSurrogate(c) || i + 1 == key.length()
+                            || !Character.isLowSurrogate(key.charAt(i + 1))) {
+                        throw new IllegalArgumentException("Key has an unpaired surrogate at index " + i);
+                    }
+                    size += 4;
+                    i++;
+                } else {
+                    size += 3;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void encode(String key, ByteBuffer out) {
+            // getBytes would silently write '?' for an unpaired surrogate, one byte fewer than size().
+            try {
+                out.put(StandardCharsets.UTF_8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .encode(CharBuffer.wrap(key)));
+            } catch (CharacterCodingException e) {
+                throw new IllegalArgumentException("Key is not valid UTF-16: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String decode(ByteBuffer in, int size) {
+            byte[] bytes = new byte[size];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int compare(String a, String b) {
+            return a.compareTo(b);
+        }
+    };
+}
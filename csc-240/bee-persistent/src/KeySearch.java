@@ -0,0 +1,95 @@
+/**
+ * Finds where a value belongs among the sorted keys of a node.
+ *
+ * {@link #LINEAR} walks the keys from the left and is fastest for small nodes, where its
+ * branches are well predicted. {@link #BINARY} halves the range without a data-dependent branch
+ * (the comparison becomes a conditional move), so its cost grows with log n and stays flat when
+ * lookups are random. {@link #BLOCK} skips {@value #BLOCK_SIZE} keys at a time, then counts the
+ * keys below the value in the last block without branching. {@link #forDegree(int)} picks one by
+ * node size; {@link KeySearchBenchmark} measures the crossovers on the current machine.
+ *
+ * {@link PersistentBPlusTreeNode} and {@link CopyOnWriteBTree} use {@link #forDegree(int)} unless
+ * given another strategy with {@code setKeySearch}. Your own nodes can call one directly, e.g.
+ * {@code KeySearch.BINARY.lowerBound(values, numValues, value)}.
+ */
+public interface KeySearch {
+
+    /** Keys skipped per step by {@link #BLOCK}. */
+    int BLOCK_SIZE = 8;
+
+    /** The smallest minimum degree for which {@link #forDegree(int)} picks {@link #BLOCK}. */
+    int BLOCK_MIN_DEGREE = 16;
+
+    /** The smallest minimum degree for which {@link #forDegree(int)} picks {@link #BINARY}. */
+    int BINARY_MIN_DEGREE = 256;
+
+    /**
+     * @param keys the keys, sorted ascending in {@code keys[0..count)}
+     * @param count the number of keys in use
+     * @param value the value to look for
+     * @return the index of the first key that is not smaller than {@code value}, or {@code count}
+     */
+    int lowerBound(int[] keys, int count, int value);
+
+    /**
+     * @return the index of the first key that is larger than {@code value}, or {@code count}
+     */
+    default int upperBound(int[] keys, int count, int value) {
+        return value == Integer.MAX_VALUE ? count : lowerBound(keys, count, value + 1);
+    }
+
+    /**
+     * @return the index of {@code value} among the keys, or -1 if it is not there
+     */
+    default int indexOf(int[] keys, int count, int value) {
+        int i = lowerBound(keys, count, value);
+        return i < count && keys[i] == value ? i : -1;
+    }
+
+    /** Scans from the left. */
+    KeySearch LINEAR = (keys, count, value) -> {
+        int i = 0;
+        while (i < count && keys[i] < value) {
+            i++;
+        }
+        return i;
+    };
+
+    /** Binary search without a data-dependent branch. */
+    KeySearch BINARY = (keys, count, value) -> {
+        if (count == 0) {
+            return 0;
+        }
+        // The answer is always in [base, base + length].
+        int base = 0;
+        int length = count;
+        while (length > 1) {
+            int half = length >>> 1;
+            base = keys[base + half] < value ? base + half : base;
+            length -= half;
+        }
+        return base + (keys[base] < value ? 1 : 0);
+    };
+
+    /** Skips whole blocks of keys, then counts within one block. */
+    KeySearch BLOCK = (keys, count, value) -> {
+        int i = 0;
+        while (i + BLOCK_SIZE <= count && keys[i + BLOCK_SIZE - 1] < value) {
+            i += BLOCK_SIZE;
+        }
+        int end = Math.min(i + BLOCK_SIZE, count);
+        int below = 0;
+        for (int j = i; j < end; j++) {
+            below += keys[j] < value ? 1 : 0;
+        }
+        return i + below;
+    };
+
+    /**
+     * @return {@link #LINEAR} below minimum degree {@value #BLOCK_MIN_DEGREE}, {@link #BINARY}
+     * from {@value #BINARY_MIN_DEGREE} and {@link #BLOCK} in between.
+     */
+    static KeySearch forDegree(int t) {
+        return t < BLOCK_MIN_DEGREE ? LINEAR : t < BINARY_MIN_DEGREE ? BLOCK : BINARY;
+    }
+}
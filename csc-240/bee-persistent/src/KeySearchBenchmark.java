@@ -0,0 +1,131 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Measures the in-node search strategies of {@link KeySearch} on full nodes of increasing
+ * minimum degree, to find where binary or block search starts to beat a linear scan.
+ *
+ * Every degree gets a sorted array of {@code 2t - 1} distinct keys and a batch of random
+ * probes, half of them present. Each strategy repeats the batch for the given time; the table
+ * shows nanoseconds per search and the fastest strategy. Two crossovers are reported: the
+ * smallest degree from which linear search never wins again, and the one from which binary
+ * search always beats the block scan. Compare them with {@link KeySearch#BLOCK_MIN_DEGREE} and
+ * {@link KeySearch#BINARY_MIN_DEGREE}; single runs are noisy, so repeat before moving those.
+ *
+ * Usage: {@code java KeySearchBenchmark [millisPerRun]} (default: 200).
+ */
+public class KeySearchBenchmark {
+
+    private static final int[] DEGREES = {2, 3, 4, 6, 8, 12, 16, 24, 32, 64, 128, 256, 512};
+    private static final String[] NAMES = {"linear", "binary", "block"};
+    private static final KeySearch[] STRATEGIES = {KeySearch.LINEAR, KeySearch.BINARY, KeySearch.BLOCK};
+    private static final int PROBES = 4096;
+
+    private static int sink;
+
+    public static void main(String[] args) {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 200;
+
+        // Warm up every strategy on a few sizes so none of them is measured while interpreted.
+        for (int t : new int[] {4, 64}) {
+            for (KeySearch strategy : STRATEGIES) {
+                time(strategy, keys(t), probes(keys(t)), millis);
+            }
+        }
+
+        System.out.printf("%6s %8s %12s %12s %12s %8s%n", "t", "keys", "linear ns", "binary ns", "block ns", "best");
+        int linearCrossover = -1;
+        int binaryCrossover = -1;
+        for (int t : DEGREES) {
+            int[] keys = keys(t);
+            int[] probes = probes(keys);
+            double[] nanos = new double[STRATEGIES.length];
+            int best = 0;
+            for (int s = 0; s < STRATEGIES.length; s++) {
+                nanos[s] = time(STRATEGIES[s], keys, probes, millis);
+                if (nanos[s] < nanos[best]) {
+                    best = s;
+                }
+            }
+            if (best == 0) {
+                linearCrossover = -1;
+            } else if (linearCrossover < 0) {
+                linearCrossover = t;
+            }
+            if (nanos[1] >= nanos[2]) {
+                binaryCrossover = -1;
+            } else if (binaryCrossover < 0) {
+                binaryCrossover = t;
+            }
+            System.out.printf("%6d %8d %12.2f %12.2f %12.2f %8s%n", t, keys.length,
+                    nanos[0], nanos[1], nanos[2], NAMES[best]);
+        }
+        System.out.println("Linear search stops winning at t = " + describe(linearCrossover)
+                + " (KeySearch.forDegree leaves it at t = " + KeySearch.BLOCK_MIN_DEGREE + ")");
+        System.out.println("Binary search beats the block scan from t = " + describe(binaryCrossover)
+                + " (KeySearch.forDegree switches at t = " + KeySearch.BINARY_MIN_DEGREE + ")");
+    }
+
+    private static String describe(int degree) {
+        return degree < 0 ? "none measured" : String.valueOf(degree);
+    }
+
+    /**
+     * @return 2t - 1 sorted, distinct, even keys with random gaps
+     */
+    private static int[] keys(int t) {
+        SplittableRandom random = new SplittableRandom(t);
+        int[] keys = new int[2 * t - 1];
+        int value = 0;
+        for (int i = 0; i < keys.length; i++) {
+            value += 2 * (1 + random.nextInt(8));
+            keys[i] = value;
+        }
+        return keys;
+    }
+
+    /**
+     * @return random probes: half of them keys, the other half odd values between keys
+     */
+    private static int[] probes(int[] keys) {
+        SplittableRandom random = new SplittableRandom(keys.length);
+        int[] probes = new int[PROBES];
+        for (int i = 0; i < probes.length; i++) {
+            int key = keys[random.nextInt(keys.length)];
+            probes[i] = i % 2 == 0 ? key : key - 1;
+        }
+        return probes;
+    }
+
+    /**
+     * Repeats the probes for about the given time.
+     * @return the average time of one search in nanoseconds
+     */
+    private static double time(KeySearch strategy, int[] keys, int[] probes, long millis) {
+        check(strategy, keys, probes);
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long searches = 0;
+        int result = 0;
+        long began = System.nanoTime();
+        long now;
+        do {
+            for (int probe : probes) {
+                result += strategy.lowerBound(keys, keys.length, probe);
+            }
+            searches += probes.length;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += result;
+        return (double) (now - began) / searches;
+    }
+
+    private static void check(KeySearch strategy, int[] keys, int[] probes) {
+        for (int probe : probes) {
+            int expected = Arrays.binarySearch(keys, probe);
+            expected = expected >= 0 ? expected : -expected - 1;
+            if (strategy.lowerBound(keys, keys.length, probe) != expected) {
+                throw new IllegalStateException("Wrong result for " + probe + " among " + keys.length + " keys");
+            }
+        }
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * A persistent B+-tree map from keys of any type to values of any type, e.g. string IDs to record
+ * offsets. {@link BTree} and its nodes stay specialized for plain {@code int} values; this class
+ * is for everything else.
+ *
+ * Keys are ordered and encoded by a {@link KeyCodec}, values by a {@link ValueCodec}. Nodes are
+ * filled by bytes rather than by a fixed degree: a node splits when its encoded form no longer
+ * fits in a page, so short keys give a wide tree and long keys a narrower one. Values of up to
+ * {@link #getMaxInlineValueSize()} bytes sit in the leaf next to their key; longer values are
+ * written to a chain of overflow pages and the leaf keeps a reference to the first one. Every
+ * page carries a CRC32C like the other page formats here.
+ *
+ * The root stays at the same offset for the life of the file (a root split moves the old root's
+ * content to a new page instead), so the {@link FreeListPageAllocator} header only has to record
+ * it once. Changed pages are written straight away; {@link #sync()} makes them durable.
+ * Removal does not merge underfull nodes: a leaf emptied by removes stays in place and is filled
+ * again by later inserts into its key range.
+ *
+ * Page layout: type (1 byte) | count (2) | CRC32C (4) | next leaf or overflow page (8), then
+ * <ul>
+ *   <li>leaf: count entries of key, varint value length, value (inline flag + bytes, or
+ *       overflow flag + total length (4) + first overflow page (8));</li>
+ *   <li>internal: first child (8), then count entries of key, child (8);</li>
+ *   <li>overflow: count bytes of the value.</li>
+ * </ul>
+ * Keys of a variable-size codec are prefixed by a varint length.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class KeyValueBTree<K, V> {
+
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final byte OVERFLOW = 3;
+    private static final int CHECKSUM_POSITION = 3;
+    private static final int HEADER_SIZE = 1 + 2 + 4 + 8;
+    private static final byte INLINE_VALUE = 0;
+    private static final byte OVERFLOW_VALUE = 1;
+    private static final int MIN_PAGE_SIZE = 256;
+
+    private final PageFile pageFile;
+    private final FreeListPageAllocator allocator;
+    private final KeyCodec<K> keyCodec;
+    private final ValueCodec<V> valueCodec;
+    private final int pageSize;
+    private final int maxKeySize;
+    private final int maxInlineValueSize;
+    private final long rootOffset;
+
+    private KeyValueBTree(PageFile pageFile, FreeListPageAllocator allocator, KeyCodec<K> keyCodec,
+                          ValueCodec<V> valueCodec, long rootOffset) {
+        this.pageFile = pageFile;
+        this.allocator = allocator;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.pageSize = allocator.getPageSize();
+        // A key plus an inline value takes at most a quarter of a page, so an overfull node
+        // always splits into two halves that fit.
+        int eighth = (pageSize - HEADER_SIZE) / 8;
+        this.maxKeySize = eighth - 5;
+        this.maxInlineValueSize = eighth - 6;
+        this.rootOffset = rootOffset;
+    }
+
+    /**
+     * Formats a new, empty tree file with {@link NodePage#PAGE_SIZE} pages.
+     * @param pageFile the file to format; anything already in it is lost
+     */
+    public static <K, V> KeyValueBTree<K, V> create(PageFile pageFile, KeyCodec<K> keyCodec,
+                                                    ValueCodec<V> valueCodec) throws IOException {
+        return create(pageFile, keyCodec, valueCodec, NodePage.PAGE_SIZE);
+    }
+
+    /**
+     * Formats a new, empty tree file.
+     * @param pageFile the file to format; anything already in it is lost
+     * @param pageSize the page size, at least 256 bytes
+     */
+    public static <K, V> KeyValueBTree<K, V> create(PageFile pageFile, KeyCodec<K> keyCodec,
+                                                    ValueCodec<V> valueCodec, int pageSize) throws IOException {
+        if (pageSize < MIN_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be at least " + MIN_PAGE_SIZE + " bytes");
+        }
+        FreeListPageAllocator allocator = FreeListPageAllocator.create(pageFile, pageSize);
+        long rootOffset = allocator.allocate();
+        KeyValueBTree<K, V> tree = new KeyValueBTree<>(pageFile, allocator, keyCodec, valueCodec, rootOffset);
+        tree.write(new Node<>(true, rootOffset));
+        allocator.setRootOffset(rootOffset);
+        tree.sync();
+        return tree;
+    }
+
+    /**
+     * Opens a tree file written by {@link #create}. The codecs must be the ones it was created with.
+     * @throws IOException if the file has no valid header
+     */
+    public static <K, V> KeyValueBTree<K, V> open(PageFile pageFile, KeyCodec<K> keyCodec,
+                                                  ValueCodec<V> valueCodec) throws IOException {
+        FreeListPageAllocator allocator = FreeListPageAllocator.open(pageFile);
+        if (allocator.getRootOffset() < 0) {
+            throw new IOException("The file holds no tree");
+        }
+        return new KeyValueBTree<>(pageFile, allocator, keyCodec, valueCodec, allocator.getRootOffset());
+    }
+
+    /**
+     * @return the value stored for the key, or null if there is none.
+     */
+    public V get(K key) {
+        Node<K> leaf = findLeaf(key);
+        int i = Collections.binarySearch(leaf.keys, key, keyCodec);
+        return i < 0 ? null : loadValue(leaf.cells.get(i));
+    }
+
+    public boolean containsKey(K key) {
+        Node<K> leaf = findLeaf(key);
+        return Collections.binarySearch(leaf.keys, key, keyCodec) >= 0;
+    }
+
+    /**
+     * Stores a value for a key, replacing any value it had.
+     * @return the previous value, or null if the key is new
+     * @throws IllegalArgumentException if the encoded key is longer than {@link #getMaxKeySize()}
+     */
+    public V put(K key, V value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        int keySize = keyCodec.size(key);
+        if (keySize > maxKeySize) {
+            throw new IllegalArgumentException("Key of " + keySize + " bytes is longer than the "
+                    + maxKeySize + " bytes a " + pageSize + "-byte page allows");
+        }
+        byte[][] previous = new byte[1][];
+        Node<K> root = read(rootOffset);
+        Split<K> split = insert(root, key, storeValue(value), previous);
+        if (split != null) {
+            // Move the old root's content to a new page so the root keeps its offset.
+            Node<K> left = read(rootOffset);
+            left.offset = allocator.allocate();
+            write(left);
+            Node<K> newRoot = new Node<>(false, rootOffset);
+            newRoot.children.add(left.offset);
+            newRoot.keys.add(split.key);
+            newRoot.children.add(split.right);
+            write(newRoot);
+        }
+        if (previous[0] == null) {
+            return null;
+        }
+        V old = loadValue(previous[0]);
+        freeValue(previous[0]);
+        return old;
+    }
+
+    /**
+     * Removes a key.
+     * @return the value it had, or null if it was not in the tree
+     */
+    public V remove(K key) {
+        Node<K> leaf = findLeaf(key);
+        int i = Collections.binarySearch(leaf.keys, key, keyCodec);
+        if (i < 0) {
+            return null;
+        }
+        byte[] cell = leaf.cells.get(i);
+        V old = loadValue(cell);
+        leaf.keys.remove(i);
+        leaf.cells.remove(i);
+        write(leaf);
+        freeValue(cell);
+        return old;
+    }
+
+    /**
+     * Returns a lazy, ascending iterator over the entries with keys in {@code [from, to]}.
+     * Leaves are read one at a time as the iterator reaches them.
+     * @param from the smallest key to return, or null to start at the first key
+     * @param to the largest key to return, or null to run to the last key
+     */
+    public Iterator<Map.Entry<K, V>> range(K from, K to) {
+        Node<K> leaf;
+        int index;
+        if (from == null) {
+            leaf = read(rootOffset);
+            while (!leaf.leaf) {
+                leaf = read(leaf.children.get(0));
+            }
+            index = 0;
+        } else {
+            leaf = findLeaf(from);
+            int i = Collections.binarySearch(leaf.keys, from, keyCodec);
+            index = i < 0 ? -i - 1 : i;
+        }
+        Node<K> first = leaf;
+        int firstIndex = index;
+        return new Iterator<>() {
+            private Node<K> node = first;
+            private int i = firstIndex;
+
+            @Override
+            public boolean hasNext() {
+                while (node != null && i >= node.keys.size()) {
+                    node = node.next < 0 ? null : read(node.next);
+                    i = 0;
+                }
+                if (node != null && to != null && keyCodec.compare(node.keys.get(i), to) > 0) {
+                    node = null;
+                }
+                return node != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                K key = node.keys.get(i);
+                V value = loadValue(node.cells.get(i));
+                i++;
+                return Map.entry(key, value);
+            }
+        };
+    }
+
+    /**
+     * Writes the allocator's free list and header and forces the file.
+     */
+    public void sync() throws IOException {
+        allocator.sync();
+    }
+
+    public FreeListPageAllocator getAllocator() {
+        return allocator;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the longest encoded key {@link #put} accepts.
+     */
+    public int getMaxKeySize() {
+        return maxKeySize;
+    }
+
+    /**
+     * @return the longest encoded value kept in the leaf; longer ones go to overflow pages.
+     */
+    public int getMaxInlineValueSize() {
+        return maxInlineValueSize;
+    }
+
+    // -------- Insertion --------
+
+    private Split<K> insert(Node<K> node, K key, byte[] cell, byte[][] previous) {
+        if (node.leaf) {
+            int i = Collections.binarySearch(node.keys, key, keyCodec);
+            if (i >= 0) {
+                previous[0] = node.cells.set(i, cell);
+            } else {
+                node.keys.add(-i - 1, key);
+                node.cells.add(-i - 1, cell);
+            }
+            if (size(node) <= pageSize) {
+                write(node);
+                return null;
+            }
+            return splitLeaf(node);
+        }
+        int i = childIndex(node, key);
+        Split<K> split = insert(read(node.children.get(i)), key, cell, previous);
+        if (split == null) {
+            return null;
+        }
+        node.keys.add(i, split.key);
+        node.children.add(i + 1, split.right);
+        if (size(node) <= pageSize) {
+            write(node);
+            return null;
+        }
+        return splitInternal(node);
+    }
+
+    /**
+     * Moves the upper half (by bytes) of an overfull leaf to a new leaf linked after it.
+     */
+    private Split<K> splitLeaf(Node<K> node) {
+        int n = node.keys.size();
+        int half = (size(node) - HEADER_SIZE) / 2;
+        int s = 0;
+        for (int bytes = 0; s < n - 1 && bytes < half; s++) {
+            bytes += leafEntrySize(node.keys.get(s), node.cells.get(s));
+        }
+        s = Math.max(1, s);
+        Node<K> right = new Node<>(true, allocator.allocate());
+        move(node.keys, s, right.keys);
+        move(node.cells, s, right.cells);
+        right.next = node.next;
+        node.next = right.offset;
+        write(right);
+        write(node);
+        return new Split<>(right.keys.get(0), right.offset);
+    }
+
+    /**
+     * Moves the upper half (by bytes) of an overfull internal node to a new node; the key between
+     * the halves goes up to the parent.
+     */
+    private Split<K> splitInternal(Node<K> node) {
+        int n = node.keys.size();
+        int half = (size(node) - HEADER_SIZE) / 2;
+        int s = 0;
+        for (int bytes = Long.BYTES; s < n - 2 && bytes < half; s++) {
+            bytes += keySize(node.keys.get(s)) + Long.BYTES;
+        }
+        s = Math.max(1, s);
+        K up = node.keys.get(s);
+        Node<K> right = new Node<>(false, allocator.allocate());
+        move(node.keys, s + 1, right.keys);
+        node.keys.remove(s);
+        move(node.children, s + 1, right.children);
+        write(right);
+        write(node);
+        return new Split<>(up, right.offset);
+    }
+
+    private static <T> void move(List<T> from, int start, List<T> to) {
+        List<T> tail = from.subList(start, from.size());
+        to.addAll(tail);
+        tail.clear();
+    }
+
+    private Node<K> findLeaf(K key) {
+        Node<K> node = read(rootOffset);
+        while (!node.leaf) {
+            node = read(node.children.get(childIndex(node, key)));
+        }
+        return node;
+    }
+
+    /**
+     * @return the index of the child whose range holds the key: keys equal to a separator
+     * live to its right.
+     */
+    private int childIndex(Node<K> node, K key) {
+        int i = Collections.binarySearch(node.keys, key, keyCodec);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    // -------- Values --------
+
+    /**
+     * @return the form a value is kept in inside a leaf: inline, or a reference to overflow pages
+     * written here.
+     */
+    private byte[] storeValue(V value) {
+        byte[] bytes = valueCodec.encode(value);
+        if (bytes.length <= maxInlineValueSize) {
+            byte[] cell = new byte[1 + bytes.length];
+            cell[0] = INLINE_VALUE;
+            System.arraycopy(bytes, 0, cell, 1, bytes.length);
+            return cell;
+        }
+        int perPage = pageSize - HEADER_SIZE;
+        int pages = (bytes.length + perPage - 1) / perPage;
+        long[] offsets = new long[pages];
+        for (int p = 0; p < pages; p++) {
+            offsets[p] = allocator.allocate();
+        }
+        for (int p = 0; p < pages; p++) {
+            int length = Math.min(perPage, bytes.length - p * perPage);
+            ByteBuffer page = ByteBuffer.allocate(pageSize);
+            page.put(OVERFLOW).putShort((short) length).putInt(0).putLong(p + 1 < pages ? offsets[p + 1] : -1);
+            page.put(bytes, p * perPage, length);
+            writePage(offsets[p], page.array());
+        }
+        return ByteBuffer.allocate(1 + 4 + 8).put(OVERFLOW_VALUE).putInt(bytes.length).putLong(offsets[0]).array();
+    }
+
+    private V loadValue(byte[] cell) {
+        if (cell[0] == INLINE_VALUE) {
+            return valueCodec.decode(Arrays.copyOfRange(cell, 1, cell.length));
+        }
+        ByteBuffer ref = ByteBuffer.wrap(cell, 1, cell.length - 1);
+        byte[] bytes = new byte[ref.getInt()];
+        long offset = ref.getLong();
+        for (int done = 0; done < bytes.length; ) {
+            ByteBuffer page = readPage(offset, OVERFLOW);
+            int length = page.getShort(1) & 0xFFFF;
+            page.position(HEADER_SIZE);
+            page.get(bytes, done, length);
+            done += length;
+            offset = page.getLong(1 + 2 + 4);
+        }
+        return valueCodec.decode(bytes);
+    }
+
+    private void freeValue(byte[] cell) {
+        if (cell[0] == INLINE_VALUE) {
+            return;
+        }
+        long offset = ByteBuffer.wrap(cell, 1 + 4, 8).getLong();
+        while (offset >= 0) {
+            long next = readPage(offset, OVERFLOW).getLong(1 + 2 + 4);
+            allocator.free(offset);
+            offset = next;
+        }
+    }
+
+    // -------- Pages --------
+
+    private int keySize(K key) {
+        int size = keyCodec.size(key);
+        return keyCodec.fixedSize() >= 0 ? size : varintSize(size) + size;
+    }
+
+    private int leafEntrySize(K key, byte[] cell) {
+        return keySize(key) + varintSize(cell.length) + cell.length;
+    }
+
+    private int size(Node<K> node) {
+        int size = HEADER_SIZE;
+        if (node.leaf) {
+            for (int i = 0; i < node.keys.size(); i++) {
+                size += leafEntrySize(node.keys.get(i), node.cells.get(i));
+            }
+        } else {
+            size += Long.BYTES;
+            for (K key : node.keys) {
+                size += keySize(key) + Long.BYTES;
+            }
+        }
+        return size;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void write(Node<K> node) {
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        page.put(node.leaf ? LEAF : INTERNAL).putShort((short) node.keys.size()).putInt(0).putLong(node.next);
+        if (!node.leaf) {
+            page.putLong(node.children.get(0));
+        }
+        for (int i = 0; i < node.keys.size(); i++) {
+            K key = node.keys.get(i);
+            if (keyCodec.fixedSize() < 0) {
+                NodePage.putVarint(page, keyCodec.size(key));
+            }
+            keyCodec.encode(key, page);
+            if (node.leaf) {
+                byte[] cell = node.cells.get(i);
+                NodePage.putVarint(page, cell.length);
+                page.put(cell);
+            } else {
+                page.putLong(node.children.get(i + 1));
+            }
+        }
+        writePage(node.offset, page.array());
+    }
+
+    private Node<K> read(long offset) {
+        ByteBuffer page = readPage(offset, (byte) 0);
+        byte type = page.get(0);
+        if (type != LEAF && type != INTERNAL) {
+            throw new CorruptPageException(offset, "page type " + type + " is not a tree node", null);
+        }
+        Node<K> node = new Node<>(type == LEAF, offset);
+        int count = page.getShort(1) & 0xFFFF;
+        node.next = page.getLong(1 + 2 + 4);
+        page.position(HEADER_SIZE);
+        if (!node.leaf) {
+            node.children.add(page.getLong());
+        }
+        for (int i = 0; i < count; i++) {
+            int size = keyCodec.fixedSize() >= 0 ? keyCodec.fixedSize() : NodePage.getVarint(page);
+            int end = page.position() + size;
+            node.keys.add(keyCodec.decode(page, size));
+            page.position(end);
+            if (node.leaf) {
+                byte[] cell = new byte[NodePage.getVarint(page)];
+                page.get(cell);
+                node.cells.add(cell);
+            } else {
+                node.children.add(page.getLong());
+            }
+        }
+        return node;
+    }
+
+    private void writePage(long offset, byte[] page) {
+        PageChecksum.store(page, CHECKSUM_POSITION);
+        try {
+            pageFile.write(offset, page);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write node to disk", e);
+        }
+    }
+
+    /**
+     * Reads and checks a page.
+     * @param type the page type expected, or 0 for any
+     */
+    private ByteBuffer readPage(long offset, byte type) {
+        try {
+            ByteBuffer page = pageFile.read(offset, pageSize);
+            PageChecksum.verify(page, 0, pageSize, CHECKSUM_POSITION);
+            if (type != 0 && page.get(0) != type) {
+                throw new CorruptPageException("page type " + page.get(0) + ", expected " + type);
+            }
+            return page;
+        } catch (CorruptPageException e) {
+            throw e.atOffset(offset);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read node from disk", e);
+        }
+    }
+
+    /**
+     * A decoded node. Leaves keep each value in its stored form (see {@link #storeValue}) and
+     * decode it only when it is asked for.
+     */
+    private static final class Node<K> {
+        final boolean leaf;
+        long offset;
+        long next = -1;
+        final List<K> keys = new ArrayList<>();
+        final List<byte[]> cells = new ArrayList<>();
+        final List<Long> children = new ArrayList<>();
+
+        Node(boolean leaf, long offset) {
+            this.leaf = leaf;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Split<K> {
+        final K key;
+        final long right;
+
+        Split(K key, long right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * The LRU-K replacement policy. Each frame remembers the logical times of its last K accesses,
+ * and the victim is the frame whose K-th most recent access is the oldest. Frames that have been
+ * accessed fewer than K times are evicted first (oldest last access wins), which keeps a single
+ * sequential scan from flushing the hot root-to-leaf pages out of the cache.
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    private final int k;
+    private final long[][] history; // history[frame][0] is the most recent access
+    private long clock;
+
+    public LruKEvictionPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.history = new long[capacity][k];
+        for (long[] accesses : history) {
+            Arrays.fill(accesses, -1);
+        }
+        this.clock = 0;
+    }
+
+    @Override
+    public void recordAccess(int frame) {
+        long[] accesses = history[frame];
+        System.arraycopy(accesses, 0, accesses, 1, k - 1);
+        accesses[0] = clock++;
+    }
+
+    @Override
+    public void remove(int frame) {
+        Arrays.fill(history[frame], -1);
+    }
+
+    @Override
+    public int chooseVictim(IntPredicate evictable) {
+        int victim = -1;
+        boolean victimHasFullHistory = true;
+        long victimTime = Long.MAX_VALUE;
+        for (int frame = 0; frame < history.length; frame++) {
+            if (!evictable.test(frame)) {
+                continue;
+            }
+            long[] accesses = history[frame];
+            boolean fullHistory = accesses[k - 1] >= 0;
+            // Frames without K accesses have an infinite backward distance; compare them by last access.
+            long time = fullHistory ? accesses[k - 1] : accesses[0];
+            if (victim == -1
+                    || (victimHasFullHistory && !fullHistory)
+                    || (victimHasFullHistory == fullHistory && time < victimTime)) {
+                victim = frame;
+                victimHasFullHistory = fullHistory;
+                victimTime = time;
+            }
+        }
+        return victim;
+    }
+}
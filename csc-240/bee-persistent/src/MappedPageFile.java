@@ -0,0 +1,122 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * A {@link PageFile} that maps the file into memory with {@link FileChannel#map} in fixed-size
+ * segments. Reads return a view of the mapping, so a node can decode straight from the
+ * {@link MappedByteBuffer} without a system call or an intermediate byte array.
+ *
+ * Segments are mapped on demand as the file grows. Mapping a segment extends the file to the
+ * end of that segment, so the file is truncated back to its logical length on {@link #close()}.
+ */
+public class MappedPageFile implements PageFile {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final ArrayList<MappedByteBuffer> segments;
+    private long length;
+
+    public MappedPageFile(String path) throws IOException {
+        this(path, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param path the file to open (it is created if it does not exist)
+     * @param segmentSize the size of each mapping; a multiple of the page size keeps pages from
+     *                    straddling two segments
+     */
+    public MappedPageFile(String path, int segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive");
+        }
+        this.channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segmentSize = segmentSize;
+        this.segments = new ArrayList<>();
+        this.length = channel.size();
+    }
+
+    @Override
+    public synchronized ByteBuffer read(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > this.length) {
+            throw new EOFException("Read of " + length + " bytes at offset " + offset
+                    + " is past the end of the file (" + this.length + " bytes)");
+        }
+        int index = (int) (offset / segmentSize);
+        int position = (int) (offset % segmentSize);
+        if (position + length <= segmentSize) {
+            return segment(index).slice(position, length);
+        }
+        // The range straddles two segments: fall back to a copy.
+        byte[] bytes = new byte[length];
+        copy(offset, bytes, false);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public synchronized void write(long offset, byte[] bytes) throws IOException {
+        copy(offset, bytes, true);
+        length = Math.max(length, offset + bytes.length);
+    }
+
+    private void copy(long offset, byte[] bytes, boolean toFile) throws IOException {
+        int done = 0;
+        while (done < bytes.length) {
+            long at = offset + done;
+            MappedByteBuffer segment = segment((int) (at / segmentSize));
+            int position = (int) (at % segmentSize);
+            int chunk = Math.min(bytes.length - done, segmentSize - position);
+            if (toFile) {
+                segment.put(position, bytes, done, chunk);
+            } else {
+                segment.get(position, bytes, done, chunk);
+            }
+            done += chunk;
+        }
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        while (segments.size() <= index) {
+            long start = (long) segments.size() * segmentSize;
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize));
+        }
+        return segments.get(index);
+    }
+
+    @Override
+    public synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Shrinks the logical length. The mapped segments stay in place, and the file itself is
+     * cut to the logical length on {@link #close()}.
+     */
+    @Override
+    public synchronized void truncate(long length) {
+        this.length = Math.min(this.length, Math.max(0, length));
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        segments.clear();
+        channel.truncate(length);
+        channel.close();
+    }
+}
@@ -0,0 +1,223 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The on-disk page format of {@link PersistentIntegerBTreeNode}.
+ *
+ * A page starts with a small header, followed by the node's sorted values and, for an internal
+ * node, the page numbers of its children:
+ * <pre>
+ *   version (1 byte) | flags (1, bit 0 = leaf, bit 1 = fixed width) | value count (2)
+ *   | CRC32C of the page (4) | LSN (8)
+ *   packed: first value as a zig-zag varint, then each gap to the previous value as a varint,
+ *           then count + 1 child page numbers as varints (internal nodes only)
+ *   fixed width: the values as 4-byte ints, then count + 1 child page numbers as 4-byte ints
+ *   zero padding up to the page size
+ * </pre>
+ * Sorted values are usually close together, so most gaps take one or two bytes instead of four,
+ * and child page numbers take far fewer bytes than 8-byte offsets. A node whose varints do not
+ * fit is written fixed width instead, so the worst case is four bytes per value and child and
+ * {@link #maxDegree(int)} is as large as for an uncompressed page. A degree too large for one
+ * {@link #PAGE_SIZE} page gets pages of several times that size ({@link #pageSizeFor(int)}).
+ *
+ * The checksum covers the whole page, so a torn write or flipped bit is caught on read with a
+ * {@link CorruptPageException}. The LSN is the write-ahead log record that last wrote the page
+ * (0 without a log).
+ */
+public final class NodePage {
+
+    public static final int PAGE_SIZE = 4096;
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int LEAF_FLAG = 1;
+    private static final int FIXED_WIDTH_FLAG = 2;
+    private static final int CHECKSUM_POSITION = 4;
+    private static final int LSN_POSITION = 8;
+    static final int HEADER_SIZE = 1 + 1 + 2 + 4 + 8;
+
+    private NodePage() {
+    }
+
+    /**
+     * @return the largest minimum degree t whose full node (2t - 1 values, 2t children) always
+     * fits in a page of the given size.
+     */
+    public static int maxDegree(int pageSize) {
+        // header + (2t - 1) values + 2t children, at most four bytes each once written fixed width
+        return (pageSize - HEADER_SIZE + Integer.BYTES) / (4 * Integer.BYTES);
+    }
+
+    /**
+     * @return the smallest multiple of {@link #PAGE_SIZE} that holds a full node of degree t
+     */
+    public static int pageSizeFor(int t) {
+        long worstCase = HEADER_SIZE + (4L * t - 1) * Integer.BYTES;
+        long pages = Math.max(1, (worstCase + PAGE_SIZE - 1) / PAGE_SIZE);
+        if (pages * PAGE_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Minimum degree " + t + " is too large for a page");
+        }
+        return (int) (pages * PAGE_SIZE);
+    }
+
+    /**
+     * Encodes a node into a page.
+     * @param isLeaf whether the node is a leaf
+     * @param values the node's values in non-decreasing order
+     * @param count how many of the values are used
+     * @param childOffsets the file offsets of the count + 1 children (ignored for a leaf);
+     *                     every offset must be a multiple of the page size
+     * @param pageSize the size of the page to fill
+     * @param lsn the log sequence number of the page image, or 0
+     * @return the page, exactly {@code pageSize} bytes long
+     */
+    public static byte[] encode(boolean isLeaf, int[] values, int count, long[] childOffsets, int pageSize,
+                                long lsn) {
+        if (count > 0xFFFF) {
+            throw new IllegalArgumentException("Too many values for one page: " + count);
+        }
+        int children = isLeaf ? 0 : count + 1;
+        int packedSize = count > 0 ? varintSize((values[0] << 1) ^ (values[0] >> 31)) : 0;
+        for (int i = 1; i < count; i++) {
+            if (values[i] < values[i - 1]) {
+                throw new IllegalArgumentException("Values are not sorted at index " + i);
+            }
+            packedSize += varintSize(values[i] - values[i - 1]);
+        }
+        for (int i = 0; i < children; i++) {
+            if (childOffsets[i] < 0 || childOffsets[i] % pageSize != 0) {
+                throw new IllegalArgumentException("Child offset " + childOffsets[i] + " is not a page boundary");
+            }
+            packedSize += varintSize((int) (childOffsets[i] / pageSize));
+        }
+        boolean fixedWidth = HEADER_SIZE + packedSize > pageSize;
+        if (fixedWidth && HEADER_SIZE + (count + children) * Integer.BYTES > pageSize) {
+            throw new IllegalArgumentException(count + " values do not fit in a " + pageSize + "-byte page");
+        }
+
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        page.put((byte) FORMAT_VERSION);
+        page.put((byte) ((isLeaf ? LEAF_FLAG : 0) | (fixedWidth ? FIXED_WIDTH_FLAG : 0)));
+        page.putShort((short) count);
+        page.putInt(0); // checksum, filled in below
+        page.putLong(lsn);
+        if (fixedWidth) {
+            for (int i = 0; i < count; i++) {
+                page.putInt(values[i]);
+            }
+            for (int i = 0; i < children; i++) {
+                page.putInt((int) (childOffsets[i] / pageSize));
+            }
+        } else {
+            if (count > 0) {
+                putVarint(page, (values[0] << 1) ^ (values[0] >> 31));
+            }
+            for (int i = 1; i < count; i++) {
+                putVarint(page, values[i] - values[i - 1]);
+            }
+            for (int i = 0; i < children; i++) {
+                putVarint(page, (int) (childOffsets[i] / pageSize));
+            }
+        }
+        byte[] bytes = page.array();
+        PageChecksum.store(bytes, CHECKSUM_POSITION);
+        return bytes;
+    }
+
+    /**
+     * @return whether the page holds a leaf.
+     */
+    public static boolean isLeaf(ByteBuffer page) {
+        return (page.get(page.position() + 1) & LEAF_FLAG) != 0;
+    }
+
+    /**
+     * @return the number of values stored in the page.
+     */
+    public static int count(ByteBuffer page) {
+        return page.getShort(page.position() + 2) & 0xFFFF;
+    }
+
+    /**
+     * @return the log sequence number stored in the page.
+     */
+    public static long lsn(ByteBuffer page) {
+        return page.getLong(page.position() + LSN_POSITION);
+    }
+
+    /**
+     * Decodes the values and child offsets of a page written by {@link #encode}.
+     * @param page the page, from its position; the position is not changed
+     * @param values receives the {@link #count(ByteBuffer)} values
+     * @param childOffsets receives the child offsets if the page is an internal node
+     * @param pageSize the page size the page was written with
+     * @throws CorruptPageException if the checksum does not match or the page does not decode
+     */
+    public static void decode(ByteBuffer page, int[] values, long[] childOffsets, int pageSize) {
+        ByteBuffer in = page.duplicate();
+        int start = in.position();
+        int version = in.get() & 0xFF;
+        if (version != FORMAT_VERSION) {
+            throw new CorruptPageException("unknown node page version " + version);
+        }
+        PageChecksum.verify(page, start, pageSize, CHECKSUM_POSITION);
+        int flags = in.get();
+        boolean isLeaf = (flags & LEAF_FLAG) != 0;
+        int count = in.getShort() & 0xFFFF;
+        in.position(start + HEADER_SIZE);
+        if (count > values.length) {
+            throw new CorruptPageException("node page holds " + count + " values, expected at most " + values.length);
+        }
+        if ((flags & FIXED_WIDTH_FLAG) != 0) {
+            for (int i = 0; i < count; i++) {
+                values[i] = in.getInt();
+            }
+            if (!isLeaf) {
+                for (int i = 0; i <= count; i++) {
+                    childOffsets[i] = (in.getInt() & 0xFFFFFFFFL) * pageSize;
+                }
+            }
+            return;
+        }
+        if (count > 0) {
+            int zigzag = getVarint(in);
+            values[0] = (zigzag >>> 1) ^ -(zigzag & 1);
+            for (int i = 1; i < count; i++) {
+                values[i] = values[i - 1] + getVarint(in);
+            }
+        }
+        if (!isLeaf) {
+            for (int i = 0; i <= count; i++) {
+                childOffsets[i] = (getVarint(in) & 0xFFFFFFFFL) * pageSize;
+            }
+        }
+    }
+
+    /**
+     * Writes an unsigned 32-bit value in 1 to 5 bytes, 7 bits at a time.
+     */
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @return how many bytes {@link #putVarint} takes for the value
+     */
+    static int varintSize(int value) {
+        return (31 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new CorruptPageException("malformed varint in node page");
+    }
+}
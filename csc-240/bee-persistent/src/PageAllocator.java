@@ -0,0 +1,22 @@
+/**
+ * Hands out page offsets in a persistent B-tree file for newly created nodes
+ * and takes back the pages of nodes that were removed.
+ */
+public interface PageAllocator {
+
+    /**
+     * @return the offset of a page that is not used by any node.
+     */
+    long allocate();
+
+    /**
+     * Returns a page that no node refers to any more.
+     * @param offset the offset of the page to release.
+     */
+    void free(long offset);
+
+    /**
+     * @return the size in bytes of every page this allocator hands out.
+     */
+    int getPageSize();
+}
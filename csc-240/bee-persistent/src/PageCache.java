@@ -0,0 +1,698 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongFunction;
+
+/**
+ * A bounded buffer pool of decoded persistent B-tree nodes, keyed by their file offset.
+ * A node that is requested again while it is cached is returned as-is, so a hot
+ * root-to-leaf path is read and deserialized only once.
+ *
+ * The cache holds at most {@code byteBudget / pageSize} nodes. When it is full, the
+ * {@link EvictionPolicy} picks an unpinned victim; dirty victims are written back with
+ * {@link PersistentBTreeNode#writeToDisk()} before their frame is reused.
+ * Pin a node while an insert or split is working on it so it cannot be evicted underneath you.
+ *
+ * With a {@link WriteAheadLog} attached, dirty nodes stay in the cache until {@link #commit()}
+ * logs them, so a half-finished split is never written to the node file.
+ *
+ * A {@link BackgroundFlusher} can take the write-back off the caller's thread. It only writes
+ * nodes that are not pinned, so change a node only while you hold a pin on it and call
+ * {@code markDirty()} before you unpin it.
+ *
+ * A {@link Prefetcher} loads pages a scan will need soon on its own threads; {@link #prefetch(long)}
+ * queues one, and a lookup of a page that is still being prefetched waits for that read.
+ *
+ * A miss reads the page outside the cache lock, so lookups of cached pages are not held up by
+ * the disk. Other lookups of the same page wait for that read instead of starting their own.
+ */
+public class PageCache {
+
+    private static class Frame {
+        long offset = -1;
+        PersistentBTreeNode node;
+        int pinCount;
+        boolean countedDirty;
+        boolean prefetched; // loaded by the prefetcher and not asked for since
+    }
+
+    /**
+     * A dirty node handed to the {@link BackgroundFlusher} or logged by {@link #commit()}, with
+     * the image to write.
+     */
+    static final class DirtyPage {
+        final long offset;
+        final PersistentBTreeNode node;
+        final byte[] image;
+
+        DirtyPage(long offset, PersistentBTreeNode node, byte[] image) {
+            this.offset = offset;
+            this.node = node;
+            this.image = image;
+        }
+    }
+
+    private final int pageSize;
+    private final Frame[] frames;
+    private final HashMap<Long, Integer> frameByOffset;
+    private final LongFunction<? extends PersistentBTreeNode> loader;
+    private final EvictionPolicy policy;
+    private int used;
+    private WriteAheadLog log;
+
+    private BackgroundFlusher flusher;
+    private int dirtyCount; // frames seen dirty at their last put, unpin or write-back
+    private final HashSet<Long> inFlight = new HashSet<>(); // offsets the flusher is writing
+    private long flushRounds;
+    private long throttles;
+
+    private Prefetcher prefetcher;
+    // Offsets being read by a missed lookup or the prefetcher; false once the page was put or
+    // dropped meanwhile, so the now stale image is thrown away.
+    private final HashMap<Long, Boolean> loading = new HashMap<>();
+    private long prefetches;
+    private long prefetchHits;
+    private volatile BTreeMetrics metrics;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * Create a page cache that evicts with the CLOCK policy.
+     * @param byteBudget the maximum number of bytes of pages to keep in memory
+     * @param pageSize the size in bytes of one node on disk
+     * @param loader reads the node stored at a given offset (called on a cache miss)
+     */
+    public PageCache(long byteBudget, int pageSize, LongFunction<? extends PersistentBTreeNode> loader) {
+        this(byteBudget, pageSize, loader, new ClockEvictionPolicy(capacityFor(byteBudget, pageSize)));
+    }
+
+    /**
+     * Create a page cache with a custom eviction policy.
+     * @param byteBudget the maximum number of bytes of pages to keep in memory
+     * @param pageSize the size in bytes of one node on disk
+     * @param loader reads the node stored at a given offset (called on a cache miss)
+     * @param policy the eviction policy; it must be sized for {@code byteBudget / pageSize} frames
+     */
+    public PageCache(long byteBudget, int pageSize, LongFunction<? extends PersistentBTreeNode> loader,
+                     EvictionPolicy policy) {
+        this.pageSize = pageSize;
+        this.frames = new Frame[capacityFor(byteBudget, pageSize)];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame();
+        }
+        this.frameByOffset = new HashMap<>();
+        this.loader = loader;
+        this.policy = policy;
+    }
+
+    /**
+     * @return how many frames a cache with the given budget has (always at least one).
+     */
+    public static int capacityFor(long byteBudget, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, byteBudget / pageSize));
+    }
+
+    /**
+     * Returns the node stored at the given offset, loading it on a miss.
+     * The node is not pinned and may be evicted by a later call.
+     * @param offset the file offset of the node
+     * @return the cached node
+     */
+    public PersistentBTreeNode get(long offset) {
+        return acquire(offset, false);
+    }
+
+    /**
+     * Returns the node stored at the given offset and pins it so it cannot be evicted.
+     * Every call must be matched by a call to {@link #unpin(long)}.
+     * @param offset the file offset of the node
+     * @return the cached, pinned node
+     */
+    public PersistentBTreeNode pin(long offset) {
+        synchronized (this) {
+            throttle();
+        }
+        return acquire(offset, true);
+    }
+
+    /**
+     * Releases one pin on the node at the given offset.
+     * @param offset the file offset of a pinned node
+     */
+    public synchronized void unpin(long offset) {
+        Integer index = frameByOffset.get(offset);
+        if (index == null || frames[index].pinCount == 0) {
+            throw new IllegalStateException("Node at offset " + offset + " is not pinned");
+        }
+        frames[index].pinCount--;
+        noteDirtyState(frames[index]);
+    }
+
+    /**
+     * Adds a node that was created in memory (for example, the new sibling of a split)
+     * so later lookups of its offset do not go to disk. The node must already have an offset.
+     * @param node the node to cache
+     */
+    public synchronized void put(PersistentBTreeNode node) {
+        long offset = node.getOffset();
+        if (offset < 0) {
+            throw new IllegalArgumentException("Node has no offset");
+        }
+        throttle();
+        Integer index = frameByOffset.get(offset);
+        if (index == null) {
+            index = claimFrame();
+            frames[index].offset = offset;
+            frameByOffset.put(offset, index);
+        }
+        frames[index].node = node;
+        policy.recordAccess(index);
+        noteDirtyState(frames[index]);
+        loading.replace(offset, false);
+    }
+
+    /**
+     * Drops the node at the given offset without writing it back, e.g. after its page was freed.
+     * @param offset the file offset of the node
+     */
+    public synchronized void invalidate(long offset) {
+        Integer index = frameByOffset.get(offset);
+        if (index != null) {
+            if (frames[index].pinCount > 0) {
+                throw new IllegalStateException("Cannot invalidate pinned node at offset " + offset);
+            }
+            clear(index);
+        }
+        loading.replace(offset, false);
+    }
+
+    /**
+     * Returns the cached node at the given offset without loading it or counting a lookup.
+     * @return the node, or null if it is not cached
+     */
+    public synchronized PersistentBTreeNode peek(long offset) {
+        Integer index = frameByOffset.get(offset);
+        return index == null ? null : frames[index].node;
+    }
+
+    /**
+     * Asks the attached {@link Prefetcher} to load the page at the given offset in the background.
+     * Does nothing if there is no enabled prefetcher, or the page is cached or already on its way.
+     * @param offset the file offset of a node that will probably be needed soon
+     */
+    public synchronized void prefetch(long offset) {
+        if (prefetcher == null || !prefetcher.isEnabled() || offset < 0
+                || frameByOffset.containsKey(offset) || loading.containsKey(offset)) {
+            return;
+        }
+        loading.put(offset, true);
+        try {
+            prefetcher.submit(offset);
+        } catch (RejectedExecutionException e) {
+            loading.remove(offset);
+        }
+    }
+
+    /**
+     * @return how many pages ahead a scan should prefetch, or 0 without an enabled prefetcher.
+     */
+    public synchronized int getPrefetchDepth() {
+        return prefetcher != null && prefetcher.isEnabled() ? prefetcher.getDepth() : 0;
+    }
+
+    /**
+     * Writes every dirty cached node back to disk. Nodes stay cached.
+     * With a write-ahead log attached, use {@link #commit()} instead.
+     */
+    public synchronized void flush() {
+        // An older image still being written by the flusher must not land after this one.
+        while (!inFlight.isEmpty()) {
+            awaitChange();
+        }
+        for (Frame frame : frames) {
+            if (frame.node != null && frame.node.isDirty()) {
+                frame.node.writeToDisk();
+                writeBacks++;
+            }
+            noteDirtyState(frame);
+        }
+    }
+
+    /**
+     * Attaches a write-ahead log. From now on dirty nodes are only written to disk by
+     * {@link #commit()}, never by eviction.
+     * @param log the log that protects the node file, or null to detach it
+     */
+    public synchronized void setWriteAheadLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    public synchronized WriteAheadLog getWriteAheadLog() {
+        return log;
+    }
+
+    /**
+     * Records every lookup as a cache hit or miss in the given metrics, in addition to this
+     * cache's own statistics. Nodes that share the cache record their page I/O there too.
+     * @param metrics the metrics to record into, or null to stop recording
+     */
+    public void setMetrics(BTreeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public BTreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Makes every change since the last commit durable with a single log force, then writes the
+     * logged page images back to the node file. Call it after a group of inserts or removes
+     * rather than after each one.
+     * The page images are logged under the cache lock, but the log is forced and the images are
+     * written without it, so lookups go on meanwhile. A node changed after it was logged is not
+     * written: it stays dirty until the next commit logs it.
+     * @return the number of nodes that were committed
+     */
+    public int commit() throws IOException {
+        WriteAheadLog log;
+        long lsn;
+        List<DirtyPage> pages = new ArrayList<>();
+        synchronized (this) {
+            log = this.log;
+            if (log == null) {
+                throw new IllegalStateException("No write-ahead log attached");
+            }
+            // The images of an earlier commit still being written must not land after these.
+            while (!inFlight.isEmpty()) {
+                awaitChange();
+            }
+            for (Frame frame : frames) {
+                PersistentBTreeNode node = frame.node;
+                if (node != null && node.isDirty()) {
+                    byte[][] image = new byte[1][];
+                    log.logPage(frame.offset, pageLsn -> {
+                        node.setPageLsn(pageLsn);
+                        image[0] = node.toByteArray();
+                        return image[0];
+                    });
+                    pages.add(new DirtyPage(frame.offset, node, image[0]));
+                    node.markClean();
+                    inFlight.add(frame.offset);
+                }
+                noteDirtyState(frame);
+            }
+            lsn = log.logCommit();
+        }
+        boolean written = false;
+        try {
+            log.flushTo(lsn);
+            for (DirtyPage page : pages) {
+                page.node.writeToDisk(page.image);
+            }
+            written = true;
+        } finally {
+            finishFlush(pages, !written);
+        }
+        return pages.size();
+    }
+
+    /**
+     * Returns the cached node at the given offset, reading it on a miss without holding the lock.
+     * @param pin whether to pin the node before the lock is released
+     */
+    private PersistentBTreeNode acquire(long offset, boolean pin) {
+        while (true) {
+            synchronized (this) {
+                int index = lookup(offset);
+                if (index >= 0) {
+                    if (pin) {
+                        frames[index].pinCount++;
+                    }
+                    return frames[index].node;
+                }
+            }
+            PersistentBTreeNode node;
+            try {
+                node = loader.apply(offset);
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    loading.remove(offset);
+                    notifyAll();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                Boolean current = loading.remove(offset);
+                notifyAll();
+                if (Boolean.TRUE.equals(current) && !frameByOffset.containsKey(offset)) {
+                    int index = claimFrame();
+                    install(index, offset, node);
+                    if (pin) {
+                        frames[index].pinCount++;
+                    }
+                    return node;
+                }
+                // The page was put or dropped while we read it, so the image may be stale; look again.
+            }
+        }
+    }
+
+    /**
+     * Finds the frame of the given offset, waiting for a read or write of it that is in progress.
+     * On a miss, records the offset as loading so other lookups wait for the caller's read.
+     * @return the frame index, or -1 if the caller has to read the page
+     */
+    private int lookup(long offset) {
+        Integer index = frameByOffset.get(offset);
+        while (index == null && (inFlight.contains(offset) || loading.containsKey(offset))) {
+            // Wait for the flusher's write to land, or for the prefetcher's read to arrive.
+            awaitChange();
+            index = frameByOffset.get(offset);
+        }
+        if (index != null) {
+            hits++;
+            if (BTreeMetrics.ENABLED && metrics != null) {
+                metrics.recordCacheHit();
+            }
+            if (frames[index].prefetched) {
+                frames[index].prefetched = false;
+                prefetchHits++;
+            }
+            policy.recordAccess(index);
+            return index;
+        }
+        misses++;
+        if (BTreeMetrics.ENABLED && metrics != null) {
+            metrics.recordCacheMiss();
+        }
+        loading.put(offset, true);
+        return -1;
+    }
+
+    private void install(int index, long offset, PersistentBTreeNode node) {
+        frames[index].offset = offset;
+        frames[index].node = node;
+        frameByOffset.put(offset, index);
+        policy.recordAccess(index);
+    }
+
+    private int claimFrame() {
+        return claimFrame(true);
+    }
+
+    /**
+     * @param required whether to throw if every frame is pinned, rather than return -1
+     */
+    private int claimFrame(boolean required) {
+        if (used < frames.length) {
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i].node == null) {
+                    used++;
+                    return i;
+                }
+            }
+        }
+        int victim = policy.chooseVictim(i -> frames[i].node != null && frames[i].pinCount == 0
+                && (log == null || !frames[i].node.isDirty()) && !inFlight.contains(frames[i].offset));
+        if (victim < 0) {
+            if (!required) {
+                return -1;
+            }
+            if (log != null) {
+                throw new IllegalStateException("All " + frames.length
+                        + " cache frames are pinned or hold uncommitted changes; commit more often");
+            }
+            throw new IllegalStateException("All " + frames.length + " cache frames are pinned");
+        }
+        PersistentBTreeNode node = frames[victim].node;
+        if (node.isDirty()) {
+            node.writeToDisk();
+            writeBacks++;
+            loading.replace(frames[victim].offset, false);
+        }
+        evictions++;
+        clear(victim);
+        used++;
+        return victim;
+    }
+
+    private void clear(int index) {
+        Frame frame = frames[index];
+        frameByOffset.remove(frame.offset);
+        policy.remove(index);
+        frame.offset = -1;
+        frame.node = null;
+        frame.pinCount = 0;
+        frame.prefetched = false;
+        noteDirtyState(frame);
+        used--;
+    }
+
+    // -------- Prefetching --------
+
+    synchronized void attachPrefetcher(Prefetcher prefetcher) {
+        if (this.prefetcher != null && prefetcher != null) {
+            throw new IllegalStateException("A prefetcher is already attached");
+        }
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Reads a page queued by {@link #prefetch(long)}. Runs on a prefetch thread, outside the
+     * cache lock, so lookups of other pages go on meanwhile.
+     */
+    void loadPrefetched(long offset) {
+        PersistentBTreeNode node = null;
+        try {
+            node = loader.apply(offset);
+        } catch (RuntimeException e) {
+            // Leave it to the lookup that actually needs the page to read it again and report it.
+        } finally {
+            installPrefetched(offset, node);
+        }
+    }
+
+    private synchronized void installPrefetched(long offset, PersistentBTreeNode node) {
+        Boolean current = loading.remove(offset);
+        notifyAll();
+        if (node == null || !Boolean.TRUE.equals(current) || frameByOffset.containsKey(offset)) {
+            return;
+        }
+        int free = claimFrame(false);
+        if (free < 0) {
+            return;
+        }
+        install(free, offset, node);
+        frames[free].prefetched = true;
+        prefetches++;
+    }
+
+    // -------- Background flushing --------
+
+    /**
+     * Keeps {@link #dirtyCount} in step with a frame whose node may have changed state, and
+     * wakes the flusher when the count reaches its low watermark.
+     */
+    private void noteDirtyState(Frame frame) {
+        boolean dirty = frame.node != null && frame.node.isDirty();
+        if (dirty != frame.countedDirty) {
+            frame.countedDirty = dirty;
+            dirtyCount += dirty ? 1 : -1;
+            if (dirty && flusher != null && dirtyCount == flusher.getLowWatermark()) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Makes a writer wait for one flush round while the cache is at the high watermark.
+     * Waiting for a round rather than for the count to drop means a writer that holds pins on
+     * dirty nodes itself cannot wait forever.
+     */
+    private void throttle() {
+        if (flusher == null || dirtyCount < flusher.getHighWatermark() || !flusher.isRunning()) {
+            return;
+        }
+        throttles++;
+        long round = flushRounds;
+        notifyAll();
+        while (flushRounds == round && flusher != null && flusher.isRunning()) {
+            awaitChange();
+        }
+    }
+
+    private void awaitChange() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a page", e);
+        }
+    }
+
+    synchronized void wakeFlusher() {
+        notifyAll();
+    }
+
+    synchronized void attachFlusher(BackgroundFlusher flusher) {
+        if (this.flusher != null && flusher != null) {
+            throw new IllegalStateException("A flusher is already attached");
+        }
+        this.flusher = flusher;
+        notifyAll();
+    }
+
+    /**
+     * Serializes every dirty node that is not pinned or already being written, marks it clean
+     * and records it as in flight. Returns nothing while a write-ahead log is attached:
+     * then only {@link #commit()} may write nodes.
+     * @return the pages to write, in offset order
+     */
+    synchronized List<DirtyPage> takeDirtyPages() {
+        List<DirtyPage> pages = new ArrayList<>();
+        if (log != null) {
+            return pages;
+        }
+        for (Frame frame : frames) {
+            PersistentBTreeNode node = frame.node;
+            if (node != null && node.isDirty() && frame.pinCount == 0 && !inFlight.contains(frame.offset)) {
+                pages.add(new DirtyPage(frame.offset, node, node.toByteArray()));
+                node.markClean();
+                inFlight.add(frame.offset);
+            }
+            noteDirtyState(frame);
+        }
+        pages.sort((a, b) -> Long.compare(a.offset, b.offset));
+        return pages;
+    }
+
+    /**
+     * Ends a flush round started by {@link #takeDirtyPages()} or {@link #commit()}. If the writes
+     * failed, the nodes that are still cached are marked dirty again so their changes are not lost.
+     */
+    synchronized void finishFlush(List<DirtyPage> pages, boolean failed) {
+        for (DirtyPage page : pages) {
+            inFlight.remove(page.offset);
+            if (failed) {
+                Integer index = frameByOffset.get(page.offset);
+                if (index != null && frames[index].node == page.node) {
+                    page.node.markDirty();
+                    noteDirtyState(frames[index]);
+                }
+            } else {
+                writeBacks++;
+            }
+        }
+        flushRounds++;
+        notifyAll();
+    }
+
+    /**
+     * Blocks the flusher until there is work: the dirty count reached the low watermark, a
+     * writer is throttled, the flusher is stopping, or the timeout passed.
+     */
+    synchronized void awaitWork(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (remaining > 0 && flusher != null && flusher.isRunning()
+                && dirtyCount < flusher.getLowWatermark()) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the maximum number of nodes this cache can hold.
+     */
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    /**
+     * @return the number of nodes currently cached.
+     */
+    public synchronized int size() {
+        return used;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getWriteBacks() {
+        return writeBacks;
+    }
+
+    /**
+     * @return the number of nodes that were dirty when last seen by a put, unpin or flush.
+     */
+    public synchronized int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * @return how often a writer had to wait for the flusher at the high watermark.
+     */
+    public synchronized long getThrottles() {
+        return throttles;
+    }
+
+    /**
+     * @return the number of pages the prefetcher loaded into the cache.
+     */
+    public synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    /**
+     * @return the number of prefetched pages that were asked for before being evicted.
+     */
+    public synchronized long getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    /**
+     * @return hits / (hits + misses), or 0 if the cache has not been used yet.
+     */
+    public synchronized double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        writeBacks = 0;
+        throttles = 0;
+        prefetches = 0;
+        prefetchHits = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PageCache[" + used + "/" + frames.length + " frames, hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + ", writeBacks=" + writeBacks + "]";
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C page checksums. The checksum is stored inside the page it covers, so it is computed
+ * with its own four bytes taken as zero. {@link CRC32C} is backed by the CPU's CRC32 instructions
+ * where they exist, so checking every page read costs little next to the read itself.
+ */
+public final class PageChecksum {
+
+    private static final byte[] ZERO = new byte[4];
+
+    private PageChecksum() {
+    }
+
+    /**
+     * @param page a buffer holding the page from {@code start}
+     * @param start the position of the page in the buffer
+     * @param length the length of the page
+     * @param checksumPosition where the 4-byte checksum field sits, relative to {@code start}
+     * @return the CRC32C of the page with the checksum field zeroed
+     */
+    public static int compute(ByteBuffer page, int start, int length, int checksumPosition) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer view = page.duplicate();
+        view.limit(start + checksumPosition).position(start);
+        crc.update(view);
+        crc.update(ZERO);
+        view.limit(start + length).position(start + checksumPosition + ZERO.length);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Computes the checksum of a page and stores it in the page's checksum field.
+     */
+    public static void store(byte[] page, int checksumPosition) {
+        ByteBuffer buffer = ByteBuffer.wrap(page);
+        buffer.putInt(checksumPosition, compute(buffer, 0, page.length, checksumPosition));
+    }
+
+    /**
+     * @throws CorruptPageException if the stored checksum does not match the page
+     */
+    public static void verify(ByteBuffer page, int start, int length, int checksumPosition) {
+        int stored = page.getInt(start + checksumPosition);
+        int actual = compute(page, start, length, checksumPosition);
+        if (stored != actual) {
+            throw new CorruptPageException(String.format(
+                    "checksum mismatch (stored %08x, computed %08x); torn write or bit rot", stored, actual));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * The storage backend that persistent B-tree nodes are read from and written to.
+ * Offsets are byte positions in the underlying file.
+ */
+public interface PageFile extends Closeable {
+
+    /**
+     * Reads {@code length} bytes starting at {@code offset}.
+     * The returned buffer has position 0 and limit {@code length}. It may be a view of the
+     * backing storage, so it is only valid until the next write to the same range.
+     * @param offset the byte position to read from
+     * @param length the number of bytes to read
+     * @return a buffer holding the requested bytes
+     * @throws IOException if the range lies past the end of the file or the read fails
+     */
+    ByteBuffer read(long offset, int length) throws IOException;
+
+    /**
+     * Writes the given bytes starting at {@code offset}, growing the file if needed.
+     * @param offset the byte position to write to
+     * @param bytes the bytes to write
+     * @throws IOException if the write fails
+     */
+    void write(long offset, byte[] bytes) throws IOException;
+
+    /**
+     * Writes consecutive pages starting at {@code offset}, as if each were passed to
+     * {@link #write(long, byte[])} in turn. Backends that can, write them with one vectored call.
+     * @param offset the byte position of the first page
+     * @param pages the pages to write, from their positions; the positions are advanced
+     */
+    default void write(long offset, ByteBuffer[] pages) throws IOException {
+        for (ByteBuffer page : pages) {
+            byte[] bytes = new byte[page.remaining()];
+            page.get(bytes);
+            write(offset, bytes);
+            offset += bytes.length;
+        }
+    }
+
+    /**
+     * @return the number of bytes in the file.
+     */
+    long length() throws IOException;
+
+    /**
+     * Shrinks the file to the given length. Does nothing if the file is already shorter.
+     * @param length the new length in bytes
+     */
+    void truncate(long length) throws IOException;
+
+    /**
+     * Forces every write made so far to the storage device.
+     */
+    void force() throws IOException;
+
+    /**
+     * Opens a page file on disk.
+     * @param path the file to open (it is created if it does not exist)
+     * @param memoryMapped true to use {@link MappedPageFile}, false for {@link RandomAccessPageFile}
+     * @return the opened page file
+     */
+    static PageFile open(String path, boolean memoryMapped) throws IOException {
+        if (memoryMapped) {
+            return new MappedPageFile(path);
+        }
+        return new RandomAccessPageFile(new RandomAccessFile(path, "rw"));
+    }
+}
@@ -0,0 +1,1035 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+/**
+ * A B+-tree node that plugs into {@link BTree} like the other node classes.
+ *
+ * Unlike a classic B-tree, every value lives in a leaf. Internal nodes only hold separator keys
+ * (the first value of the subtree to their right) and child offsets, so an internal page has no
+ * payload to carry and its fan-out is as high as the page allows. Leaves are chained with
+ * previous/next offsets, which lets a range scan walk the leaf pages in order instead of going
+ * back up and down the tree (see {@link BPlusTreeCursor}).
+ *
+ * The node works purely in memory when no page file is set. With a page file, new nodes get
+ * their offsets from a {@link PageAllocator}, and nodes read back from disk are always looked up
+ * by offset through a {@link PageCache} (using {@link #load(long)} as its loader) and pinned
+ * while they are changed. A child and a leaf sibling can be the same page, so the cache is what
+ * guarantees that both paths see the same object.
+ *
+ * Use {@link #newNode(boolean)} as the tree's node creator so that every node shares the same
+ * storage, e.g. {@code new BTree<>(t, root, root::newNode)}.
+ */
+public class PersistentBPlusTreeNode implements PersistentBTreeNode {
+
+    // leaf flag, key count, CRC32C, LSN, prev, next
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 8 + 8 + 8;
+    private static final int CHECKSUM_POSITION = 1 + 4;
+    private static final int MIN_PAGE_SIZE = 4096;
+    private static final String NEEDS_CACHE =
+            "Reading B+-tree nodes from disk needs a PageCache, so that every page has a single copy in memory";
+
+    protected int t;
+    protected int[] keys;
+    protected int numKeys;
+    protected boolean isLeaf;
+
+    protected long[] childOffsets;
+    protected PersistentBPlusTreeNode[] childRefs; // only used for nodes that are not behind a page cache
+
+    protected long prevOffset = -1;
+    protected long nextOffset = -1;
+    protected PersistentBPlusTreeNode prevRef;
+    protected PersistentBPlusTreeNode nextRef;
+
+    protected long offset = -1;
+    protected long pageLsn;
+    protected boolean dirty = true;
+    protected PageFile pageFile;
+    protected PageCache cache;
+    protected PageAllocator allocator;
+    protected KeySearch keySearch;
+    protected BTreeMetrics metrics; // for nodes without a cache; cached nodes use the cache's
+
+    public PersistentBPlusTreeNode(int t, boolean isLeaf) {
+        if (t < 2) {
+            throw new IllegalArgumentException("Minimum degree must be at least 2");
+        }
+        this.t = t;
+        this.isLeaf = isLeaf;
+        this.keys = new int[2 * t - 1];
+        this.childOffsets = new long[2 * t];
+        this.childRefs = new PersistentBPlusTreeNode[2 * t];
+        Arrays.fill(childOffsets, -1);
+        this.numKeys = 0;
+        this.keySearch = KeySearch.forDegree(t);
+    }
+
+    /**
+     * @return the page size needed by a node of minimum degree t, rounded up to whole 4 KiB pages.
+     */
+    public static int pageSizeFor(int t) {
+        int needed = HEADER_SIZE + (2 * t - 1) * Integer.BYTES + 2 * t * Long.BYTES;
+        return (needed + MIN_PAGE_SIZE - 1) / MIN_PAGE_SIZE * MIN_PAGE_SIZE;
+    }
+
+    // -------- Storage sharing --------
+
+    public void setAllocator(PageAllocator allocator) {
+        if (allocator != null && allocator.getPageSize() != getNodeSizeInBytes()) {
+            throw new IllegalArgumentException("Allocator page size " + allocator.getPageSize()
+                    + " does not match node size " + getNodeSizeInBytes());
+        }
+        this.allocator = allocator;
+    }
+
+    public void setPageCache(PageCache cache) {
+        this.cache = cache;
+    }
+
+    public PageCache getPageCache() {
+        return cache;
+    }
+
+    /**
+     * Sets how keys are located within a node. The default is {@link KeySearch#forDegree(int)};
+     * set it on the storage node before the root is created so every node of the tree shares it.
+     */
+    public void setKeySearch(KeySearch keySearch) {
+        this.keySearch = keySearch;
+    }
+
+    public KeySearch getKeySearch() {
+        return keySearch;
+    }
+
+    /**
+     * Creates an empty node that shares this node's page file, cache, allocator and key search.
+     * If there is a page file, the node is given a freshly allocated offset.
+     * @param isLeaf whether the new node is a leaf
+     * @return the new node
+     */
+    public PersistentBPlusTreeNode newNode(boolean isLeaf) {
+        PersistentBPlusTreeNode node = new PersistentBPlusTreeNode(t, isLeaf);
+        shareStorage(node);
+        if (pageFile != null) {
+            if (allocator == null) {
+                throw new IllegalStateException("A page allocator is needed to create persistent nodes");
+            }
+            node.offset = allocator.allocate();
+            if (cache != null) {
+                cache.put(node);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Reads the node stored at the given offset, bypassing the cache. This is the loader
+     * to hand to a {@link PageCache} for B+-tree nodes.
+     * @param offset the byte position of the node
+     * @return the decoded node, sharing this node's storage
+     */
+    public PersistentBPlusTreeNode load(long offset) {
+        PersistentBPlusTreeNode node = new PersistentBPlusTreeNode(t, true);
+        shareStorage(node);
+        node.readFromDisk(offset);
+        return node;
+    }
+
+    private void shareStorage(PersistentBPlusTreeNode node) {
+        node.pageFile = pageFile;
+        node.cache = cache;
+        node.allocator = allocator;
+        node.keySearch = keySearch;
+        node.metrics = metrics;
+    }
+
+    /**
+     * Records this tree's splits, merges, borrows and page I/O into the given metrics, and the
+     * cache hits of its page cache. {@link BTree#setMetrics(BTreeMetrics)} calls this on the root.
+     * @param metrics the metrics to record into, or null to stop recording
+     */
+    @Override
+    public void setMetrics(BTreeMetrics metrics) {
+        this.metrics = metrics;
+        if (cache != null) {
+            cache.setMetrics(metrics);
+        }
+    }
+
+    private BTreeMetrics metrics() {
+        return cache != null ? cache.getMetrics() : metrics;
+    }
+
+    /**
+     * Writes every dirty node reachable from this one. With a page cache, flush the cache instead.
+     */
+    public void writeDirtyNodes() {
+        if (cache != null) {
+            cache.flush();
+            return;
+        }
+        if (dirty) {
+            writeToDisk();
+        }
+        if (!isLeaf) {
+            for (int i = 0; i <= numKeys; i++) {
+                if (childRefs[i] != null) {
+                    childRefs[i].writeDirtyNodes();
+                }
+            }
+        }
+    }
+
+    /**
+     * Compacts the file of the tree that this node is the root of. Live pages past the point where
+     * a gap-free tree would end are moved into the holes left by freed (or leaked) pages, their
+     * parent and leaf-sibling links are updated, and the file is cut after the last live page.
+     * The tree stays usable: this node remains the root, although its offset may change.
+     *
+     * Needs a page cache and a {@link FreeListPageAllocator}, and no other operation may run on
+     * the tree at the same time. The new root offset is stored in the allocator's header.
+     * @return the offset of the root afterwards
+     */
+    public long vacuum() throws IOException {
+        if (cache == null || !(allocator instanceof FreeListPageAllocator)) {
+            throw new IllegalStateException("Vacuum needs a PageCache and a FreeListPageAllocator");
+        }
+        FreeListPageAllocator freeList = (FreeListPageAllocator) allocator;
+        int pageSize = getNodeSizeInBytes();
+        enter();
+        try {
+            // Find every live page and the page that points to it.
+            HashMap<Long, Long> parents = new HashMap<>();
+            parents.put(offset, -1L);
+            ArrayDeque<Long> pending = new ArrayDeque<>();
+            pending.add(offset);
+            while (!pending.isEmpty()) {
+                long page = pending.poll();
+                PersistentBPlusTreeNode node = pinPage(page);
+                try {
+                    if (!node.isLeaf) {
+                        for (int i = 0; i <= node.numKeys; i++) {
+                            parents.put(node.childOffsets[i], page);
+                            pending.add(node.childOffsets[i]);
+                        }
+                    }
+                } finally {
+                    unpinPage(node);
+                }
+            }
+
+            long end = pageSize + (long) parents.size() * pageSize;
+            ArrayList<Long> moving = new ArrayList<>();
+            for (long page : parents.keySet()) {
+                if (page >= end) {
+                    moving.add(page);
+                }
+            }
+            int next = 0;
+            for (long hole = pageSize; hole < end && next < moving.size(); hole += pageSize) {
+                if (!parents.containsKey(hole)) {
+                    relocate(moving.get(next++), hole, parents);
+                }
+            }
+
+            if (cache.getWriteAheadLog() != null) {
+                cache.commit();
+            } else {
+                cache.flush();
+            }
+            freeList.truncateTo(end);
+            freeList.setRootOffset(offset);
+            freeList.sync();
+            return offset;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Moves the live page at {@code from} to the unused page at {@code to} and repoints its parent,
+     * its leaf neighbours and the parent entries of its children.
+     */
+    private void relocate(long from, long to, HashMap<Long, Long> parents) {
+        PersistentBPlusTreeNode node = pinPage(from);
+        long parentOffset = parents.remove(from);
+        try {
+            if (parentOffset >= 0) {
+                PersistentBPlusTreeNode parent = pinPage(parentOffset);
+                try {
+                    for (int i = 0; i <= parent.numKeys; i++) {
+                        if (parent.childOffsets[i] == from) {
+                            parent.childOffsets[i] = to;
+                        }
+                    }
+                    parent.markDirty();
+                } finally {
+                    unpinPage(parent);
+                }
+            }
+            if (node.isLeaf) {
+                if (node.prevOffset >= 0) {
+                    PersistentBPlusTreeNode prev = pinPage(node.prevOffset);
+                    prev.nextOffset = to;
+                    prev.markDirty();
+                    unpinPage(prev);
+                }
+                if (node.nextOffset >= 0) {
+                    PersistentBPlusTreeNode next = pinPage(node.nextOffset);
+                    next.prevOffset = to;
+                    next.markDirty();
+                    unpinPage(next);
+                }
+            } else {
+                for (int i = 0; i <= node.numKeys; i++) {
+                    parents.put(node.childOffsets[i], to);
+                }
+            }
+        } finally {
+            unpinPage(node);
+        }
+        parents.put(to, parentOffset);
+
+        // This node stays pinned for the whole vacuum, so drop its pin while it changes frames.
+        if (node == this) {
+            cache.unpin(from);
+        }
+        cache.invalidate(from);
+        node.offset = to;
+        node.markDirty();
+        cache.put(node);
+        if (node == this) {
+            cache.pin(to);
+        }
+    }
+
+    /**
+     * Pins the page at the given offset, except for this node, which {@link #vacuum()} keeps pinned.
+     */
+    private PersistentBPlusTreeNode pinPage(long page) {
+        return page == offset ? this : (PersistentBPlusTreeNode) cache.pin(page);
+    }
+
+    private void unpinPage(PersistentBPlusTreeNode node) {
+        if (node != this) {
+            cache.unpin(node.offset);
+        }
+    }
+
+    // -------- Navigation --------
+
+    PersistentBPlusTreeNode child(int index) {
+        if (cache != null && childOffsets[index] >= 0) {
+            return (PersistentBPlusTreeNode) cache.get(childOffsets[index]);
+        }
+        if (childRefs[index] == null && childOffsets[index] >= 0) {
+            throw new IllegalStateException(NEEDS_CACHE);
+        }
+        return childRefs[index];
+    }
+
+    /**
+     * Like {@link #child(int)}, but pins the child in the cache until {@link #release} is called.
+     */
+    private PersistentBPlusTreeNode acquireChild(int index) {
+        if (cache != null && childOffsets[index] >= 0) {
+            return (PersistentBPlusTreeNode) cache.pin(childOffsets[index]);
+        }
+        return child(index);
+    }
+
+    private PersistentBPlusTreeNode acquireSibling(boolean next) {
+        long siblingOffset = next ? nextOffset : prevOffset;
+        PersistentBPlusTreeNode ref = next ? nextRef : prevRef;
+        if (cache != null && siblingOffset >= 0) {
+            return (PersistentBPlusTreeNode) cache.pin(siblingOffset);
+        }
+        if (ref == null && siblingOffset >= 0) {
+            throw new IllegalStateException(NEEDS_CACHE);
+        }
+        return ref;
+    }
+
+    private void release(PersistentBPlusTreeNode node) {
+        if (node != null && cache != null && node.offset >= 0) {
+            cache.unpin(node.offset);
+        }
+    }
+
+    /**
+     * Makes sure this exact object is the cached copy of its page and pins it while it is changed.
+     */
+    private void enter() {
+        if (cache != null && offset >= 0) {
+            cache.put(this);
+            cache.pin(offset);
+        }
+    }
+
+    private void exit() {
+        release(this);
+    }
+
+    private void setChild(int index, PersistentBPlusTreeNode node) {
+        childOffsets[index] = node == null ? -1 : node.offset;
+        childRefs[index] = node == null || (cache != null && node.offset >= 0) ? null : node;
+    }
+
+    private static void copyChild(PersistentBPlusTreeNode from, int fromIndex, PersistentBPlusTreeNode to, int toIndex) {
+        to.childOffsets[toIndex] = from.childOffsets[fromIndex];
+        to.childRefs[toIndex] = from.childRefs[fromIndex];
+    }
+
+    private void clearChild(int index) {
+        childOffsets[index] = -1;
+        childRefs[index] = null;
+    }
+
+    private void setNext(PersistentBPlusTreeNode node) {
+        nextOffset = node == null ? -1 : node.offset;
+        nextRef = node == null || (cache != null && node.offset >= 0) ? null : node;
+    }
+
+    private void setPrev(PersistentBPlusTreeNode node) {
+        prevOffset = node == null ? -1 : node.offset;
+        prevRef = node == null || (cache != null && node.offset >= 0) ? null : node;
+    }
+
+    /**
+     * @return the number of keys that are less than or equal to value (the child to descend into).
+     */
+    private int upperBound(int value) {
+        return keySearch.upperBound(keys, numKeys, value);
+    }
+
+    /**
+     * @return the number of keys that are strictly less than value.
+     */
+    private int lowerBound(int value) {
+        return keySearch.lowerBound(keys, numKeys, value);
+    }
+
+    /**
+     * Descends to the leaf where a scan starting at {@code value} begins.
+     * @param value the first value of an ascending scan, or the last value of a descending one
+     * @param descending true for a descending scan
+     */
+    PersistentBPlusTreeNode findLeaf(int value, boolean descending) {
+        PersistentBPlusTreeNode node = this;
+        while (!node.isLeaf) {
+            node = node.child(descending ? node.upperBound(value) : node.lowerBound(value));
+        }
+        return node;
+    }
+
+    /**
+     * Like {@link #findLeaf(int, boolean)}, but also records each internal node passed and the
+     * index of the child taken there, so a scan can tell which leaves come after this one.
+     */
+    PersistentBPlusTreeNode findLeaf(int value, boolean descending, List<PersistentBPlusTreeNode> path,
+                                     List<Integer> indexes) {
+        PersistentBPlusTreeNode node = this;
+        while (!node.isLeaf) {
+            int index = descending ? node.upperBound(value) : node.lowerBound(value);
+            path.add(node);
+            indexes.add(index);
+            node = node.child(index);
+        }
+        return node;
+    }
+
+    /**
+     * @return the leaf to the right of this one, or null for the last leaf.
+     */
+    PersistentBPlusTreeNode nextLeaf() {
+        if (cache != null && nextOffset >= 0) {
+            return (PersistentBPlusTreeNode) cache.get(nextOffset);
+        }
+        return acquireSibling(true);
+    }
+
+    /**
+     * @return the leaf to the left of this one, or null for the first leaf.
+     */
+    PersistentBPlusTreeNode previousLeaf() {
+        if (cache != null && prevOffset >= 0) {
+            return (PersistentBPlusTreeNode) cache.get(prevOffset);
+        }
+        return acquireSibling(false);
+    }
+
+    // -------- BTreeNode --------
+
+    @Override
+    public boolean isLeaf() {
+        return isLeaf;
+    }
+
+    @Override
+    public int getNumValues() {
+        return numKeys;
+    }
+
+    @Override
+    public BTreeNode search(int value) {
+        PersistentBPlusTreeNode leaf = this;
+        while (!leaf.isLeaf) {
+            leaf = leaf.child(leaf.upperBound(value));
+        }
+        return leaf.keySearch.indexOf(leaf.keys, leaf.numKeys, value) >= 0 ? leaf : null;
+    }
+
+    @Override
+    public void insertNonFull(int value) {
+        enter();
+        insertPinned(value);
+    }
+
+    /**
+     * Inserts below this node, which the caller has pinned. The pin is handed over: it is released
+     * as soon as this node's own changes are done, so a descent keeps only a couple of pages pinned.
+     */
+    private void insertPinned(int value) {
+        PersistentBPlusTreeNode target;
+        try {
+            int i = upperBound(value);
+            if (isLeaf) {
+                System.arraycopy(keys, i, keys, i + 1, numKeys - i);
+                keys[i] = value;
+                numKeys++;
+                markDirty();
+                return;
+            }
+            target = acquireChild(i);
+            if (target.numKeys == 2 * t - 1) {
+                splitChild(i, target);
+                if (value >= keys[i]) {
+                    PersistentBPlusTreeNode right = acquireChild(i + 1);
+                    release(target);
+                    target = right;
+                }
+            }
+        } finally {
+            exit();
+        }
+        target.insertPinned(value);
+    }
+
+    @Override
+    public void splitChild(int index, BTreeNode fullChild) {
+        if (BTreeMetrics.ENABLED && metrics() != null) {
+            metrics().recordSplit();
+        }
+        PersistentBPlusTreeNode left = (PersistentBPlusTreeNode) fullChild;
+        enter();
+        left.enter();
+        PersistentBPlusTreeNode right = newNode(left.isLeaf);
+        right.enter();
+        try {
+            int separator;
+            if (left.isLeaf) {
+                // Leaves keep every value: the right half starts with the separator.
+                int keep = t - 1;
+                right.numKeys = left.numKeys - keep;
+                System.arraycopy(left.keys, keep, right.keys, 0, right.numKeys);
+                left.numKeys = keep;
+                separator = right.keys[0];
+
+                PersistentBPlusTreeNode oldNext = left.acquireSibling(true);
+                try {
+                    right.setPrev(left);
+                    right.setNext(oldNext);
+                    left.setNext(right);
+                    if (oldNext != null) {
+                        oldNext.setPrev(right);
+                        oldNext.markDirty();
+                    }
+                } finally {
+                    release(oldNext);
+                }
+            } else {
+                // Internal nodes move the middle key up.
+                separator = left.keys[t - 1];
+                right.numKeys = t - 1;
+                System.arraycopy(left.keys, t, right.keys, 0, t - 1);
+                for (int j = 0; j < t; j++) {
+                    copyChild(left, j + t, right, j);
+                    left.clearChild(j + t);
+                }
+                left.numKeys = t - 1;
+            }
+
+            for (int j = numKeys; j > index; j--) {
+                copyChild(this, j, this, j + 1);
+            }
+            System.arraycopy(keys, index, keys, index + 1, numKeys - index);
+            keys[index] = separator;
+            setChild(index, left);
+            setChild(index + 1, right);
+            numKeys++;
+
+            markDirty();
+            left.markDirty();
+            right.markDirty();
+        } finally {
+            right.exit();
+            left.exit();
+            exit();
+        }
+    }
+
+    @Override
+    public String traverse() {
+        StringBuilder out = new StringBuilder();
+        PersistentBPlusTreeNode leaf = this;
+        while (!leaf.isLeaf) {
+            leaf = leaf.child(0);
+        }
+        while (leaf != null) {
+            for (int i = 0; i < leaf.numKeys; i++) {
+                if (out.length() > 0) {
+                    out.append(' ');
+                }
+                out.append(leaf.keys[i]);
+            }
+            leaf = leaf.nextLeaf();
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void remove(int value) {
+        enter();
+        removePinned(value);
+    }
+
+    /**
+     * Removes below this node, which the caller has pinned; the pin is handed over like in insertPinned.
+     */
+    private void removePinned(int value) {
+        PersistentBPlusTreeNode target;
+        try {
+            if (isLeaf) {
+                int i = keySearch.indexOf(keys, numKeys, value);
+                if (i >= 0) {
+                    System.arraycopy(keys, i + 1, keys, i, numKeys - i - 1);
+                    numKeys--;
+                    markDirty();
+                }
+                return;
+            }
+            int i = upperBound(value);
+            if (child(i).numKeys < t) {
+                // Make sure the child can lose a value before descending into it.
+                fill(i);
+                i = upperBound(value);
+            }
+            target = acquireChild(i);
+        } finally {
+            exit();
+        }
+        target.removePinned(value);
+    }
+
+    private void fill(int index) {
+        if (index > 0 && child(index - 1).numKeys >= t) {
+            borrowFromPrev(index);
+        } else if (index < numKeys && child(index + 1).numKeys >= t) {
+            borrowFromNext(index);
+        } else if (index < numKeys) {
+            merge(index);
+        } else {
+            merge(index - 1);
+        }
+    }
+
+    @Override
+    public int getPredecessor(int index) {
+        PersistentBPlusTreeNode node = child(index);
+        while (!node.isLeaf) {
+            node = node.child(node.numKeys);
+        }
+        return node.keys[node.numKeys - 1];
+    }
+
+    @Override
+    public int getSuccessor(int index) {
+        PersistentBPlusTreeNode node = child(index + 1);
+        while (!node.isLeaf) {
+            node = node.child(0);
+        }
+        return node.keys[0];
+    }
+
+    @Override
+    public void borrowFromPrev(int index) {
+        if (BTreeMetrics.ENABLED && metrics() != null) {
+            metrics().recordBorrowFromPrev();
+        }
+        enter();
+        PersistentBPlusTreeNode target = acquireChild(index);
+        PersistentBPlusTreeNode sibling = acquireChild(index - 1);
+        try {
+            System.arraycopy(target.keys, 0, target.keys, 1, target.numKeys);
+            if (target.isLeaf) {
+                target.keys[0] = sibling.keys[sibling.numKeys - 1];
+                keys[index - 1] = target.keys[0];
+            } else {
+                target.keys[0] = keys[index - 1];
+                for (int j = target.numKeys; j >= 0; j--) {
+                    copyChild(target, j, target, j + 1);
+                }
+                copyChild(sibling, sibling.numKeys, target, 0);
+                sibling.clearChild(sibling.numKeys);
+                keys[index - 1] = sibling.keys[sibling.numKeys - 1];
+            }
+            target.numKeys++;
+            sibling.numKeys--;
+            markDirty();
+            target.markDirty();
+            sibling.markDirty();
+        } finally {
+            release(sibling);
+            release(target);
+            exit();
+        }
+    }
+
+    @Override
+    public void borrowFromNext(int index) {
+        if (BTreeMetrics.ENABLED && metrics() != null) {
+            metrics().recordBorrowFromNext();
+        }
+        enter();
+        PersistentBPlusTreeNode target = acquireChild(index);
+        PersistentBPlusTreeNode sibling = acquireChild(index + 1);
+        try {
+            if (target.isLeaf) {
+                target.keys[target.numKeys] = sibling.keys[0];
+                System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.numKeys - 1);
+                keys[index] = sibling.keys[0];
+            } else {
+                target.keys[target.numKeys] = keys[index];
+                copyChild(sibling, 0, target, target.numKeys + 1);
+                keys[index] = sibling.keys[0];
+                System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.numKeys - 1);
+                for (int j = 1; j <= sibling.numKeys; j++) {
+                    copyChild(sibling, j, sibling, j - 1);
+                }
+                sibling.clearChild(sibling.numKeys);
+            }
+            target.numKeys++;
+            sibling.numKeys--;
+            markDirty();
+            target.markDirty();
+            sibling.markDirty();
+        } finally {
+            release(sibling);
+            release(target);
+            exit();
+        }
+    }
+
+    @Override
+    public void merge(int index) {
+        if (BTreeMetrics.ENABLED && metrics() != null) {
+            metrics().recordMerge();
+        }
+        enter();
+        PersistentBPlusTreeNode target = acquireChild(index);
+        PersistentBPlusTreeNode sibling = acquireChild(index + 1);
+        try {
+            if (target.isLeaf) {
+                System.arraycopy(sibling.keys, 0, target.keys, target.numKeys, sibling.numKeys);
+                target.numKeys += sibling.numKeys;
+                PersistentBPlusTreeNode next = sibling.acquireSibling(true);
+                try {
+                    target.setNext(next);
+                    if (next != null) {
+                        next.setPrev(target);
+                        next.markDirty();
+                    }
+                } finally {
+                    release(next);
+                }
+            } else {
+                target.keys[target.numKeys] = keys[index];
+                System.arraycopy(sibling.keys, 0, target.keys, target.numKeys + 1, sibling.numKeys);
+                for (int j = 0; j <= sibling.numKeys; j++) {
+                    copyChild(sibling, j, target, target.numKeys + 1 + j);
+                }
+                target.numKeys += sibling.numKeys + 1;
+            }
+
+            System.arraycopy(keys, index + 1, keys, index, numKeys - index - 1);
+            for (int j = index + 2; j <= numKeys; j++) {
+                copyChild(this, j, this, j - 1);
+            }
+            clearChild(numKeys);
+            numKeys--;
+            markDirty();
+            target.markDirty();
+        } finally {
+            release(sibling);
+            release(target);
+            exit();
+        }
+        sibling.discard();
+    }
+
+    /**
+     * Gives the page of this node back to the allocator and drops it from the cache.
+     */
+    @Override
+    public void discard() {
+        if (offset < 0) {
+            return;
+        }
+        if (cache != null) {
+            cache.invalidate(offset);
+        }
+        if (allocator != null) {
+            allocator.free(offset);
+        }
+    }
+
+    @Override
+    public BTreeNode[] getChildren() {
+        if (isLeaf) {
+            return childRefs;
+        }
+        if (cache != null) {
+            BTreeNode[] children = new BTreeNode[2 * t];
+            for (int i = 0; i <= numKeys; i++) {
+                children[i] = child(i);
+            }
+            return children;
+        }
+        for (int i = 0; i <= numKeys; i++) {
+            child(i);
+        }
+        return childRefs;
+    }
+
+    @Override
+    public BTreeNode getChild(int index) {
+        return child(index);
+    }
+
+    @Override
+    public int getValueAt(int index) {
+        if (index < 0 || index >= numKeys) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + numKeys + " values");
+        }
+        return keys[index];
+    }
+
+    @Override
+    public void setValueAt(int index, int value) {
+        if (index < 0 || index >= numKeys) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + numKeys + " values");
+        }
+        keys[index] = value;
+        markDirty();
+    }
+
+    @Override
+    public void appendValue(int value) {
+        if (numKeys == keys.length) {
+            throw new IllegalStateException("Node is full");
+        }
+        keys[numKeys++] = value;
+        markDirty();
+    }
+
+    @Override
+    public void setChild(int index, BTreeNode child) {
+        setChild(index, (PersistentBPlusTreeNode) child);
+        markDirty();
+    }
+
+    /**
+     * Scans along the leaf chain with a {@link BPlusTreeCursor}.
+     */
+    @Override
+    public PrimitiveIterator.OfInt cursor(int lo, int hi, boolean reverse) {
+        return new BPlusTreeCursor(this, lo, hi, reverse);
+    }
+
+    @Override
+    public boolean keepsValuesInLeaves() {
+        return true;
+    }
+
+    /**
+     * Links two leaves built by {@link BTree#bulkLoad}. Both are put back into the cache, in case
+     * it evicted one of them since it was created.
+     */
+    @Override
+    public void setNextLeaf(BTreeNode next) {
+        PersistentBPlusTreeNode leaf = (PersistentBPlusTreeNode) next;
+        enter();
+        leaf.enter();
+        try {
+            setNext(leaf);
+            leaf.setPrev(this);
+            markDirty();
+            leaf.markDirty();
+        } finally {
+            leaf.exit();
+            exit();
+        }
+    }
+
+    // -------- Persistence Methods --------
+
+    @Override
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(getNodeSizeInBytes());
+        buffer.put((byte) (isLeaf ? 1 : 0));
+        buffer.putInt(numKeys);
+        buffer.putInt(0); // checksum, filled in below
+        buffer.putLong(pageLsn);
+        buffer.putLong(prevRef != null ? prevRef.offset : prevOffset);
+        buffer.putLong(nextRef != null ? nextRef.offset : nextOffset);
+        for (int i = 0; i < numKeys; i++) {
+            buffer.putInt(keys[i]);
+        }
+        if (!isLeaf) {
+            for (int i = 0; i <= numKeys; i++) {
+                buffer.putLong(childRefs[i] != null ? childRefs[i].offset : childOffsets[i]);
+            }
+        }
+        PageChecksum.store(buffer.array(), CHECKSUM_POSITION);
+        return buffer.array();
+    }
+
+    @Override
+    public void fromByteArray(byte[] bytes) {
+        fromByteBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void fromByteBuffer(ByteBuffer buffer) {
+        PageChecksum.verify(buffer, buffer.position(), getNodeSizeInBytes(), CHECKSUM_POSITION);
+        ByteBuffer in = buffer.duplicate();
+        isLeaf = in.get() == 1;
+        numKeys = in.getInt();
+        if (numKeys < 0 || numKeys > 2 * t - 1) {
+            throw new CorruptPageException("B+-tree node holds " + numKeys + " keys");
+        }
+        in.getInt(); // checksum
+        pageLsn = in.getLong();
+        prevOffset = in.getLong();
+        nextOffset = in.getLong();
+        prevRef = null;
+        nextRef = null;
+        for (int i = 0; i < numKeys; i++) {
+            keys[i] = in.getInt();
+        }
+        Arrays.fill(childOffsets, -1);
+        Arrays.fill(childRefs, null);
+        if (!isLeaf) {
+            for (int i = 0; i <= numKeys; i++) {
+                childOffsets[i] = in.getLong();
+            }
+        }
+    }
+
+    @Override
+    public void setFile(RandomAccessFile file) {
+        setPageFile(file == null ? null : new RandomAccessPageFile(file));
+    }
+
+    @Override
+    public void setPageFile(PageFile pageFile) {
+        this.pageFile = pageFile;
+    }
+
+    @Override
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    @Override
+    public void writeToDisk() {
+        writeToDisk(toByteArray());
+        markClean();
+    }
+
+    @Override
+    public void writeToDisk(byte[] image) {
+        if (pageFile == null || offset < 0) {
+            throw new IllegalStateException("File or offset not set");
+        }
+        try {
+            pageFile.write(offset, image);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write node to disk", e);
+        }
+        if (BTreeMetrics.ENABLED && metrics() != null) {
+            metrics().recordPageWrite();
+        }
+    }
+
+    @Override
+    public void readFromDisk(long offset) {
+        if (pageFile == null) {
+            throw new IllegalStateException("File not set");
+        }
+        try {
+            fromByteBuffer(pageFile.read(offset, getNodeSizeInBytes()));
+            this.offset = offset;
+            markClean();
+        } catch (CorruptPageException e) {
+            throw e.atOffset(offset);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read node from disk", e);
+        }
+        if (BTreeMetrics.ENABLED && metrics() != null) {
+            metrics().recordPageRead();
+        }
+    }
+
+    @Override
+    public long getPageLsn() {
+        return pageLsn;
+    }
+
+    @Override
+    public void setPageLsn(long lsn) {
+        this.pageLsn = lsn;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void markClean() {
+        dirty = false;
+    }
+
+    @Override
+    public void markDirty() {
+        dirty = true;
+    }
+
+    protected int getNodeSizeInBytes() {
+        return pageSizeFor(t);
+    }
+}
@@ -19,6 +19,23 @@ public interface PersistentBTreeNode extends BTreeNode {
      */
     void fromByteArray(byte[] bytes);
 
+    /**
+     * Populates this node's fields from a buffer holding its page.
+     * The default copies the bytes into an array and calls {@link #fromByteArray(byte[])};
+     * override it to decode straight from a memory-mapped page without the copy.
+     * @param buffer the page contents, from its position to its limit.
+     */
+    default void fromByteBuffer(java.nio.ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            fromByteArray(buffer.array());
+            return;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        fromByteArray(bytes);
+    }
+
     /**
      * Sets the file that this node will use for persistence.
      * This must be called before performing any disk I/O.
@@ -26,6 +43,14 @@ public interface PersistentBTreeNode extends BTreeNode {
      */
     void setFile(java.io.RandomAccessFile file);
 
+    /**
+     * Sets the storage backend that this node will use for persistence.
+     * This is an alternative to {@link #setFile(java.io.RandomAccessFile)}, e.g. a
+     * {@link MappedPageFile} to read nodes from a memory-mapped file.
+     * @param pageFile the page file that stores all B-tree nodes.
+     */
+    void setPageFile(PageFile pageFile);
+
     /**
      * @return the offset in the file where this node is stored.
      * Hint: useful for tracking child references as offsets.
@@ -45,6 +70,16 @@ public interface PersistentBTreeNode extends BTreeNode {
      */
     void writeToDisk();
 
+    /**
+     * Writes an image taken earlier with {@link #toByteArray()} to this node's page, e.g. the one
+     * {@link PageCache#commit()} logged. Leaves the dirty flag alone, since the node may have
+     * changed since the image was taken.
+     * @param image the serialized node
+     */
+    default void writeToDisk(byte[] image) {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot write a saved image");
+    }
+
     /**
      * Reads this node’s content from disk at the given offset.
      * Should overwrite the current in-memory contents.
@@ -69,4 +104,28 @@ public interface PersistentBTreeNode extends BTreeNode {
      * Should be called after any modification to the node.
      */
     void markDirty();
+
+    /**
+     * Called once this node is no longer part of the tree, e.g. after a merge or after the root
+     * collapsed into its only child, so that its page can be reused.
+     * The default does nothing and the page becomes dead space.
+     */
+    default void discard() {
+    }
+
+    /**
+     * @return the log sequence number of the write-ahead log record that last wrote this node's
+     * page, or 0 if the node does not keep one.
+     */
+    default long getPageLsn() {
+        return 0;
+    }
+
+    /**
+     * Stamps the node with the log sequence number of the record its next page image goes into.
+     * Called by {@link PageCache#commit()} just before the node is serialized.
+     * @param lsn the log sequence number
+     */
+    default void setPageLsn(long lsn) {
+    }
 }
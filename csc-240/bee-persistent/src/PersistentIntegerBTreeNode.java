@@ -1,6 +1,7 @@
-
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class PersistentIntegerBTreeNode implements PersistentBTreeNode {
 
@@ -13,18 +14,30 @@ public class PersistentIntegerBTreeNode implements PersistentBTreeNode {
     protected int t;
     protected int[] values;
     protected PersistentBTreeNode[] children;
+    protected long[] childOffsets; // filled in by fromByteArray; load a child with loadNode(childOffsets[i])
     protected int numValues;
     protected boolean isLeaf;
 
     protected long offset = -1;
+    protected long pageLsn;
     protected boolean dirty = true;
     protected RandomAccessFile file;
+    protected PageFile pageFile;
+    protected PageCache cache;
+    protected PageAllocator allocator;
+
+    /**
+     * The largest minimum degree whose nodes always fit in one {@link NodePage#PAGE_SIZE} page.
+     * Pass it as {@code t} to get the most values per page; larger degrees take several pages.
+     */
+    public static final int PAGE_DEGREE = NodePage.maxDegree(NodePage.PAGE_SIZE);
 
     public PersistentIntegerBTreeNode(int t, boolean isLeaf) {
         this.t = t;
         this.isLeaf = isLeaf;
         this.values = new int[2 * t - 1];
         this.children = new PersistentBTreeNode[2 * t];
+        this.childOffsets = new long[2 * t];
         this.numValues = 0;
     }
 
@@ -92,20 +105,116 @@ public class PersistentIntegerBTreeNode implements PersistentBTreeNode {
 
     // -------- Persistence Methods --------
 
+    /**
+     * Encodes this node in the {@link NodePage} format. Children that are in memory
+     * contribute their current offset; the others keep the offset they were read with.
+     */
     @Override
     public byte[] toByteArray() {
-        // TODO: Serialize this node into a fixed-size byte array
-        return new byte[0];
+        if (!isLeaf) {
+            for (int i = 0; i <= numValues; i++) {
+                if (children[i] != null) {
+                    childOffsets[i] = children[i].getOffset();
+                }
+            }
+        }
+        return NodePage.encode(isLeaf, values, numValues, childOffsets, getNodeSizeInBytes(), pageLsn);
     }
 
     @Override
     public void fromByteArray(byte[] bytes) {
-        // TODO: Deserialize a node from the given bytes
+        fromByteBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes a {@link NodePage} straight from the page buffer (no copy for a mapped file).
+     * The page's checksum is checked first, so a damaged page throws a {@link CorruptPageException}
+     * and leaves this node unchanged. Children are not loaded: their offsets are in {@link #childOffsets}.
+     */
+    @Override
+    public void fromByteBuffer(ByteBuffer buffer) {
+        NodePage.decode(buffer, values, childOffsets, getNodeSizeInBytes());
+        isLeaf = NodePage.isLeaf(buffer);
+        numValues = NodePage.count(buffer);
+        pageLsn = NodePage.lsn(buffer);
+        Arrays.fill(children, null);
+    }
+
+    @Override
+    public long getPageLsn() {
+        return pageLsn;
+    }
+
+    @Override
+    public void setPageLsn(long lsn) {
+        this.pageLsn = lsn;
     }
 
     @Override
     public void setFile(RandomAccessFile file) {
         this.file = file;
+        this.pageFile = file == null ? null : new RandomAccessPageFile(file);
+    }
+
+    @Override
+    public void setPageFile(PageFile pageFile) {
+        this.pageFile = pageFile;
+        this.file = pageFile instanceof RandomAccessPageFile ? ((RandomAccessPageFile) pageFile).getFile() : null;
+    }
+
+    /**
+     * Sets the page cache used to load child nodes. Without a cache every
+     * child is read and decoded from disk each time it is visited.
+     * @param cache the shared page cache, or null to disable caching
+     */
+    public void setPageCache(PageCache cache) {
+        this.cache = cache;
+    }
+
+    public PageCache getPageCache() {
+        return cache;
+    }
+
+    /**
+     * Sets where the offsets of new nodes come from. Call {@code allocator.allocate()} when a
+     * split creates a node; {@link #discard()} gives a merged-away node's page back.
+     * @param allocator the allocator shared by every node of the tree, or null
+     */
+    public void setAllocator(PageAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public PageAllocator getAllocator() {
+        return allocator;
+    }
+
+    @Override
+    public void discard() {
+        if (offset < 0) {
+            return;
+        }
+        if (cache != null) {
+            cache.invalidate(offset);
+        }
+        if (allocator != null) {
+            allocator.free(offset);
+        }
+    }
+
+    /**
+     * Loads the node stored at the given offset, going through the page cache when one is set.
+     * Use this whenever you follow a child offset instead of calling readFromDisk yourself.
+     * @param offset the byte position of the node in the file.
+     * @return the node stored at that offset.
+     */
+    protected PersistentBTreeNode loadNode(long offset) {
+        if (cache != null) {
+            return cache.get(offset);
+        }
+        PersistentIntegerBTreeNode node = new PersistentIntegerBTreeNode(t, true);
+        node.setPageFile(pageFile);
+        node.readFromDisk(offset);
+        return node;
     }
 
     @Override
@@ -120,12 +229,11 @@ public class PersistentIntegerBTreeNode implements PersistentBTreeNode {
 
     @Override
     public void writeToDisk() {
-        if (file == null || offset < 0) {
+        if (pageFile == null || offset < 0) {
             throw new IllegalStateException("File or offset not set");
         }
         try {
-            file.seek(offset);
-            file.write(toByteArray());
+            pageFile.write(offset, toByteArray());
             markClean();
         } catch (IOException e) {
             throw new RuntimeException("Failed to write node to disk", e);
@@ -134,15 +242,14 @@ public class PersistentIntegerBTreeNode implements PersistentBTreeNode {
 
     @Override
     public void readFromDisk(long offset) {
-        if (file == null) {
+        if (pageFile == null) {
             throw new IllegalStateException("File not set");
         }
         try {
-            file.seek(offset);
-            byte[] buffer = new byte[getNodeSizeInBytes()];
-            file.readFully(buffer);
-            fromByteArray(buffer);
+            fromByteBuffer(pageFile.read(offset, getNodeSizeInBytes()));
             this.offset = offset;
+        } catch (CorruptPageException e) {
+            throw e.atOffset(offset);
         } catch (IOException e) {
             throw new RuntimeException("Failed to read node from disk", e);
         }
@@ -163,10 +270,12 @@ public class PersistentIntegerBTreeNode implements PersistentBTreeNode {
         dirty = true;
     }
 
-    // Optional: calculate fixed node size
+    /**
+     * @return the size of a node on disk: one {@link NodePage} page, or several for a degree
+     * above {@link #PAGE_DEGREE}.
+     */
     protected int getNodeSizeInBytes() {
-        // Placeholder: you'll need to calculate based on number of ints, booleans, offsets, etc.
-        return 4096; // For example, one page size
+        return NodePage.pageSizeFor(t);
     }
 
     @Override
@@ -179,5 +288,17 @@ public class PersistentIntegerBTreeNode implements PersistentBTreeNode {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public void appendValue(int value) {
+        values[numValues++] = value;
+        markDirty();
+    }
+
+    @Override
+    public void setValueAt(int index, int value) {
+        values[index] = value;
+        markDirty();
+    }
+
     
 }
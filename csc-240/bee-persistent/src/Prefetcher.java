@@ -0,0 +1,87 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads pages into a {@link PageCache} ahead of the scan that will need them.
+ *
+ * A small pool of I/O threads serves {@link PageCache#prefetch(long)} requests, so several pages
+ * are read at once instead of one level or one leaf after another. A {@link BPlusTreeCursor}
+ * keeps up to {@link #getDepth()} leaves ahead of its position requested; on a cold file those
+ * reads overlap with each other and with the scan itself. Keep the depth well below the cache
+ * capacity, or prefetched pages evict each other before they are used.
+ *
+ * Turn it off and on with {@link #setEnabled(boolean)}; {@link #close()} detaches it for good.
+ */
+public class Prefetcher implements AutoCloseable {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_DEPTH = 16;
+
+    private final PageCache cache;
+    private final ExecutorService pool;
+    private final int depth;
+    private volatile boolean enabled = true;
+
+    /**
+     * Attaches a prefetcher with {@value #DEFAULT_THREADS} threads and a depth of {@value #DEFAULT_DEPTH}.
+     */
+    public Prefetcher(PageCache cache) {
+        this(cache, DEFAULT_THREADS, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Attaches a prefetcher to the cache.
+     * @param cache the cache to load pages into
+     * @param threads the number of reads that can be in progress at once
+     * @param depth how many leaves ahead of its position a scan keeps requested
+     */
+    public Prefetcher(PageCache cache, int threads, int depth) {
+        if (threads < 1 || depth < 1) {
+            throw new IllegalArgumentException("Threads and depth must be positive");
+        }
+        this.cache = cache;
+        this.depth = depth;
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "page-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        cache.attachPrefetcher(this);
+    }
+
+    void submit(long offset) {
+        pool.execute(() -> cache.loadPrefetched(offset));
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled false to stop issuing reads (requests already queued still complete)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Detaches from the cache and waits for the reads in progress to finish.
+     */
+    @Override
+    public void close() {
+        cache.attachPrefetcher(null);
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link PageFile} backed by a {@link RandomAccessFile}: every read is a seek followed by
+ * a read into a fresh byte array.
+ */
+public class RandomAccessPageFile implements PageFile {
+
+    private final RandomAccessFile file;
+
+    public RandomAccessPageFile(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    public RandomAccessFile getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized ByteBuffer read(long offset, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        file.seek(offset);
+        file.readFully(buffer);
+        return ByteBuffer.wrap(buffer);
+    }
+
+    @Override
+    public synchronized void write(long offset, byte[] bytes) throws IOException {
+        file.seek(offset);
+        file.write(bytes);
+    }
+
+    /**
+     * Writes the pages with gathering {@link FileChannel#write(ByteBuffer[])} calls, so a run of
+     * adjacent pages costs one system call instead of one per page.
+     */
+    @Override
+    public synchronized void write(long offset, ByteBuffer[] pages) throws IOException {
+        FileChannel channel = file.getChannel();
+        long remaining = 0;
+        for (ByteBuffer page : pages) {
+            remaining += page.remaining();
+        }
+        channel.position(offset);
+        while (remaining > 0) {
+            remaining -= channel.write(pages);
+        }
+    }
+
+    @Override
+    public synchronized long length() throws IOException {
+        return file.length();
+    }
+
+    @Override
+    public synchronized void truncate(long length) throws IOException {
+        if (length < file.length()) {
+            file.setLength(length);
+        }
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        file.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+}
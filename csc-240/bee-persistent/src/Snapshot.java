@@ -0,0 +1,178 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A read-only view of one committed version of a {@link CopyOnWriteBTree}.
+ *
+ * Every read starts at the root offset the snapshot was opened with and decodes pages straight
+ * from the file. The tree never writes those pages while the snapshot is open, so any number of
+ * threads can search and scan it without locks (the page file only serializes each single read).
+ * Close the snapshot when done; until then the pages it can reach are not reused.
+ */
+public class Snapshot implements AutoCloseable {
+
+    private final CopyOnWriteBTree tree;
+    private final long rootOffset;
+    private final long version;
+    private volatile boolean closed;
+
+    Snapshot(CopyOnWriteBTree tree, long rootOffset, long version) {
+        this.tree = tree;
+        this.rootOffset = rootOffset;
+        this.version = version;
+    }
+
+    /**
+     * @return the offset of this version's root page, or -1 for an empty tree.
+     */
+    public long getRootOffset() {
+        return rootOffset;
+    }
+
+    /**
+     * @return the version of the tree this snapshot shows, see {@link CopyOnWriteBTree#getVersion()}.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean search(int value) {
+        checkOpen();
+        long offset = rootOffset;
+        while (offset >= 0) {
+            CopyOnWriteBTree.Page node = tree.readCommitted(offset);
+            int i = tree.lowerBound(node, value);
+            if (i < node.count && node.keys[i] == value) {
+                return true;
+            }
+            offset = node.leaf ? -1 : node.children[i];
+        }
+        return false;
+    }
+
+    /**
+     * Returns a lazy, ascending iterator over every value in {@code [lo, hi]}. Pages are read
+     * only as the iterator reaches them. The iterator must not be used after {@link #close()}.
+     */
+    public PrimitiveIterator.OfInt cursor(int lo, int hi) {
+        checkOpen();
+        return new Cursor(lo, hi);
+    }
+
+    /**
+     * Returns the values in {@code [lo, hi]} in ascending order as a lazy stream.
+     */
+    public IntStream rangeScan(int lo, int hi) {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(cursor(lo, hi),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SORTED), false);
+    }
+
+    /**
+     * Releases the snapshot so that the pages only it could reach can be reclaimed.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            tree.release(this);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    /**
+     * The same walk as {@link BTreeCursor}, over decoded pages instead of nodes.
+     */
+    private class Cursor implements PrimitiveIterator.OfInt {
+        private final int hi;
+        private CopyOnWriteBTree.Page[] pages = new CopyOnWriteBTree.Page[8];
+        private int[] indexes = new int[8];
+        private int depth;
+        private boolean ready;
+        private int nextValue;
+
+        Cursor(int lo, int hi) {
+            this.hi = hi;
+            if (rootOffset < 0 || lo > hi) {
+                return;
+            }
+            long offset = rootOffset;
+            while (true) {
+                CopyOnWriteBTree.Page page = tree.readCommitted(offset);
+                int index = tree.lowerBound(page, lo);
+                push(page, index);
+                if (page.leaf) {
+                    return;
+                }
+                offset = page.children[index];
+            }
+        }
+
+        private void push(CopyOnWriteBTree.Page page, int index) {
+            if (depth == pages.length) {
+                pages = Arrays.copyOf(pages, depth * 2);
+                indexes = Arrays.copyOf(indexes, depth * 2);
+            }
+            pages[depth] = page;
+            indexes[depth] = index;
+            depth++;
+        }
+
+        private void advance() {
+            while (depth > 0) {
+                CopyOnWriteBTree.Page page = pages[depth - 1];
+                int index = indexes[depth - 1];
+                if (index >= page.count) {
+                    pages[--depth] = null;
+                    continue;
+                }
+                int value = page.keys[index];
+                if (value > hi) {
+                    break;
+                }
+                indexes[depth - 1] = index + 1;
+                if (!page.leaf) {
+                    CopyOnWriteBTree.Page child = tree.readCommitted(page.children[index + 1]);
+                    while (true) {
+                        push(child, 0);
+                        if (child.leaf) {
+                            break;
+                        }
+                        child = tree.readCommitted(child.children[0]);
+                    }
+                }
+                nextValue = value;
+                ready = true;
+                return;
+            }
+            Arrays.fill(pages, 0, depth, null);
+            depth = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!ready && depth > 0) {
+                advance();
+            }
+            return ready;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            return nextValue;
+        }
+    }
+}
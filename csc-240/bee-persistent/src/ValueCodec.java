@@ -0,0 +1,54 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns the values of a {@link KeyValueBTree} into bytes. Small values are stored inline next to
+ * their key; large ones go to a chain of overflow pages.
+ *
+ * @param <V> the value type
+ */
+public interface ValueCodec<V> {
+
+    byte[] encode(V value);
+
+    V decode(byte[] bytes);
+
+    /** Longs such as record offsets, as 8 big-endian bytes. */
+    ValueCodec<Long> LONG = new ValueCodec<>() {
+        @Override
+        public byte[] encode(Long value) {
+            return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+        }
+
+        @Override
+        public Long decode(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getLong();
+        }
+    };
+
+    /** Raw bytes, stored as they are. */
+    ValueCodec<byte[]> BYTES = new ValueCodec<>() {
+        @Override
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(byte[] bytes) {
+            return bytes;
+        }
+    };
+
+    /** Strings as UTF-8. */
+    ValueCodec<String> UTF8 = new ValueCodec<>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
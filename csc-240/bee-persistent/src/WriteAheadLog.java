@@ -0,0 +1,310 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only redo log of node page images.
+ *
+ * Every page changed by a batch of operations is logged with {@link #logPage(long, byte[])}
+ * and the batch is closed with {@link #commit()}. A commit forces the log to disk once,
+ * no matter how many pages or inserts it covers, and concurrent committers share that single
+ * fsync (group commit). Only after a commit may the pages themselves be written to the
+ * node file, so a crash in the middle of a split can never leave half of it on disk:
+ * {@link #recover(PageFile)} replays every committed batch and ignores the rest.
+ *
+ * Once the committed pages have been written and forced, {@link #checkpoint(PageFile)}
+ * truncates the log.
+ *
+ * Record layout: type (1 byte), LSN (8), page offset (8), payload length (4), CRC32C (4), payload.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final byte PAGE_RECORD = 1;
+    private static final byte COMMIT_RECORD = 2;
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 8 + 4 + 4;
+
+    private final FileChannel channel;
+    private final ByteArrayOutputStream pending;
+    private final Object forceLock;
+    private long nextLsn;
+    private long durableLsn;
+
+    /**
+     * Opens (or creates) a log file. Records already in the log are scanned so that new
+     * records continue their log sequence numbers, and a torn or uncommitted tail is cut off.
+     * Call {@link #recover(PageFile)} before using the node file so that batches committed
+     * before a crash are applied, or open the log with {@link #open(String, PageFile)}.
+     * @param path the log file
+     */
+    public WriteAheadLog(String path) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pending = new ByteArrayOutputStream();
+        this.forceLock = new Object();
+        this.nextLsn = 1;
+        this.durableLsn = 0;
+        try {
+            replay(null);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens (or creates) a log file and replays every batch committed in it onto the node file.
+     * @param path the log file
+     * @param pageFile the node file covered by the log
+     * @return the log, ready for new batches
+     */
+    public static WriteAheadLog open(String path, PageFile pageFile) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(path);
+        try {
+            log.recover(pageFile);
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * Appends the image of a page to the log. The record is buffered and becomes durable
+     * with the next {@link #commit()}.
+     * @param offset the offset of the page in the node file
+     * @param image the full serialized node
+     * @return the log sequence number of the record
+     */
+    public synchronized long logPage(long offset, byte[] image) {
+        return append(PAGE_RECORD, offset, image);
+    }
+
+    /**
+     * Like {@link #logPage(long, byte[])}, but the image is built once the record's log sequence
+     * number is known, so that the page can carry its own LSN.
+     * @param offset the offset of the page in the node file
+     * @param imageAtLsn builds the full serialized node for the given log sequence number
+     * @return the log sequence number of the record
+     */
+    public synchronized long logPage(long offset, LongFunction<byte[]> imageAtLsn) {
+        return append(PAGE_RECORD, offset, imageAtLsn.apply(nextLsn));
+    }
+
+    /**
+     * Ends the current batch and waits until it is durable. Pages logged in the batch
+     * may be written to the node file once this returns.
+     * @return the log sequence number of the commit record
+     */
+    public long commit() throws IOException {
+        long lsn = logCommit();
+        flushTo(lsn);
+        return lsn;
+    }
+
+    /**
+     * Ends the current batch without waiting for it. The batch is durable once
+     * {@link #flushTo(long)} of the returned log sequence number returns.
+     * @return the log sequence number of the commit record
+     */
+    public synchronized long logCommit() {
+        return append(COMMIT_RECORD, -1, new byte[0]);
+    }
+
+    /**
+     * Makes sure that every record up to and including {@code lsn} is on disk.
+     * Threads that arrive while another thread is forcing the log are covered by the next force.
+     * If the write or the force fails, the log is cut back to its old end and the records stay
+     * buffered, so a later commit writes them again.
+     * @param lsn the log sequence number that must become durable
+     */
+    public void flushTo(long lsn) throws IOException {
+        synchronized (forceLock) {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            byte[] batch;
+            long lastLsn;
+            synchronized (this) {
+                batch = pending.toByteArray();
+                lastLsn = nextLsn - 1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            long end = channel.size();
+            try {
+                long position = end;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(end);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            synchronized (this) {
+                // Keep what was appended while we were writing.
+                byte[] buffered = pending.toByteArray();
+                pending.reset();
+                pending.write(buffered, batch.length, buffered.length - batch.length);
+            }
+            durableLsn = lastLsn;
+        }
+    }
+
+    /**
+     * Replays every committed batch in the log onto the node file and forces it.
+     * A torn or corrupt record ends the log; it and any uncommitted records after the
+     * last commit are discarded.
+     * @param pageFile the node file to repair
+     * @return the number of page images that were applied
+     */
+    public int recover(PageFile pageFile) throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                return replay(pageFile);
+            }
+        }
+    }
+
+    /**
+     * Reads the log up to its last commit and cuts off the rest.
+     * @param pageFile where to apply the committed page images, or null to only scan them
+     */
+    private int replay(PageFile pageFile) throws IOException {
+        ArrayList<Long> batchOffsets = new ArrayList<>();
+        ArrayList<byte[]> batchImages = new ArrayList<>();
+        int applied = 0;
+        long position = 0;
+        long committedEnd = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            byte type = header.get();
+            long lsn = header.getLong();
+            long offset = header.getLong();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + RECORD_HEADER_SIZE);
+            if (checksum != checksum(type, lsn, offset, payload.array())) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+            nextLsn = Math.max(nextLsn, lsn + 1);
+            if (type == PAGE_RECORD) {
+                batchOffsets.add(offset);
+                batchImages.add(payload.array());
+            } else if (type == COMMIT_RECORD) {
+                if (pageFile != null) {
+                    for (int i = 0; i < batchOffsets.size(); i++) {
+                        pageFile.write(batchOffsets.get(i), batchImages.get(i));
+                    }
+                    applied += batchOffsets.size();
+                }
+                batchOffsets.clear();
+                batchImages.clear();
+                committedEnd = position;
+            } else {
+                break;
+            }
+        }
+        if (applied > 0) {
+            pageFile.force();
+        }
+        channel.truncate(committedEnd);
+        channel.force(false);
+        durableLsn = nextLsn - 1;
+        return applied;
+    }
+
+    /**
+     * Forces the node file and empties the log. Every committed page must already have been
+     * written to the node file (for example with {@link PageCache#commit()}).
+     * @param pageFile the node file covered by this log
+     */
+    public void checkpoint(PageFile pageFile) throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                if (pending.size() > 0) {
+                    throw new IllegalStateException("Cannot checkpoint with uncommitted log records");
+                }
+                pageFile.force();
+                channel.truncate(0);
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * @return the size in bytes of the log on disk.
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * @return the highest log sequence number known to be on disk.
+     */
+    public long getDurableLsn() {
+        synchronized (forceLock) {
+            return durableLsn;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long append(byte type, long offset, byte[] payload) {
+        long lsn = nextLsn++;
+        try {
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeByte(type);
+            out.writeLong(lsn);
+            out.writeLong(offset);
+            out.writeInt(payload.length);
+            out.writeInt(checksum(type, lsn, offset, payload));
+            out.write(payload);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory log buffer failed", e); // cannot happen
+        }
+        return lsn;
+    }
+
+    private static int checksum(byte type, long lsn, long offset, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer header = ByteBuffer.allocate(1 + 8 + 8 + 4);
+        header.put(type).putLong(lsn).putLong(offset).putInt(payload.length);
+        crc.update(header.array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+            position += read;
+        }
+    }
+}
@@ -1,8 +1,21 @@
 import org.junit.jupiter.api.*;
+import java.io.EOFException;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -76,4 +89,1282 @@ public class MainTest {
             assertTrue(traversal.contains("12"), "Should contain 12 after reopening");
         }
     }
+
+    @Test
+    public void testPageCacheEvictsUnpinnedNodesAndWritesBackDirtyOnes() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(FILENAME, "rw")) {
+            PageCache cache = new PageCache(2 * 4096, 4096, offset -> {
+                PersistentIntegerBTreeNode node = new PersistentIntegerBTreeNode(DEGREE, true);
+                node.setFile(raf);
+                node.setOffset(offset);
+                node.markClean();
+                return node;
+            });
+            assertEquals(2, cache.getCapacity());
+
+            PersistentBTreeNode pinned = cache.pin(0);
+            PersistentBTreeNode dirty = cache.get(4096);
+            dirty.markDirty();
+            assertSame(pinned, cache.get(0), "Cached node should be returned on a hit");
+
+            cache.get(8192); // must evict the dirty node, since offset 0 is pinned
+            assertEquals(1, cache.getEvictions());
+            assertEquals(1, cache.getWriteBacks());
+            assertFalse(dirty.isDirty(), "Evicted node should have been written back");
+            assertSame(pinned, cache.get(0), "Pinned node must survive eviction");
+            assertEquals(3, cache.getMisses());
+            assertEquals(2, cache.getHits());
+
+            cache.unpin(0);
+            assertThrows(IllegalStateException.class, () -> cache.unpin(0));
+        }
+    }
+
+    @Test
+    public void testMappedPageFileMatchesRandomAccessPageFile() throws IOException {
+        byte[] page = new byte[4096];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = (byte) i;
+        }
+
+        // Small segments so the writes below have to grow the mapping and straddle a boundary.
+        try (MappedPageFile mapped = new MappedPageFile(FILENAME, 6144)) {
+            mapped.write(0, page);
+            mapped.write(4096, page);
+            assertEquals(8192, mapped.length());
+            ByteBuffer view = mapped.read(4096, 4096);
+            assertEquals(4096, view.remaining());
+            assertEquals(page[100], view.get(100));
+            assertThrows(EOFException.class, () -> mapped.read(8192, 4096));
+        }
+
+        try (PageFile plain = PageFile.open(FILENAME, false)) {
+            assertEquals(8192, plain.length(), "Mapped file should be truncated to its logical length");
+            ByteBuffer copy = plain.read(4096, 4096);
+            for (int i = 0; i < page.length; i++) {
+                assertEquals(page[i], copy.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogReplaysOnlyCommittedBatches() throws IOException {
+        String logName = FILENAME + ".wal";
+        new File(logName).delete();
+        byte[] committed = new byte[4096];
+        byte[] uncommitted = new byte[4096];
+        Arrays.fill(committed, (byte) 7);
+        Arrays.fill(uncommitted, (byte) 9);
+
+        // Simulate a crash: the pages were logged but never written to the node file.
+        try (WriteAheadLog log = new WriteAheadLog(logName)) {
+            log.logPage(0, committed);
+            log.logPage(4096, committed);
+            log.commit();
+            log.logPage(8192, uncommitted);
+            log.flushTo(log.logPage(0, uncommitted)); // durable, but its batch never committed
+        }
+        long committedLength;
+        try (WriteAheadLog log = new WriteAheadLog(logName);
+             PageFile pages = PageFile.open(FILENAME, false)) {
+            assertEquals(2, log.recover(pages));
+            assertEquals(8192, pages.length(), "Uncommitted page must not be replayed");
+            assertEquals(7, pages.read(0, 4096).get(10), "Committed image must win over the later uncommitted one");
+            committedLength = log.size();
+
+            log.checkpoint(pages);
+            assertEquals(0, log.size(), "Checkpoint should truncate the log");
+        }
+        assertTrue(committedLength > 0);
+
+        // A reopened log continues its sequence numbers, and open() applies what was committed.
+        long lastLsn;
+        try (WriteAheadLog log = new WriteAheadLog(logName)) {
+            log.logPage(8192, committed);
+            lastLsn = log.commit();
+        }
+        try (PageFile pages = PageFile.open(FILENAME, false);
+             WriteAheadLog log = WriteAheadLog.open(logName, pages)) {
+            assertEquals(12288, pages.length(), "open() should replay the committed batch");
+            assertTrue(log.logPage(0, committed) > lastLsn, "LSNs must continue after reopening");
+        }
+        new File(logName).delete();
+    }
+
+    @Test
+    public void testBulkLoadBuildsFullNodesChildrenFirst() throws IOException {
+        PersistentBPlusTreeNode empty = new PersistentBPlusTreeNode(DEGREE, true);
+        BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, empty, empty::newNode);
+
+        List<PersistentBPlusTreeNode> built = new ArrayList<>();
+        java.util.Set<BTreeNode> finished = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+        tree.bulkLoad(IntStream.range(0, 1000).iterator(), 1.0, node -> {
+            for (int i = 0; !node.isLeaf() && i <= node.getNumValues(); i++) {
+                assertTrue(finished.contains(node.getChild(i)), "Children must be finished before their parent");
+            }
+            finished.add(node);
+            built.add(node);
+        });
+
+        PersistentBPlusTreeNode root = built.get(built.size() - 1);
+        assertSame(root, tree.getRoot());
+        assertSame(empty, built.get(0), "The empty root should become the first leaf");
+        assertFalse(root.isLeaf());
+        for (PersistentBPlusTreeNode node : built) {
+            if (node != root) {
+                assertTrue(node.getNumValues() >= DEGREE - 1 && node.getNumValues() <= 2 * DEGREE - 1,
+                        "Every non-root node must hold between t-1 and 2t-1 values");
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(tree.search(i), "Bulk loaded tree should contain: " + i);
+        }
+        assertFalse(tree.search(1000));
+        assertArrayEquals(IntStream.range(0, 1000).toArray(), tree.rangeScan(0, 999).toArray(),
+                "Every value should be in a linked leaf");
+        assertThrows(IllegalStateException.class, () -> tree.bulkLoad(IntStream.of(1), 1.0));
+
+        // On disk: consecutive offsets, every node written once by the callback, through a cache
+        // too small to hold the tree.
+        String fileName = "test_bulk_load.bin";
+        new File(fileName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        long rootOffset;
+        int nodes;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+            storage.setPageCache(new PageCache(4L * pageSize, pageSize, storage::load));
+            PersistentBPlusTreeNode first = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> persistent = new BTree<>(DEGREE, first, first::newNode);
+
+            java.util.TreeSet<Long> offsets = new java.util.TreeSet<>();
+            persistent.bulkLoad(IntStream.range(0, 1000).iterator(), 0.7, node -> {
+                assertTrue(offsets.add(node.getOffset()), "Each node should be finished once");
+                node.writeToDisk();
+            });
+            nodes = offsets.size();
+            assertEquals(0L, offsets.first());
+            assertEquals(Long.valueOf((long) (nodes - 1) * pageSize), offsets.last(), "Offsets should have no gaps");
+            assertEquals((long) nodes * pageSize, pageFile.length());
+            rootOffset = persistent.getRoot().getOffset();
+        }
+
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            PageCache cache = new PageCache(4L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode reopenedRoot = (PersistentBPlusTreeNode) cache.get(rootOffset);
+            BTree<PersistentBPlusTreeNode> reopened = new BTree<>(DEGREE, reopenedRoot, reopenedRoot::newNode);
+            assertArrayEquals(IntStream.range(0, 1000).toArray(),
+                    reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray());
+            assertArrayEquals(new int[] {999, 998}, reopened.rangeScanDescending(0, 999).limit(2).toArray());
+            assertTrue(reopened.search(500));
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testExternalIntSorterMergesSpilledRuns() {
+        int[] values = new Random(42).ints(10_000, -500, 500).toArray();
+        PrimitiveIterator.OfInt sorted = new ExternalIntSorter(1000, null).sort(Arrays.stream(values).iterator());
+
+        Arrays.sort(values);
+        for (int expected : values) {
+            assertTrue(sorted.hasNext());
+            assertEquals(expected, sorted.nextInt());
+        }
+        assertFalse(sorted.hasNext());
+    }
+
+    /**
+     * The read path of a classic persistent node, built by bulk loading: enough for cursors
+     * without the insert and remove logic that students write.
+     */
+    static class ScanNode extends PersistentIntegerBTreeNode {
+        ScanNode(int t, boolean isLeaf) {
+            super(t, isLeaf);
+        }
+
+        @Override
+        public int getValueAt(int index) {
+            return values[index];
+        }
+
+        @Override
+        public BTreeNode getChild(int index) {
+            return children[index] != null ? children[index] : loadNode(childOffsets[index]);
+        }
+
+        @Override
+        public void setChild(int index, BTreeNode child) {
+            children[index] = (PersistentBTreeNode) child;
+            markDirty();
+        }
+    }
+
+    @Test
+    public void testRangeScanForwardReverseAndEarlyStop() throws IOException {
+        BTree<ScanNode> tree = new BTree<>(DEGREE, new ScanNode(DEGREE, true), isLeaf -> new ScanNode(DEGREE, isLeaf));
+        tree.bulkLoad(IntStream.range(0, 100), 1.0);
+
+        assertArrayEquals(IntStream.rangeClosed(20, 30).toArray(), tree.rangeScan(20, 30).toArray());
+        assertArrayEquals(new int[] {30, 29, 28, 27}, tree.rangeScanDescending(27, 30).toArray());
+        assertArrayEquals(new int[] {0, 1, 2}, tree.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).limit(3).toArray());
+        assertEquals(0, tree.rangeScan(150, 200).count());
+        assertEquals(0, tree.rangeScan(30, 20).count());
+
+        PrimitiveIterator.OfInt cursor = tree.cursor(95, 1000, false);
+        for (int expected = 95; expected < 100; expected++) {
+            assertEquals(expected, cursor.nextInt());
+        }
+        assertFalse(cursor.hasNext());
+
+        // On disk, a scan reads only the nodes it reaches.
+        PageAllocator allocator = new AppendOnlyPageAllocator(NodePage.PAGE_SIZE, 0);
+        long rootOffset;
+        int nodes;
+        int levels = 0;
+        try (PageFile pageFile = PageFile.open(FILENAME, false)) {
+            Function<Boolean, ScanNode> nodeCreator = isLeaf -> {
+                ScanNode node = new ScanNode(DEGREE, isLeaf);
+                node.setPageFile(pageFile);
+                node.setOffset(allocator.allocate());
+                return node;
+            };
+            BTree<ScanNode> persistent = new BTree<>(DEGREE, nodeCreator);
+            List<ScanNode> built = new ArrayList<>();
+            persistent.bulkLoad(IntStream.range(0, 1000).iterator(), 1.0, node -> {
+                node.writeToDisk();
+                built.add(node);
+            });
+            nodes = built.size();
+            rootOffset = persistent.getRoot().getOffset();
+            for (BTreeNode node = persistent.getRoot(); node != null; node = node.isLeaf() ? null : node.getChild(0)) {
+                levels++;
+            }
+        }
+
+        try (PageFile pageFile = PageFile.open(FILENAME, false)) {
+            AtomicInteger reads = new AtomicInteger();
+            PageCache[] cache = new PageCache[1];
+            cache[0] = new PageCache((long) nodes * NodePage.PAGE_SIZE, NodePage.PAGE_SIZE, offset -> {
+                reads.incrementAndGet();
+                ScanNode node = new ScanNode(DEGREE, true);
+                node.setPageFile(pageFile);
+                node.setPageCache(cache[0]);
+                node.readFromDisk(offset);
+                return node;
+            });
+            BTree<ScanNode> reopened = new BTree<>(DEGREE, (ScanNode) cache[0].get(rootOffset), null);
+
+            assertArrayEquals(new int[] {0, 1, 2}, reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).limit(3).toArray());
+            assertTrue(levels > 2);
+            assertEquals(levels, reads.get(), "An early stop should read only the path to the first leaf");
+            assertArrayEquals(new int[] {999, 998}, reopened.rangeScanDescending(0, 1000).limit(2).toArray());
+            assertArrayEquals(IntStream.rangeClosed(500, 600).toArray(), reopened.rangeScan(500, 600).toArray());
+            assertTrue(reads.get() < nodes / 2);
+            assertEquals(1000, reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).count());
+            assertEquals(nodes, reads.get(), "A full scan should read every node once");
+        }
+    }
+
+    @Test
+    public void testBPlusTreeKeepsValuesInLinkedLeavesOnDisk() throws IOException {
+        String fileName = "test_bplus_tree.bin";
+        new File(fileName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        java.util.TreeSet<Integer> expected = new java.util.TreeSet<>();
+        long rootOffset;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode root = new PersistentBPlusTreeNode(DEGREE, true);
+            root.setPageFile(pageFile);
+            root.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+            PageCache cache = new PageCache(16L * pageSize, pageSize, root::load);
+            root.setPageCache(cache);
+            root = root.newNode(true);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, root, root::newNode);
+
+            Random random = new Random(7);
+            for (int i = 0; i < 2000; i++) {
+                int value = random.nextInt(1000);
+                if (random.nextInt(4) == 0) {
+                    expected.remove(value);
+                    tree.remove(value);
+                } else if (expected.add(value)) {
+                    tree.insert(value);
+                }
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(expected.contains(i), tree.search(i), "Search mismatch for: " + i);
+            }
+            assertArrayEquals(expected.subSet(100, true, 200, true).stream().mapToInt(Integer::intValue).toArray(),
+                    tree.rangeScan(100, 200).toArray());
+            assertArrayEquals(expected.descendingSet().subSet(200, true, 100, true).stream()
+                    .mapToInt(Integer::intValue).toArray(), tree.rangeScanDescending(100, 200).toArray());
+
+            cache.flush();
+            rootOffset = tree.getRoot().getOffset();
+        }
+
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            PageCache cache = new PageCache(4L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = (PersistentBPlusTreeNode) cache.get(rootOffset);
+            BTree<PersistentBPlusTreeNode> reopened = new BTree<>(DEGREE, root, root::newNode);
+            assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(),
+                    reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray(),
+                    "The leaf chain should survive a reopen with a small cache");
+        }
+        new File(fileName).delete();
+    }
+
+    /**
+     * The node-level operations that {@link ConcurrentBTree} drives itself (leaf insert and remove,
+     * split, borrow and merge), without the recursive insert and remove that students write.
+     */
+    static class PrimitiveNode implements BTreeNode {
+        final int t;
+        final boolean leaf;
+        final int[] values;
+        final BTreeNode[] children;
+        int n;
+
+        PrimitiveNode(int t, boolean leaf) {
+            this.t = t;
+            this.leaf = leaf;
+            this.values = new int[2 * t - 1];
+            this.children = new BTreeNode[2 * t];
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return leaf;
+        }
+
+        @Override
+        public int getNumValues() {
+            return n;
+        }
+
+        @Override
+        public int getValueAt(int index) {
+            return values[index];
+        }
+
+        @Override
+        public void setValueAt(int index, int value) {
+            values[index] = value;
+        }
+
+        @Override
+        public BTreeNode[] getChildren() {
+            return children;
+        }
+
+        @Override
+        public void insertNonFull(int value) {
+            assertTrue(leaf && n < 2 * t - 1, "ConcurrentBTree only inserts into leaves that are not full");
+            int i = n;
+            while (i > 0 && values[i - 1] > value) {
+                values[i] = values[i - 1];
+                i--;
+            }
+            values[i] = value;
+            n++;
+        }
+
+        @Override
+        public void remove(int value) {
+            assertTrue(leaf, "ConcurrentBTree only removes from leaves");
+            int i = 0;
+            while (i < n && values[i] != value) {
+                i++;
+            }
+            if (i < n) {
+                System.arraycopy(values, i + 1, values, i, n - i - 1);
+                n--;
+            }
+        }
+
+        @Override
+        public void splitChild(int index, BTreeNode fullChild) {
+            PrimitiveNode left = (PrimitiveNode) fullChild;
+            PrimitiveNode right = new PrimitiveNode(t, left.leaf);
+            System.arraycopy(left.values, t, right.values, 0, t - 1);
+            if (!left.leaf) {
+                System.arraycopy(left.children, t, right.children, 0, t);
+                Arrays.fill(left.children, t, 2 * t, null);
+            }
+            right.n = t - 1;
+            left.n = t - 1;
+            System.arraycopy(children, index + 1, children, index + 2, n - index);
+            children[index + 1] = right;
+            System.arraycopy(values, index, values, index + 1, n - index);
+            values[index] = left.values[t - 1];
+            n++;
+        }
+
+        @Override
+        public void borrowFromPrev(int index) {
+            PrimitiveNode child = (PrimitiveNode) children[index];
+            PrimitiveNode sibling = (PrimitiveNode) children[index - 1];
+            System.arraycopy(child.values, 0, child.values, 1, child.n);
+            child.values[0] = values[index - 1];
+            if (!child.leaf) {
+                System.arraycopy(child.children, 0, child.children, 1, child.n + 1);
+                child.children[0] = sibling.children[sibling.n];
+                sibling.children[sibling.n] = null;
+            }
+            values[index - 1] = sibling.values[sibling.n - 1];
+            child.n++;
+            sibling.n--;
+        }
+
+        @Override
+        public void borrowFromNext(int index) {
+            PrimitiveNode child = (PrimitiveNode) children[index];
+            PrimitiveNode sibling = (PrimitiveNode) children[index + 1];
+            child.values[child.n] = values[index];
+            if (!child.leaf) {
+                child.children[child.n + 1] = sibling.children[0];
+                System.arraycopy(sibling.children, 1, sibling.children, 0, sibling.n);
+                sibling.children[sibling.n] = null;
+            }
+            values[index] = sibling.values[0];
+            System.arraycopy(sibling.values, 1, sibling.values, 0, sibling.n - 1);
+            child.n++;
+            sibling.n--;
+        }
+
+        @Override
+        public void merge(int index) {
+            PrimitiveNode child = (PrimitiveNode) children[index];
+            PrimitiveNode sibling = (PrimitiveNode) children[index + 1];
+            child.values[child.n] = values[index];
+            System.arraycopy(sibling.values, 0, child.values, child.n + 1, sibling.n);
+            if (!child.leaf) {
+                System.arraycopy(sibling.children, 0, child.children, child.n + 1, sibling.n + 1);
+            }
+            child.n += sibling.n + 1;
+            System.arraycopy(values, index + 1, values, index, n - index - 1);
+            System.arraycopy(children, index + 2, children, index + 1, n - index - 1);
+            children[n] = null;
+            n--;
+        }
+
+        @Override
+        public BTreeNode search(int value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String traverse() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getPredecessor(int index) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getSuccessor(int index) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void testConcurrentBTreeUnderParallelWritersAndReaders() throws InterruptedException {
+        ConcurrentBTree<PrimitiveNode> tree =
+                new ConcurrentBTree<>(DEGREE, isLeaf -> new PrimitiveNode(DEGREE, isLeaf));
+        int perThread = 3000;
+        for (int i = 0; i < perThread; i++) {
+            tree.insert(5 * i); // multiples of 5 are never removed
+        }
+
+        java.util.concurrent.atomic.AtomicReference<Throwable> failure = new java.util.concurrent.atomic.AtomicReference<>();
+        java.util.concurrent.atomic.AtomicBoolean writing = new java.util.concurrent.atomic.AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int offset = w + 1; // writer w owns the values 5 * i + w + 1
+            writers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        tree.insert(5 * i + offset);
+                    }
+                    for (int i = 1; i < perThread; i += 2) {
+                        tree.remove(5 * i + offset);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            readers.add(new Thread(() -> {
+                Random random = new Random();
+                while (writing.get() && failure.get() == null) {
+                    int value = 5 * random.nextInt(perThread);
+                    if (!tree.search(value)) {
+                        failure.compareAndSet(null, new AssertionError("Lost value during concurrent writes: " + value));
+                    }
+                }
+            }));
+        }
+        readers.forEach(Thread::start);
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get(), "Concurrent operation failed: " + failure.get());
+
+        for (int i = 0; i < perThread; i++) {
+            assertTrue(tree.search(5 * i), "Tree should contain: " + 5 * i);
+            for (int w = 1; w <= 4; w++) {
+                assertEquals(i % 2 == 0, tree.search(5 * i + w), "Wrong membership for: " + (5 * i + w));
+            }
+        }
+    }
+
+    @Test
+    public void testFreeListReusesPagesAndVacuumShrinksFile() throws IOException {
+        String fileName = "test_free_list.bin";
+        new File(fileName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        List<Integer> expected = new ArrayList<>();
+        long rootOffset;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            FreeListPageAllocator allocator = FreeListPageAllocator.create(pageFile, pageSize, 16);
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(allocator);
+            PageCache cache = new PageCache(32L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, root, root::newNode);
+
+            long capacityAfterFirstRound = 0;
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 2000; i++) {
+                    tree.insert(i);
+                }
+                for (int i = 0; i < 2000; i++) {
+                    tree.remove(i);
+                }
+                // Freed pages are held back until the tree is on disk and the free list synced.
+                cache.flush();
+                allocator.sync();
+                if (round == 0) {
+                    capacityAfterFirstRound = allocator.getCapacity();
+                }
+            }
+            assertEquals(capacityAfterFirstRound, allocator.getCapacity(), "Freed pages should be reused");
+            assertTrue(allocator.getFreePageCount() > 0);
+
+            for (int i = 0; i < 100; i++) {
+                tree.insert(i * 3);
+                expected.add(i * 3);
+            }
+            rootOffset = tree.getRoot().vacuum();
+            assertEquals(0, allocator.getFreePageCount());
+            assertEquals(pageSize * (allocator.getUsedPageCount() + 1), pageFile.length(),
+                    "Vacuum should leave only the header and the live pages");
+            assertTrue(pageFile.length() < capacityAfterFirstRound);
+            assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(),
+                    tree.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray());
+        }
+
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            FreeListPageAllocator allocator = FreeListPageAllocator.open(pageFile);
+            assertTrue(allocator.isClean());
+            assertEquals(rootOffset, allocator.getRootOffset());
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(allocator);
+            PageCache cache = new PageCache(8L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = (PersistentBPlusTreeNode) cache.get(allocator.getRootOffset());
+            BTree<PersistentBPlusTreeNode> reopened = new BTree<>(DEGREE, root, root::newNode);
+            assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(),
+                    reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray());
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testNodePageRoundTripsAndDetectsCorruption() {
+        int t = PersistentIntegerBTreeNode.PAGE_DEGREE;
+        int fixedWidthDegree = (NodePage.PAGE_SIZE + Integer.BYTES - 1) / (2 * Integer.BYTES + 2 * Long.BYTES);
+        assertTrue(t > fixedWidthDegree, "Varint pages should fit more values than 4-byte values with 8-byte offsets");
+        int uncompressedDegree = (NodePage.PAGE_SIZE - NodePage.HEADER_SIZE + Integer.BYTES) / (4 * Integer.BYTES);
+        assertTrue(t >= uncompressedDegree, "Pages should never fit fewer values than 4-byte values and page numbers");
+
+        PersistentIntegerBTreeNode node = new PersistentIntegerBTreeNode(t, false);
+        for (int i = 0; i < 2 * t - 1; i++) {
+            node.appendValue(Integer.MIN_VALUE / 2 + i * 1_000_003);
+        }
+        for (int i = 0; i < 2 * t; i++) {
+            node.childOffsets[i] = (long) (i + 1) * 7919 * NodePage.PAGE_SIZE;
+        }
+        byte[] page = node.toByteArray();
+        assertEquals(NodePage.PAGE_SIZE, page.length);
+
+        PersistentIntegerBTreeNode copy = new PersistentIntegerBTreeNode(t, true);
+        copy.fromByteArray(page);
+        assertFalse(copy.isLeaf());
+        assertEquals(2 * t - 1, copy.getNumValues());
+        assertArrayEquals(node.values, copy.values);
+        assertArrayEquals(node.childOffsets, copy.childOffsets);
+
+        // Five-byte varints do not fit, so the page is written fixed width.
+        PersistentIntegerBTreeNode wide = new PersistentIntegerBTreeNode(t, false);
+        for (int i = 0; i < 2 * t - 1; i++) {
+            wide.appendValue(Integer.MIN_VALUE + i * (1 << 21));
+        }
+        for (int i = 0; i < 2 * t; i++) {
+            wide.childOffsets[i] = ((1L << 28) + i) * NodePage.PAGE_SIZE;
+        }
+        PersistentIntegerBTreeNode wideCopy = new PersistentIntegerBTreeNode(t, true);
+        wideCopy.fromByteArray(wide.toByteArray());
+        assertArrayEquals(wide.values, wideCopy.values);
+        assertArrayEquals(wide.childOffsets, wideCopy.childOffsets);
+
+        page[100] ^= 1;
+        assertThrows(IllegalStateException.class, () -> copy.fromByteArray(page));
+        assertEquals(2 * NodePage.PAGE_SIZE, new PersistentIntegerBTreeNode(t + 1, true).toByteArray().length,
+                "A degree too large for one page should get a larger page");
+    }
+
+    @Test
+    public void testChecksummedPagesAndVerifierCatchDamage() throws IOException {
+        String fileName = "test_verifier.bin";
+        new File(fileName).delete();
+        int page = NodePage.PAGE_SIZE;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            // root [10] with leaves [1 5] and [12 20]
+            pageFile.write(0, NodePage.encode(false, new int[]{10}, 1, new long[]{page, 2L * page}, page, 7));
+            pageFile.write(page, NodePage.encode(true, new int[]{1, 5}, 2, null, page, 8));
+            pageFile.write(2L * page, NodePage.encode(true, new int[]{12, 20}, 2, null, page, 9));
+            assertEquals(List.of(), BTreeVerifier.verify(pageFile, 0, 2));
+
+            PersistentIntegerBTreeNode root = new PersistentIntegerBTreeNode(2, true);
+            root.setPageFile(pageFile);
+            root.readFromDisk(0);
+            assertEquals(7, root.getPageLsn());
+            assertEquals(2L * page, root.childOffsets[1]);
+
+            // a leaf whose values fall outside its parent's range
+            pageFile.write(2L * page, NodePage.encode(true, new int[]{3, 20}, 2, null, page, 9));
+            assertEquals(1, BTreeVerifier.verify(pageFile, 0, 2).size());
+
+            // a flipped bit in the leaf
+            byte[] damaged = NodePage.encode(true, new int[]{12, 20}, 2, null, page, 9);
+            damaged[NodePage.HEADER_SIZE] ^= 4;
+            pageFile.write(2L * page, damaged);
+            List<String> problems = BTreeVerifier.verify(pageFile, 0, 2);
+            assertEquals(1, problems.size());
+            assertTrue(problems.get(0).contains("offset " + 2L * page), problems.get(0));
+
+            PersistentIntegerBTreeNode leaf = new PersistentIntegerBTreeNode(2, true);
+            leaf.setPageFile(pageFile);
+            CorruptPageException e = assertThrows(CorruptPageException.class, () -> leaf.readFromDisk(2L * page));
+            assertEquals(2L * page, e.getOffset());
+
+            // a damaged page that no node points to
+            pageFile.write(2L * page, NodePage.encode(true, new int[]{12, 20}, 2, null, page, 9));
+            pageFile.write(3L * page, damaged);
+            problems = BTreeVerifier.verify(pageFile, 0, 2);
+            assertEquals(1, problems.size());
+            assertTrue(problems.get(0).contains("Unreachable") && problems.get(0).contains("offset " + 3L * page),
+                    problems.get(0));
+            pageFile.write(3L * page, NodePage.encode(true, new int[]{30}, 1, null, page, 9));
+
+            // children that point to the same page, or past the end of the file
+            pageFile.write(0, NodePage.encode(false, new int[]{10}, 1, new long[]{page, page}, page, 7));
+            problems = BTreeVerifier.verify(pageFile, 0, 2);
+            assertEquals(1, problems.size());
+            assertTrue(problems.get(0).contains("more than once"), problems.get(0));
+            pageFile.write(0, NodePage.encode(false, new int[]{10}, 1, new long[]{page, 100L * page}, page, 7));
+            problems = BTreeVerifier.verify(pageFile, 0, 2);
+            assertEquals(1, problems.size());
+            assertTrue(problems.get(0).contains("outside"), problems.get(0));
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testCopyOnWriteSnapshotsStayConsistentAndPagesAreReclaimed() throws IOException {
+        String fileName = "test_cow.bin";
+        new File(fileName).delete();
+        int t = 3;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            CopyOnWriteBTree tree = CopyOnWriteBTree.create(pageFile, t);
+            for (int i = 0; i < 300; i++) {
+                tree.insert(i);
+            }
+            tree.commit();
+
+            Snapshot before = tree.openSnapshot();
+            for (int i = 0; i < 300; i += 2) {
+                assertTrue(tree.remove(i));
+            }
+            tree.insert(1000);
+            assertFalse(before.search(1000), "Uncommitted changes must not be visible");
+            tree.commit();
+
+            assertEquals(300, before.rangeScan(0, Integer.MAX_VALUE).count());
+            assertTrue(before.search(42));
+            try (Snapshot after = tree.openSnapshot()) {
+                assertFalse(after.search(42));
+                assertTrue(after.search(1000));
+                assertArrayEquals(new int[]{41, 43, 45}, after.rangeScan(40, 45).toArray());
+            }
+            assertTrue(tree.getRetiredPageCount() > 0, "Pages the old snapshot reads must be kept");
+
+            before.close();
+            int retired = tree.getRetiredPageCount();
+            assertEquals(retired, tree.reclaim());
+            assertEquals(0, tree.getRetiredPageCount());
+            assertEquals(List.of(), BTreeVerifier.verify(pageFile, tree.getRootOffset(), t));
+            assertThrows(IllegalStateException.class, () -> before.search(1));
+
+            tree.insert(5000);
+            tree.rollback();
+            assertFalse(tree.search(5000));
+        }
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            CopyOnWriteBTree tree = CopyOnWriteBTree.open(pageFile, t);
+            try (Snapshot snapshot = tree.openSnapshot()) {
+                assertEquals(151, snapshot.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).count());
+                assertFalse(snapshot.search(5000));
+            }
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testKeyValueBTreeMapsStringIdsToOffsetsAndOverflowValues() throws IOException {
+        String fileName = "test_key_value.bin";
+        new File(fileName).delete();
+        String big = "x".repeat(10_000);
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            KeyValueBTree<String, Long> ids = KeyValueBTree.create(pageFile, KeyCodec.UTF8, ValueCodec.LONG);
+            for (int i = 0; i < 5000; i++) {
+                assertNull(ids.put("record-" + i, i * 128L));
+            }
+            assertEquals(Long.valueOf(42 * 128L), ids.get("record-42"));
+            assertEquals(Long.valueOf(42 * 128L), ids.put("record-42", 7L));
+            assertEquals(Long.valueOf(7L), ids.remove("record-42"));
+            assertNull(ids.get("record-42"));
+            assertNull(ids.remove("record-42"));
+
+            List<String> keys = new ArrayList<>();
+            ids.range("record-10", "record-1003").forEachRemaining(e -> keys.add(e.getKey()));
+            assertEquals(List.of("record-10", "record-100", "record-1000", "record-1001", "record-1002",
+                    "record-1003"), keys);
+            assertThrows(IllegalArgumentException.class, () -> ids.put("k".repeat(ids.getMaxKeySize() + 1), 1L));
+            assertThrows(IllegalArgumentException.class, () -> ids.put("\uD800x", 1L));
+            assertThrows(IllegalArgumentException.class, () -> ids.put("x\uDC00", 1L));
+            assertNull(ids.put("\uD83D\uDE00", 2L));
+            assertEquals(4, KeyCodec.UTF8.size("\uD83D\uDE00"));
+            ids.sync();
+        }
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            KeyValueBTree<String, Long> ids = KeyValueBTree.open(pageFile, KeyCodec.UTF8, ValueCodec.LONG);
+            assertEquals(Long.valueOf(4999 * 128L), ids.get("record-4999"));
+            assertEquals(Long.valueOf(2L), ids.get("\uD83D\uDE00"));
+
+            KeyValueBTree<UUID, String> blobs =
+                    KeyValueBTree.create(pageFile, KeyCodec.UUID, ValueCodec.UTF8);
+            UUID id = new UUID(1, 2);
+            blobs.put(id, big);
+            long used = blobs.getAllocator().getUsedPageCount();
+            assertTrue(used > 2, "A value larger than a page should use overflow pages");
+            assertEquals(big, blobs.get(id));
+            blobs.put(id, "small");
+            assertEquals("small", blobs.get(id));
+            assertTrue(blobs.getAllocator().getUsedPageCount() < used, "Replaced overflow pages should be freed");
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testBackgroundFlusherCoalescesWritesAndSurvivesReopen() throws IOException {
+        String fileName = "test_flusher.bin";
+        new File(fileName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        long rootOffset;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+            PageCache cache = new PageCache(512L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, root, root::newNode);
+
+            // Watermarks at capacity and a long interval: only flushNow() writes.
+            try (BackgroundFlusher flusher =
+                         new BackgroundFlusher(cache, pageFile, 60_000, cache.getCapacity(), cache.getCapacity())) {
+                for (int i = 0; i < 300; i++) {
+                    tree.insert(i);
+                }
+                assertTrue(cache.getDirtyCount() > 0);
+                int written = flusher.flushNow();
+                assertEquals(written, flusher.getPagesWritten());
+                assertTrue(flusher.getWriteCalls() < written, "Adjacent pages should share a vectored write");
+                assertEquals(0, cache.getDirtyCount());
+            }
+
+            try (BackgroundFlusher flusher = new BackgroundFlusher(cache, pageFile, 1, 2, 4)) {
+                for (int i = 300; i < 5000; i++) {
+                    tree.insert(i);
+                }
+                assertNull(flusher.getFailure());
+            }
+            assertEquals(0, cache.getDirtyCount(), "Closing the flusher should write everything");
+            rootOffset = tree.getRoot().getOffset();
+        }
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            PageCache cache = new PageCache(8L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = (PersistentBPlusTreeNode) cache.get(rootOffset);
+            BTree<PersistentBPlusTreeNode> reopened = new BTree<>(DEGREE, root, root::newNode);
+            assertArrayEquals(IntStream.range(0, 5000).toArray(),
+                    reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray());
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testPrefetcherLoadsLeavesAheadOfScan() throws IOException {
+        String fileName = "test_prefetch.bin";
+        new File(fileName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        long rootOffset;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+            PageCache cache = new PageCache(64L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, root, root::newNode);
+            for (int i = 0; i < 3000; i++) {
+                tree.insert(i);
+            }
+            cache.flush();
+            rootOffset = tree.getRoot().getOffset();
+        }
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            PageCache cache = new PageCache(128L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = (PersistentBPlusTreeNode) cache.get(rootOffset);
+            BTree<PersistentBPlusTreeNode> reopened = new BTree<>(DEGREE, root, root::newNode);
+            try (Prefetcher prefetcher = new Prefetcher(cache, 2, 16)) {
+                assertArrayEquals(IntStream.range(0, 3000).toArray(),
+                        reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray());
+                assertArrayEquals(IntStream.rangeClosed(499, 2500).map(i -> 2999 - i).toArray(),
+                        reopened.rangeScanDescending(499, 2500).toArray());
+                assertTrue(cache.getPrefetches() > 0);
+                assertTrue(cache.getPrefetchHits() > 0, "The scan should find prefetched leaves in the cache");
+
+                // Reads queued before this may still land, so check that scans stop asking instead.
+                prefetcher.setEnabled(false);
+                assertEquals(0, cache.getPrefetchDepth());
+                assertEquals(3000, reopened.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).count());
+            }
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testKeySearchStrategiesAgreeAndCanBeChosenPerTree() {
+        Random random = new Random(16);
+        KeySearch[] strategies = {KeySearch.LINEAR, KeySearch.BINARY, KeySearch.BLOCK};
+        for (int count = 0; count <= 40; count++) {
+            int[] keys = new int[count + 3];
+            for (int i = 0; i < count; i++) {
+                keys[i] = (i == 0 ? Integer.MIN_VALUE : keys[i - 1]) + 1 + random.nextInt(5);
+            }
+            int[] probes = {Integer.MIN_VALUE, Integer.MAX_VALUE, 0, count > 0 ? keys[count - 1] : 1,
+                    count > 0 ? keys[count / 2] + 1 : 2};
+            for (int probe : probes) {
+                int lower = 0;
+                while (lower < count && keys[lower] < probe) {
+                    lower++;
+                }
+                int upper = lower;
+                while (upper < count && keys[upper] <= probe) {
+                    upper++;
+                }
+                for (KeySearch strategy : strategies) {
+                    assertEquals(lower, strategy.lowerBound(keys, count, probe));
+                    assertEquals(upper, strategy.upperBound(keys, count, probe));
+                }
+            }
+        }
+        assertSame(KeySearch.LINEAR, KeySearch.forDegree(DEGREE));
+        assertSame(KeySearch.BINARY, KeySearch.forDegree(KeySearch.BINARY_MIN_DEGREE));
+
+        for (KeySearch strategy : strategies) {
+            PersistentBPlusTreeNode root = new PersistentBPlusTreeNode(32, true);
+            root.setKeySearch(strategy);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(32, root, root::newNode);
+            for (int i = 0; i < 5000; i++) {
+                tree.insert((i * 7919) % 5000);
+            }
+            for (int i = 0; i < 5000; i += 3) {
+                tree.remove(i);
+            }
+            assertSame(strategy, tree.getRoot().getKeySearch());
+            assertTrue(tree.search(4999));
+            assertFalse(tree.search(4998));
+            assertArrayEquals(IntStream.range(0, 5000).filter(i -> i % 3 != 0).toArray(),
+                    tree.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray());
+        }
+    }
+
+    @Test
+    public void testBloomFilterSkipsDescentsForAbsentValues() throws IOException {
+        String fileName = "test_bloom.bin";
+        String filterName = "test_bloom.filter";
+        new File(fileName).delete();
+        new File(filterName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+            PageCache cache = new PageCache(64L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, root, root::newNode);
+            tree.setFilter(new BloomFilter(2000, 0.01));
+            for (int i = 0; i < 2000; i++) {
+                tree.insert(2 * i);
+            }
+
+            long lookups = cache.getHits() + cache.getMisses();
+            int found = 0;
+            for (int i = 0; i < 2000; i++) {
+                found += tree.search(2 * i + 1) ? 1 : 0;
+            }
+            assertEquals(0, found);
+            BloomFilter filter = tree.getFilter();
+            assertTrue(filter.getRejections() > 1900, "Most misses should stop at the filter");
+            assertTrue(cache.getHits() + cache.getMisses() - lookups < 100 * DEGREE,
+                    "Rejected values should not touch a single page");
+            for (int i = 0; i < 2000; i++) {
+                assertTrue(tree.search(2 * i));
+            }
+
+            for (int i = 0; i < 1500; i++) {
+                tree.remove(2 * i);
+            }
+            assertFalse(tree.search(0));
+            BloomFilter rebuilt = tree.rebuildFilter(0.01);
+            assertEquals(500, rebuilt.getInsertions());
+            assertTrue(rebuilt.getBitCount() < filter.getBitCount());
+            try (PageFile filterFile = PageFile.open(filterName, false)) {
+                rebuilt.save(filterFile);
+            }
+
+            PersistentBPlusTreeNode bulkRoot = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> bulk = new BTree<>(DEGREE, bulkRoot, bulkRoot::newNode);
+            bulk.setFilter(new BloomFilter(1000, 0.01));
+            bulk.bulkLoad(IntStream.range(0, 1000).map(i -> 3 * i), 1.0);
+            assertEquals(1000, bulk.getFilter().getInsertions());
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(bulk.search(3 * i), "Bulk-loaded values must pass the filter");
+            }
+        }
+        try (PageFile filterFile = PageFile.open(filterName, false)) {
+            BloomFilter loaded = BloomFilter.load(filterFile);
+            assertEquals(500, loaded.getInsertions());
+            for (int i = 1500; i < 2000; i++) {
+                assertTrue(loaded.mightContain(2 * i));
+            }
+            filterFile.write(40, new byte[] {0x55});
+            assertThrows(CorruptPageException.class, () -> BloomFilter.load(filterFile));
+        }
+        new File(fileName).delete();
+        new File(filterName).delete();
+    }
+
+    @Test
+    public void testCatalogKeepsNamedTreesInOneFile() throws IOException {
+        String fileName = "test_catalog.bin";
+        new File(fileName).delete();
+        long cacheBytes = 32L * PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        String longName = "x".repeat(Catalog.MAX_NAME_BYTES);
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            Catalog catalog = Catalog.create(pageFile, DEGREE, cacheBytes);
+            for (int i = 0; i < 20; i++) {
+                catalog.createTree(longName.substring(0, 200) + i); // enough to need two catalog pages
+            }
+            BTree<PersistentBPlusTreeNode> users = catalog.createTree("users");
+            BTree<PersistentBPlusTreeNode> orders = catalog.createTree("orders");
+            assertThrows(IllegalArgumentException.class, () -> catalog.createTree("users"));
+            assertThrows(IllegalArgumentException.class, () -> catalog.createTree(longName + "x"));
+            for (int i = 0; i < 1000; i++) {
+                users.insert(i);
+                orders.insert(-i);
+            }
+            catalog.checkpoint();
+
+            long usedBeforeDrop = catalog.getAllocator().getUsedPageCount();
+            catalog.dropTree("orders");
+            assertFalse(catalog.contains("orders"));
+            assertTrue(catalog.getAllocator().getUsedPageCount() < usedBeforeDrop - 100,
+                    "Dropping a tree should free its pages");
+            assertSame(users, catalog.openTree("users"));
+        }
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            Catalog catalog = Catalog.open(pageFile, DEGREE, cacheBytes);
+            assertEquals(21, catalog.getTreeNames().size());
+            assertTrue(catalog.contains(longName.substring(0, 200) + 19));
+            assertThrows(IllegalArgumentException.class, () -> catalog.openTree("orders"));
+            assertArrayEquals(IntStream.range(0, 1000).toArray(),
+                    catalog.openTree("users").rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).toArray());
+            assertEquals(0, catalog.openTree(longName.substring(0, 200) + 7).rangeScan(0, 10).count());
+        }
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            assertThrows(IOException.class, () -> Catalog.open(pageFile, DEGREE + 1, cacheBytes));
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testMetricsCountStructuralChangesIoAndLatency() throws IOException {
+        String fileName = "test_metrics.bin";
+        new File(fileName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+            PageCache cache = new PageCache(16L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, root, root::newNode);
+            BTreeMetrics metrics = new BTreeMetrics();
+            tree.setMetrics(metrics);
+
+            for (int i = 0; i < 2000; i++) {
+                tree.insert(i);
+            }
+            for (int i = 0; i < 2000; i += 2) {
+                tree.search(i);
+            }
+            for (int i = 0; i < 1500; i++) {
+                tree.remove((i * 7) % 2000);
+            }
+            cache.flush();
+
+            long lookupsBefore = cache.getMisses() + cache.getHits();
+            int height = tree.getHeight();
+            assertTrue(cache.getMisses() + cache.getHits() - lookupsBefore <= height,
+                    "getHeight should visit one node per level");
+
+            BTreeMetrics.Snapshot snapshot = tree.getMetricsSnapshot();
+            assertTrue(snapshot.get("splits") > 0);
+            assertTrue(snapshot.get("merges") > 0);
+            assertTrue(snapshot.get("borrowsFromPrev") + snapshot.get("borrowsFromNext") > 0);
+            assertTrue(snapshot.get("pageReads") > 0, "A 16-page cache cannot hold the whole tree");
+            assertTrue(snapshot.get("pageWrites") > 0);
+            assertEquals(cache.getHits(), snapshot.get("cacheHits"));
+            assertEquals(2000, snapshot.get("insertCount"));
+            assertEquals(1000, snapshot.get("searchCount"));
+            assertEquals(1500, snapshot.get("removeCount"));
+            assertTrue(snapshot.get("searchP50Nanos") <= snapshot.get("searchP99Nanos"));
+            assertTrue(snapshot.get("searchP99Nanos") <= snapshot.get("searchMaxNanos"));
+            assertEquals(tree.getHeight(), snapshot.getHeight());
+            assertTrue(snapshot.getHeight() >= 2);
+            assertTrue(snapshot.getAverageFill() > 0 && snapshot.getAverageFill() <= 1);
+            assertTrue(snapshot.export("btree_").contains("btree_splits " + snapshot.get("splits") + "\n"));
+
+            metrics.reset();
+            assertEquals(0, metrics.snapshot().get("splits"));
+            tree.setMetrics(null);
+            tree.insert(5000);
+            assertEquals(0, metrics.snapshot().get("insertCount"));
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testPageCacheReadsMissesOutsideItsLock() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        PageCache cache = new PageCache(4 * 4096, 4096, offset -> {
+            reads.incrementAndGet();
+            if (offset == 4096) {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            PersistentIntegerBTreeNode node = new PersistentIntegerBTreeNode(DEGREE, true);
+            node.setOffset(offset);
+            node.markClean();
+            return node;
+        });
+        PersistentBTreeNode cached = cache.get(0);
+
+        PersistentBTreeNode[] loaded = new PersistentBTreeNode[2];
+        Thread first = new Thread(() -> loaded[0] = cache.get(4096));
+        first.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        Thread second = new Thread(() -> loaded[1] = cache.pin(4096));
+        second.start();
+
+        // The slow read must not hold up a hit, and the second lookup must wait for the first read.
+        assertSame(cached, cache.get(0));
+        assertEquals(2, reads.get());
+        release.countDown();
+        first.join();
+        second.join();
+        assertNotNull(loaded[0]);
+        assertSame(loaded[0], loaded[1], "Both lookups should get the node of the one read");
+        assertEquals(2, reads.get());
+        cache.unpin(4096);
+    }
+
+    @Test
+    public void testFreedPagesAreHeldBackUntilSync() throws IOException {
+        String fileName = "test_free_hold_back.bin";
+        new File(fileName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        long first;
+        long second;
+        long third;
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            FreeListPageAllocator allocator = FreeListPageAllocator.create(pageFile, pageSize, 4);
+            first = allocator.allocate();
+            second = allocator.allocate();
+            allocator.free(first);
+            long freed = first;
+            assertThrows(IllegalArgumentException.class, () -> allocator.free(freed), "Double free");
+            assertEquals(1, allocator.getFreePageCount());
+            third = allocator.allocate();
+            assertTrue(first != third, "A page freed since the last sync must not be reused");
+
+            allocator.sync();
+            assertEquals(first, allocator.allocate(), "Freed pages are reused after a sync");
+            allocator.free(second);
+            allocator.free(third);
+            allocator.sync();
+            long synced = second;
+            assertThrows(IllegalArgumentException.class, () -> allocator.free(synced), "Double free after sync");
+        }
+
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            FreeListPageAllocator allocator = FreeListPageAllocator.open(pageFile);
+            assertArrayEquals(new long[] {Math.min(second, third), Math.max(second, third)}, allocator.getFreePages());
+            long reused = allocator.allocate();
+            assertTrue(reused == second || reused == third);
+            long stillFree = reused == second ? third : second;
+            assertThrows(IllegalArgumentException.class, () -> allocator.free(stillFree));
+        }
+        new File(fileName).delete();
+    }
+
+    @Test
+    public void testCommitWritesOnlyTheLoggedImages() throws IOException {
+        String fileName = "test_commit_images.bin";
+        String logName = fileName + ".wal";
+        new File(fileName).delete();
+        new File(logName).delete();
+        int pageSize = PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        try (PageFile pageFile = PageFile.open(fileName, false)) {
+            PersistentBPlusTreeNode storage = new PersistentBPlusTreeNode(DEGREE, true);
+            storage.setPageFile(pageFile);
+            storage.setAllocator(new AppendOnlyPageAllocator(pageSize, 0));
+            PageCache cache = new PageCache(8L * pageSize, pageSize, storage::load);
+            storage.setPageCache(cache);
+            PersistentBPlusTreeNode root = storage.newNode(true);
+            BTree<PersistentBPlusTreeNode> tree = new BTree<>(DEGREE, root, root::newNode);
+            boolean[] changeDuringForce = {true};
+            try (WriteAheadLog log = new WriteAheadLog(logName) {
+                @Override
+                public void flushTo(long lsn) throws IOException {
+                    if (changeDuringForce[0]) {
+                        changeDuringForce[0] = false;
+                        tree.insert(3); // another writer, between the logging and the write-back
+                    }
+                    super.flushTo(lsn);
+                }
+            }) {
+                cache.setWriteAheadLog(log);
+                tree.insert(1);
+                tree.insert(2);
+                assertEquals(1, cache.commit());
+
+                assertEquals(2, storage.load(root.getOffset()).getNumValues(),
+                        "The value inserted after logging must not reach the node file unlogged");
+                assertTrue(root.isDirty(), "The node changed after logging must wait for the next commit");
+                assertEquals(1, cache.commit());
+                assertEquals(3, storage.load(root.getOffset()).getNumValues());
+                assertFalse(root.isDirty());
+            }
+        }
+        new File(fileName).delete();
+        new File(logName).delete();
+    }
+
+    @Test
+    public void testCatalogDropThenReopenWithWriteAheadLog() throws IOException {
+        String fileName = "test_catalog_wal.bin";
+        String logName = fileName + ".wal";
+        new File(fileName).delete();
+        new File(logName).delete();
+        long cacheBytes = 256L * PersistentBPlusTreeNode.pageSizeFor(DEGREE);
+        try (PageFile pageFile = PageFile.open(fileName, false);
+             WriteAheadLog log = new WriteAheadLog(logName)) {
+            Catalog catalog = Catalog.create(pageFile, DEGREE, cacheBytes);
+            catalog.getPageCache().setWriteAheadLog(log);
+            BTree<PersistentBPlusTreeNode> dropped = catalog.createTree("dropped");
+            for (int i = 0; i < 300; i++) {
+                dropped.insert(i);
+            }
+            catalog.getPageCache().commit(); // the log now holds images of the dropped tree's pages
+            catalog.dropTree("dropped");
+            assertEquals(0, log.size(), "Pages must not be freed while the log still holds their images");
+
+            // The new catalog page and the new tree reuse the dropped tree's pages.
+            BTree<PersistentBPlusTreeNode> kept = catalog.createTree("kept");
+            for (int i = 0; i < 100; i++) {
+                kept.insert(-i);
+            }
+            catalog.checkpoint();
+        }
+        // Reopening replays the log over the file, as after a crash.
+        try (PageFile pageFile = PageFile.open(fileName, false);
+             WriteAheadLog log = WriteAheadLog.open(logName, pageFile)) {
+            Catalog catalog = Catalog.open(pageFile, DEGREE, cacheBytes);
+            catalog.getPageCache().setWriteAheadLog(log);
+            assertEquals(Set.of("kept"), catalog.getTreeNames());
+            assertEquals(100, catalog.openTree("kept").rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE).count());
+        }
+        new File(fileName).delete();
+        new File(logName).delete();
+    }
 }
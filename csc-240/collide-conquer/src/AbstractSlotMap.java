@@ -0,0 +1,375 @@
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The slot table shared by {@link OffHeapHashMap} and {@link MappedHashMap}: fixed-size slots
+ * spread over an array of {@link ByteBuffer}s, linear probing over a power-of-two capacity, and
+ * backward-shift deletion. Subclasses own the buffers, i.e. where they come from and how the
+ * table grows, and may act before every change.
+ *
+ * Slot layout: used flag (1 byte), hash (4), key ({@code keyCodec.size()}), value
+ * ({@code valueCodec.size()}). Keys are compared and hashed by their encoded bytes. Every buffer
+ * holds the same power-of-two number of slots, at most {@value #MAX_BUFFER_BYTES} bytes' worth.
+ */
+abstract class AbstractSlotMap<K, V> implements Map<K, V> {
+
+    static final int MAX_BUFFER_BYTES = 1 << 30;
+    static final long MAX_CAPACITY = 1L << 31; // homes come from a 32-bit hash
+
+    private static final int USED = 0;
+    private static final int HASH = 1;
+    private static final int KEY = 5;
+
+    final FixedSizeCodec<K> keyCodec;
+    final FixedSizeCodec<V> valueCodec;
+    final float loadFactor;
+    final int keySize;
+    final int slotSize;
+    final long seed;
+    private final ByteBuffer scratch; // the encoded key of the current operation, on the heap
+    private final byte[] moving; // one slot, while it moves
+
+    ByteBuffer[] buffers; // null once the map is closed
+    private int shift; // log2 of the slots per buffer
+    private long mask;
+    private long threshold;
+    long size;
+
+    /**
+     * @param seed mixed into every hash, so that tables with different seeds spread keys differently
+     */
+    AbstractSlotMap(FixedSizeCodec<K> keyCodec, FixedSizeCodec<V> valueCodec, float loadFactor, long seed) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.loadFactor = loadFactor;
+        this.seed = seed;
+        this.keySize = keyCodec.size();
+        this.slotSize = KEY + keySize + valueCodec.size();
+        if (slotSize > MAX_BUFFER_BYTES) {
+            throw new IllegalArgumentException("Entries of " + slotSize + " bytes do not fit in a buffer");
+        }
+        this.scratch = ByteBuffer.allocate(keySize);
+        this.moving = new byte[slotSize];
+    }
+
+    /**
+     * Checks the arguments a new table is made with.
+     * @return the load factor
+     */
+    static float checkArguments(long initialCapacity, float loadFactor) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + initialCapacity);
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+        }
+        return loadFactor;
+    }
+
+    /**
+     * Doubles the table. On failure it throws and leaves the old table in place.
+     */
+    abstract void grow();
+
+    /**
+     * Called before every change to the table.
+     */
+    void changing() {
+    }
+
+    /**
+     * Called after {@link #size} changes.
+     */
+    void sizeChanged() {
+    }
+
+    /**
+     * @return the number of slots in each buffer of a table of the given capacity
+     */
+    int slotsPerBuffer(long capacity) {
+        int slots = Integer.highestOneBit(MAX_BUFFER_BYTES / slotSize);
+        return capacity < slots ? (int) capacity : slots;
+    }
+
+    /**
+     * Switches to the given buffers, {@link #slotsPerBuffer(long)} slots each. Entries are not
+     * moved and {@link #size} is not changed.
+     */
+    void setTable(ByteBuffer[] buffers, long capacity) {
+        this.buffers = buffers;
+        shift = Integer.numberOfTrailingZeros(slotsPerBuffer(capacity));
+        mask = capacity - 1;
+        threshold = Math.min(capacity - 1, (long) (capacity * (double) loadFactor));
+    }
+
+    private ByteBuffer buffer(long slot) {
+        return buffers[(int) (slot >>> shift)];
+    }
+
+    private int offset(long slot) {
+        return (int) (slot & ((1L << shift) - 1)) * slotSize;
+    }
+
+    void checkOpen() {
+        if (buffers == null) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
+    /**
+     * Encodes the key into {@link #scratch}.
+     * @return the seeded hash of its bytes
+     */
+    private int encodeKey(Object key) {
+        checkOpen();
+        if (key == null) {
+            throw new IllegalArgumentException("Null keys are not allowed");
+        }
+        @SuppressWarnings("unchecked")
+        K typed = (K) key;
+        keyCodec.encode(typed, scratch, 0);
+        long hash = seed ^ keySize;
+        int i = 0;
+        for (; i + Long.BYTES <= keySize; i += Long.BYTES) {
+            hash = Hashing.mix64(hash ^ scratch.getLong(i));
+        }
+        for (; i < keySize; i++) {
+            hash = hash * 31 + scratch.get(i);
+        }
+        return (int) Hashing.mix64(hash);
+    }
+
+    private boolean keyMatches(ByteBuffer buffer, int offset) {
+        int start = offset + KEY;
+        int i = 0;
+        for (; i + Long.BYTES <= keySize; i += Long.BYTES) {
+            if (buffer.getLong(start + i) != scratch.getLong(i)) {
+                return false;
+            }
+        }
+        for (; i < keySize; i++) {
+            if (buffer.get(start + i) != scratch.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks for the key in {@link #scratch}.
+     * @return the slot holding it, or the empty slot that ends its run, as {@code -slot - 1}
+     */
+    private long find(int hash) {
+        long slot = hash & mask;
+        while (true) {
+            ByteBuffer buffer = buffer(slot);
+            int offset = offset(slot);
+            if (buffer.get(offset + USED) == 0) {
+                return -slot - 1;
+            }
+            if (buffer.getInt(offset + HASH) == hash && keyMatches(buffer, offset)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private V valueAt(long slot) {
+        return valueCodec.decode(buffer(slot), offset(slot) + KEY + keySize);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not allowed");
+        }
+        int hash = encodeKey(key);
+        long slot = find(hash);
+        if (slot >= 0) {
+            changing();
+            valueCodec.encode(value, buffer(slot), offset(slot) + KEY + keySize);
+            return;
+        }
+        if (size >= threshold) {
+            grow();
+            slot = find(hash);
+        }
+        changing();
+        slot = -slot - 1;
+        ByteBuffer buffer = buffer(slot);
+        int offset = offset(slot);
+        buffer.putInt(offset + HASH, hash);
+        buffer.put(offset + KEY, scratch.array(), 0, keySize);
+        valueCodec.encode(value, buffer, offset + KEY + keySize);
+        buffer.put(offset + USED, (byte) 1); // last, in case the codec throws
+        size++;
+        sizeChanged();
+    }
+
+    @Override
+    public V get(K key) {
+        long slot = find(encodeKey(key));
+        return slot >= 0 ? valueAt(slot) : null;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return find(encodeKey(key)) >= 0;
+    }
+
+    @Override
+    public V remove(K key) {
+        long slot = find(encodeKey(key));
+        if (slot < 0) {
+            return null;
+        }
+        changing();
+        V value = valueAt(slot);
+        shiftBack(slot);
+        size--;
+        sizeChanged();
+        return value;
+    }
+
+    /**
+     * Empties {@code hole} by moving back every later entry of its run that may live there, i.e.
+     * whose home slot is not between the hole and the entry's slot.
+     */
+    private void shiftBack(long hole) {
+        long slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            ByteBuffer buffer = buffer(slot);
+            int offset = offset(slot);
+            if (buffer.get(offset + USED) == 0) {
+                break;
+            }
+            long home = buffer.getInt(offset + HASH) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                buffer.get(offset, moving);
+                buffer(hole).put(offset(hole), moving);
+                hole = slot;
+            }
+        }
+        buffer(hole).put(offset(hole) + USED, (byte) 0);
+    }
+
+    /**
+     * Copies every entry of a buffer of the previous table into the current one, which must have
+     * room for them. {@link #size} is not changed.
+     * @return the number of entries copied
+     */
+    long copyEntries(ByteBuffer old) {
+        long copied = 0;
+        for (int offset = 0; offset < old.capacity(); offset += slotSize) {
+            if (old.get(offset + USED) != 0) {
+                long slot = old.getInt(offset + HASH) & mask;
+                while (buffer(slot).get(offset(slot) + USED) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                old.get(offset, moving);
+                buffer(slot).put(offset(slot), moving);
+                copied++;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * @return the number of used slots, counted from the table rather than taken from {@link #size}
+     */
+    long countEntries() {
+        long count = 0;
+        for (ByteBuffer buffer : buffers) {
+            for (int offset = 0; offset < buffer.capacity(); offset += slotSize) {
+                if (buffer.get(offset + USED) != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of entries, or {@code Integer.MAX_VALUE} if there are more; see
+     * {@link #getEntryCount()}
+     */
+    @Override
+    public int size() {
+        checkOpen();
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    public long getEntryCount() {
+        checkOpen();
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getEntryCount() == 0;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        checkOpen();
+        Set<K> keys = new HashSet<>();
+        for (ByteBuffer buffer : buffers) {
+            for (int offset = 0; offset < buffer.capacity(); offset += slotSize) {
+                if (buffer.get(offset + USED) != 0) {
+                    keys.add(keyCodec.decode(buffer, offset + KEY));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Removes every entry but keeps the capacity.
+     */
+    @Override
+    public void clear() {
+        checkOpen();
+        changing();
+        for (ByteBuffer buffer : buffers) {
+            for (int offset = 0; offset < buffer.capacity(); offset += slotSize) {
+                buffer.put(offset + USED, (byte) 0);
+            }
+        }
+        size = 0;
+        sizeChanged();
+    }
+
+    /**
+     * Decodes the whole table onto the heap.
+     * @return one element per slot: a {@code java.util.Map.Entry} or null if empty
+     * @throws IllegalStateException if the table has more slots than an array can hold
+     */
+    @Override
+    public Object[] toArray() {
+        checkOpen();
+        if (mask + 1 > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Table of " + (mask + 1) + " slots does not fit in an array");
+        }
+        Object[] slots = new Object[(int) (mask + 1)];
+        for (int slot = 0; slot < slots.length; slot++) {
+            ByteBuffer buffer = buffer(slot);
+            int offset = offset(slot);
+            if (buffer.get(offset + USED) != 0) {
+                slots[slot] = new AbstractMap.SimpleImmutableEntry<>(keyCodec.decode(buffer, offset + KEY),
+                        valueCodec.decode(buffer, offset + KEY + keySize));
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * @return the number of slots in the table
+     */
+    public long getCapacity() {
+        checkOpen();
+        return mask + 1;
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Measures the throughput of a mixed get/put/remove workload on a {@link StripedChainHashMap},
+ * a {@code java.util.HashMap} behind {@code Collections.synchronizedMap}, and a
+ * {@link ConcurrentHashMap}, for 1 to 64 threads.
+ *
+ * Usage: {@code java ConcurrentMapBenchmark [seconds] [getPercent]} (defaults: 2, 90).
+ * Puts and removes split the remaining operations evenly. A short warm-up round runs on every
+ * map first so the JIT has compiled the map code before the first row is measured.
+ */
+public class ConcurrentMapBenchmark {
+
+    private static final int KEY_RANGE = 1 << 20;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    private static final int WARM_UP_THREADS = 4;
+    private static final double WARM_UP_SECONDS = 0.5;
+
+    // Boxed once, so the runs measure the maps and not Integer.valueOf.
+    private static final Integer[] KEYS = new Integer[KEY_RANGE];
+
+    public static void main(String[] args) throws InterruptedException {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2.0;
+        int getPercent = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = i;
+        }
+
+        runMaps(WARM_UP_THREADS, WARM_UP_SECONDS, getPercent);
+        System.out.printf("%.1fs per run, %d%% gets, %d cores%n",
+                seconds, getPercent, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %18s %18s %18s%n", "threads", "synchronized ops/s", "concurrent ops/s", "striped ops/s");
+        for (int threads : THREAD_COUNTS) {
+            double[] ops = runMaps(threads, seconds, getPercent);
+            System.out.printf("%8d %18.0f %18.0f %18.0f%n", threads, ops[0], ops[1], ops[2]);
+        }
+    }
+
+    /**
+     * Runs the workload once on a new map of each kind.
+     * @return the operations per second of the synchronized, concurrent and striped map
+     */
+    private static double[] runMaps(int threads, double seconds, int getPercent) throws InterruptedException {
+        java.util.Map<Integer, Integer> synchronizedMap = Collections.synchronizedMap(new HashMap<>());
+        double synchronizedOps = run(threads, seconds, getPercent,
+                synchronizedMap::get, key -> synchronizedMap.put(key, key), synchronizedMap::remove);
+
+        ConcurrentHashMap<Integer, Integer> concurrentMap = new ConcurrentHashMap<>();
+        double concurrentOps = run(threads, seconds, getPercent,
+                concurrentMap::get, key -> concurrentMap.put(key, key), concurrentMap::remove);
+
+        StripedChainHashMap<Integer, Integer> stripedMap = new StripedChainHashMap<>(16, 0.75f);
+        double stripedOps = run(threads, seconds, getPercent,
+                stripedMap::get, key -> stripedMap.put(key, key), stripedMap::remove);
+
+        return new double[] {synchronizedOps, concurrentOps, stripedOps};
+    }
+
+    /**
+     * Loads half of the key range, then lets the threads run random operations for the given time.
+     * Every map starts small, so the load also measures resizing.
+     * @return the number of operations per second over all threads
+     */
+    private static double run(int threads, double seconds, int getPercent,
+                              Function<Integer, Integer> get, Consumer<Integer> put, Consumer<Integer> remove)
+            throws InterruptedException {
+        for (int key = 0; key < KEY_RANGE; key += 2) {
+            put.accept(KEYS[key]);
+        }
+        LongAdder operations = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            workers[w] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (running.get()) {
+                    Integer key = KEYS[random.nextInt(KEY_RANGE)];
+                    int dice = random.nextInt(100);
+                    if (dice < getPercent) {
+                        get.apply(key);
+                    } else if (dice % 2 == 0) {
+                        put.accept(key);
+                    } else {
+                        remove.accept(key);
+                    }
+                    done++;
+                }
+                operations.add(done);
+            });
+            workers[w].start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - began) / 1e9;
+        return operations.sum() / elapsed;
+    }
+}
@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Turns keys or values into a fixed number of bytes, for maps that keep their entries outside the
+ * Java heap ({@link OffHeapHashMap}).
+ *
+ * A key codec must be canonical: two keys are equal exactly when their encodings are equal,
+ * because the map compares and hashes keys by their bytes.
+ */
+public interface FixedSizeCodec<T> {
+
+    /**
+     * @return the number of bytes of every encoded value
+     */
+    int size();
+
+    /**
+     * Writes {@code value} to {@code target[offset..offset + size())}.
+     */
+    void encode(T value, ByteBuffer target, int offset);
+
+    /**
+     * @return the value stored at {@code source[offset..offset + size())}
+     */
+    T decode(ByteBuffer source, int offset);
+
+    FixedSizeCodec<Integer> INT = new FixedSizeCodec<>() {
+        @Override
+        public int size() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void encode(Integer value, ByteBuffer target, int offset) {
+            target.putInt(offset, value);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer source, int offset) {
+            return source.getInt(offset);
+        }
+    };
+
+    FixedSizeCodec<Long> LONG = new FixedSizeCodec<>() {
+        @Override
+        public int size() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(Long value, ByteBuffer target, int offset) {
+            target.putLong(offset, value);
+        }
+
+        @Override
+        public Long decode(ByteBuffer source, int offset) {
+            return source.getLong(offset);
+        }
+    };
+
+    /**
+     * @return a codec for byte arrays of exactly {@code length} bytes, e.g. hashes or UUIDs
+     */
+    static FixedSizeCodec<byte[]> bytes(int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive: " + length);
+        }
+        return new FixedSizeCodec<>() {
+            @Override
+            public int size() {
+                return length;
+            }
+
+            @Override
+            public void encode(byte[] value, ByteBuffer target, int offset) {
+                if (value.length != length) {
+                    throw new IllegalArgumentException("Expected " + length + " bytes, got " + value.length);
+                }
+                target.put(offset, value);
+            }
+
+            @Override
+            public byte[] decode(ByteBuffer source, int offset) {
+                byte[] value = new byte[length];
+                source.get(offset, value);
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * The hash mixing and table sizing shared by the provided maps.
+ */
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * The 32-bit finalizer of MurmurHash3: every input bit affects every output bit, so poor
+     * {@code hashCode}s and sequential keys still spread out.
+     */
+    static int mix32(int x) {
+        x ^= x >>> 16;
+        x *= 0x85ebca6b;
+        x ^= x >>> 13;
+        x *= 0xc2b2ae35;
+        x ^= x >>> 16;
+        return x;
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3: every input bit affects every output bit.
+     */
+    static long mix64(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    /**
+     * @return the mixed {@code hashCode} of the key
+     * @throws IllegalArgumentException if the key is null
+     */
+    static int hash(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Null keys are not allowed");
+        }
+        return mix32(key.hashCode());
+    }
+
+    /**
+     * @param minimum the smallest size to return, a power of two
+     * @param maximum the largest size to return, a power of two
+     * @return the smallest power of two that is at least {@code capacity}, within the bounds
+     */
+    static int tableSizeFor(int capacity, int minimum, int maximum) {
+        return (int) tableSizeFor((long) capacity, minimum, maximum);
+    }
+
+    /**
+     * @param minimum the smallest size to return, a power of two
+     * @param maximum the largest size to return, a power of two
+     * @return the smallest power of two that is at least {@code capacity}, within the bounds
+     */
+    static long tableSizeFor(long capacity, long minimum, long maximum) {
+        long size = Math.max(minimum, Math.min(capacity, maximum));
+        return size <= 1 ? 1 : Long.highestOneBit(size - 1) << 1;
+    }
+}
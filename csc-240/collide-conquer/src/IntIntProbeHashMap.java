@@ -0,0 +1,222 @@
+import java.util.Arrays;
+
+/**
+ * An open-addressing map from int keys to int values, for tables too hot to box every key and
+ * value. Keys and values live in two parallel int arrays, so an entry costs 8 bytes per slot
+ * instead of an entry object, two boxed integers and a reference.
+ *
+ * A key of 0 marks an empty slot. The real key 0 is kept outside the arrays, in
+ * {@code hasZeroKey}/{@code zeroValue}. Keys are spread with the MurmurHash3 finalizer, so
+ * sequential IDs do not pile up in one run of slots. The table uses linear probing and a
+ * power-of-two capacity. {@link #remove(int)} shifts later entries of the run back into the
+ * hole, so no tombstones are left behind and lookups never slow down after deletes.
+ *
+ * Missing keys read as the {@code noEntryValue} given to the constructor (0 by default). Use
+ * {@link #containsKey(int)} when that value can also be stored.
+ */
+public class IntIntProbeHashMap {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final float loadFactor;
+    private final int noEntryValue;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int threshold;
+    private int size; // entries in the arrays, not counting key 0
+
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    public IntIntProbeHashMap(int initialCapacity, float loadFactor) {
+        this(initialCapacity, loadFactor, 0);
+    }
+
+    /**
+     * @param initialCapacity the number of slots to start with, rounded up to a power of two
+     * @param loadFactor the fraction of slots that may fill before the table doubles; below 1
+     * @param noEntryValue what {@link #get(int)} and {@link #remove(int)} return for a missing key
+     */
+    public IntIntProbeHashMap(int initialCapacity, float loadFactor, int noEntryValue) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + initialCapacity);
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        this.noEntryValue = noEntryValue;
+        allocate(Hashing.tableSizeFor(initialCapacity, 2, MAX_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        threshold = Math.min(capacity - 1, (int) (capacity * loadFactor));
+    }
+
+    private int home(int key) {
+        return Hashing.mix32(key) & mask;
+    }
+
+    /**
+     * @return the slot holding {@code key}, or the empty slot that ends its run, as {@code -slot - 1}
+     */
+    private int find(int key) {
+        int slot = home(key);
+        int current;
+        while ((current = keys[slot]) != 0) {
+            if (current == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    public void put(int key, int value) {
+        if (key == 0) {
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = find(key);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+        if (size >= threshold) {
+            resize(keys.length << 1);
+            slot = find(key);
+        }
+        slot = -slot - 1;
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    public int get(int key) {
+        return getOrDefault(key, noEntryValue);
+    }
+
+    public int getOrDefault(int key, int defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = find(key);
+        return slot >= 0 ? values[slot] : defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        return key == 0 ? hasZeroKey : find(key) >= 0;
+    }
+
+    /**
+     * @return the value the key had, or the no-entry value if it was not in the map
+     */
+    public int remove(int key) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                return noEntryValue;
+            }
+            hasZeroKey = false;
+            return zeroValue;
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            return noEntryValue;
+        }
+        int value = values[slot];
+        shiftBack(slot);
+        size--;
+        return value;
+    }
+
+    /**
+     * Empties {@code hole} by moving back every later entry of its run that may live there, i.e.
+     * whose home slot is not between the hole and the entry's slot.
+     */
+    private void shiftBack(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int key = keys[slot];
+            if (key == 0) {
+                break;
+            }
+            int home = home(key);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = key;
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = 0;
+    }
+
+    private void resize(int capacity) {
+        if (keys.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("Map cannot grow beyond " + MAX_CAPACITY + " slots");
+        }
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != 0) {
+                int slot = home(key);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Removes every entry but keeps the capacity.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    /**
+     * @return the keys, in no particular order
+     */
+    public int[] keys() {
+        int[] result = new int[size()];
+        int n = 0;
+        if (hasZeroKey) {
+            result[n++] = 0;
+        }
+        for (int key : keys) {
+            if (key != 0) {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of slots in the table
+     */
+    public int capacity() {
+        return keys.length;
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.Arrays;
+
+/**
+ * An open-addressing map from long keys to objects that never boxes a key. Keys live in a long
+ * array and values in a parallel object array, so an entry costs 8 bytes plus a reference per
+ * slot instead of an entry object, a boxed {@code Long} and three references.
+ *
+ * A key of 0 marks an empty slot. The real key 0 is kept outside the arrays, in
+ * {@code hasZeroKey}/{@code zeroValue}. Keys are spread with the 64-bit MurmurHash3 finalizer.
+ * The table uses linear probing and a power-of-two capacity, and {@link #remove(long)} shifts
+ * later entries of the run back into the hole instead of leaving a tombstone.
+ *
+ * Values may be null; {@link #get(long)} then cannot tell a null value from a missing key, so
+ * use {@link #containsKey(long)}.
+ */
+public class LongObjectProbeHashMap<V> {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final float loadFactor;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int threshold;
+    private int size; // entries in the arrays, not counting key 0
+
+    private boolean hasZeroKey;
+    private V zeroValue;
+
+    /**
+     * @param initialCapacity the number of slots to start with, rounded up to a power of two
+     * @param loadFactor the fraction of slots that may fill before the table doubles; below 1
+     */
+    public LongObjectProbeHashMap(int initialCapacity, float loadFactor) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + initialCapacity);
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        allocate(Hashing.tableSizeFor(initialCapacity, 2, MAX_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        threshold = Math.min(capacity - 1, (int) (capacity * loadFactor));
+    }
+
+    private int home(long key) {
+        return (int) Hashing.mix64(key) & mask;
+    }
+
+    /**
+     * @return the slot holding {@code key}, or the empty slot that ends its run, as {@code -slot - 1}
+     */
+    private int find(long key) {
+        int slot = home(key);
+        long current;
+        while ((current = keys[slot]) != 0) {
+            if (current == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    public void put(long key, V value) {
+        if (key == 0) {
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = find(key);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+        if (size >= threshold) {
+            resize(keys.length << 1);
+            slot = find(key);
+        }
+        slot = -slot - 1;
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    /**
+     * @return the value of the key, or null if it is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : null;
+        }
+        int slot = find(key);
+        return slot >= 0 ? (V) values[slot] : null;
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZeroKey : find(key) >= 0;
+    }
+
+    /**
+     * @return the value the key had, or null if it was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0) {
+            V value = zeroValue;
+            hasZeroKey = false;
+            zeroValue = null;
+            return value;
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+        V value = (V) values[slot];
+        shiftBack(slot);
+        size--;
+        return value;
+    }
+
+    /**
+     * Empties {@code hole} by moving back every later entry of its run that may live there, i.e.
+     * whose home slot is not between the hole and the entry's slot.
+     */
+    private void shiftBack(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long key = keys[slot];
+            if (key == 0) {
+                break;
+            }
+            int home = home(key);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = key;
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null; // let the value be collected
+    }
+
+    private void resize(int capacity) {
+        if (keys.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("Map cannot grow beyond " + MAX_CAPACITY + " slots");
+        }
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int slot = home(key);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Removes every entry but keeps the capacity.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+        hasZeroKey = false;
+        zeroValue = null;
+    }
+
+    /**
+     * @return the keys, in no particular order
+     */
+    public long[] keys() {
+        long[] result = new long[size()];
+        int n = 0;
+        if (hasZeroKey) {
+            result[n++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of slots in the table
+     */
+    public int capacity() {
+        return keys.length;
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An open-addressing {@link Map} whose slot array is a memory-mapped file, so a table built once
+ * can be reopened by later processes without loading it. {@link #open} reads a small header and
+ * maps the file. The operating system then faults pages in as lookups touch them.
+ *
+ * The slots are laid out as in {@link OffHeapHashMap}: used flag, hash, key and value bytes through
+ * {@link FixedSizeCodec}s, linear probing, and backward-shift deletion. The file starts with a
+ * header: magic (4 bytes), version (4), key size (4), value size (4), capacity (8), size (8),
+ * load factor (4), dirty flag (4), hash seed (8). The seed is chosen at random when the file is
+ * created, so every file hashes its keys differently.
+ *
+ * Changes go straight into the mapping. They survive a crash of the process, because the
+ * operating system still holds them, but only {@link #force()} makes them durable against a
+ * crash of the machine. The first change after a checkpoint sets the dirty flag, and
+ * {@code force()} clears it again. If {@code open} finds the flag set, the map was not closed
+ * after its last change, so it counts the entries again instead of trusting the stored size.
+ *
+ * When the table must grow, the entries are copied into a new file twice the size
+ * ({@code path + ".resize"}). That file is forced, then renamed over the old one, so a crash
+ * during the resize leaves the old table in place. If the resize fails, {@code put} throws a
+ * RuntimeException and the map keeps its old table.
+ *
+ * Null keys and values are not allowed. The map is not safe for use by several threads or
+ * processes at once.
+ */
+public class MappedHashMap<K, V> extends AbstractSlotMap<K, V> implements AutoCloseable {
+
+    public static final int MAX_SEGMENT_BYTES = MAX_BUFFER_BYTES;
+
+    private static final int MAGIC = 0x484D4150; // "HMAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 4 + 4 + 8;
+    private static final int KEY_SIZE_POSITION = 8;
+    private static final int VALUE_SIZE_POSITION = 12;
+    private static final int CAPACITY_POSITION = 16;
+    private static final int SIZE_POSITION = 24;
+    private static final int LOAD_FACTOR_POSITION = 32;
+    private static final int DIRTY_POSITION = 36;
+    private static final int SEED_POSITION = 40;
+
+    private final Path path;
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private boolean dirty;
+
+    private MappedHashMap(Path path, FixedSizeCodec<K> keyCodec, FixedSizeCodec<V> valueCodec,
+                          float loadFactor, long seed) {
+        super(keyCodec, valueCodec, loadFactor, seed);
+        this.path = path;
+    }
+
+    /**
+     * Creates an empty map in a new file.
+     * @param path the file; anything already in it is lost
+     * @param initialCapacity the number of slots to start with, rounded up to a power of two
+     * @param loadFactor the fraction of slots that may fill before the table doubles; below 1
+     */
+    public static <K, V> MappedHashMap<K, V> create(String path, FixedSizeCodec<K> keyCodec,
+                                                    FixedSizeCodec<V> valueCodec, long initialCapacity,
+                                                    float loadFactor) throws IOException {
+        MappedHashMap<K, V> map = new MappedHashMap<>(Paths.get(path), keyCodec, valueCodec,
+                checkArguments(initialCapacity, loadFactor), ThreadLocalRandom.current().nextLong());
+        Files.deleteIfExists(map.resizePath());
+        map.channel = FileChannel.open(map.path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        map.format(map.channel, Hashing.tableSizeFor(initialCapacity, 2, MAX_CAPACITY));
+        map.force();
+        return map;
+    }
+
+    /**
+     * Opens a file made by {@link #create}. Unless the map was left dirty, this only reads the
+     * header and maps the file.
+     * @throws IOException if the file holds no map, or one made with codecs of other sizes
+     */
+    public static <K, V> MappedHashMap<K, V> open(String path, FixedSizeCodec<K> keyCodec,
+                                                  FixedSizeCodec<V> valueCodec) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a hash map file: too short");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a hash map file: bad magic");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported hash map version " + header.getInt(4));
+            }
+            if (header.getInt(KEY_SIZE_POSITION) != keyCodec.size()
+                    || header.getInt(VALUE_SIZE_POSITION) != valueCodec.size()) {
+                throw new IOException("File holds " + header.getInt(KEY_SIZE_POSITION) + "-byte keys and "
+                        + header.getInt(VALUE_SIZE_POSITION) + "-byte values, the codecs use "
+                        + keyCodec.size() + " and " + valueCodec.size());
+            }
+            long capacity = header.getLong(CAPACITY_POSITION);
+            MappedHashMap<K, V> map = new MappedHashMap<>(Paths.get(path), keyCodec, valueCodec,
+                    header.getFloat(LOAD_FACTOR_POSITION), header.getLong(SEED_POSITION));
+            if (capacity < 2 || capacity > MAX_CAPACITY || Long.bitCount(capacity) != 1
+                    || channel.size() < HEADER_SIZE + capacity * map.slotSize) {
+                throw new IOException("Hash map header does not match the file: capacity " + capacity);
+            }
+            Files.deleteIfExists(map.resizePath()); // left by a crash during a resize
+            map.channel = channel;
+            map.header = header;
+            map.mapSegments(channel, capacity);
+            map.size = header.getLong(SIZE_POSITION);
+            if (header.getInt(DIRTY_POSITION) != 0) {
+                map.size = map.countEntries();
+                map.force();
+            }
+            return map;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Path resizePath() {
+        return Paths.get(path + ".resize");
+    }
+
+    /**
+     * Writes an empty table of the given capacity to the channel and maps it.
+     */
+    private void format(FileChannel channel, long capacity) throws IOException {
+        ByteBuffer image = ByteBuffer.allocate(HEADER_SIZE);
+        image.putInt(MAGIC).putInt(VERSION).putInt(keySize).putInt(valueCodec.size()).putLong(capacity)
+                .putLong(0).putFloat(loadFactor).putInt(1).putLong(seed);
+        image.flip();
+        channel.write(image, 0);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        mapSegments(channel, capacity); // mapping grows the file to its full length, all zero
+        size = 0;
+        dirty = true;
+    }
+
+    private void mapSegments(FileChannel channel, long capacity) throws IOException {
+        int slotsPerSegment = slotsPerBuffer(capacity);
+        MappedByteBuffer[] segments = new MappedByteBuffer[(int) (capacity / slotsPerSegment)];
+        long segmentBytes = (long) slotsPerSegment * slotSize;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * segmentBytes, segmentBytes);
+        }
+        setTable(segments, capacity);
+    }
+
+    /**
+     * Sets the dirty flag before the first change after a checkpoint.
+     */
+    @Override
+    void changing() {
+        if (!dirty) {
+            header.putInt(DIRTY_POSITION, 1);
+            dirty = true;
+        }
+    }
+
+    @Override
+    void sizeChanged() {
+        header.putLong(SIZE_POSITION, size);
+    }
+
+    /**
+     * @throws RuntimeException if growing the table into a new file fails; the map then keeps
+     * its old table
+     */
+    @Override
+    void grow() {
+        try {
+            resize(getCapacity() << 1);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to grow " + path, e);
+        }
+    }
+
+    /**
+     * Copies the entries into a new file of the given capacity and renames it over the old one.
+     */
+    private void resize(long capacity) throws IOException {
+        if (getCapacity() >= MAX_CAPACITY) {
+            throw new IllegalStateException("Map cannot grow beyond " + MAX_CAPACITY + " slots");
+        }
+        ByteBuffer[] oldSegments = buffers;
+        long oldCapacity = getCapacity();
+        MappedByteBuffer oldHeader = header;
+        boolean oldDirty = dirty;
+        FileChannel grown = FileChannel.open(resizePath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            format(grown, capacity);
+            for (ByteBuffer old : oldSegments) {
+                size += copyEntries(old);
+            }
+            force();
+            Files.move(resizePath(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            // Go back to the old table, which the failed resize did not touch.
+            setTable(oldSegments, oldCapacity);
+            header = oldHeader;
+            dirty = oldDirty;
+            size = header.getLong(SIZE_POSITION);
+            grown.close();
+            Files.deleteIfExists(resizePath());
+            throw e;
+        }
+        channel.close();
+        channel = grown;
+    }
+
+    /**
+     * Checkpoint: writes every change to the disk, then clears the dirty flag, so the next
+     * {@link #open} trusts the stored size.
+     */
+    public void force() {
+        checkOpen();
+        for (ByteBuffer segment : buffers) {
+            ((MappedByteBuffer) segment).force();
+        }
+        header.putLong(SIZE_POSITION, size);
+        header.putInt(DIRTY_POSITION, 0);
+        header.force();
+        dirty = false;
+    }
+
+    public float getLoadFactor() {
+        return loadFactor;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Forces the map to disk and closes the file. Calling it again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffers == null) {
+            return;
+        }
+        force();
+        buffers = null;
+        header = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,159 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * An open-addressing {@link Map} whose slots live in direct {@link ByteBuffer}s outside the Java
+ * heap. Keys and values are stored as fixed-size bytes through {@link FixedSizeCodec}s. There is
+ * no entry object per pair, and the collector never has to scan the table, however many entries
+ * it holds.
+ *
+ * Slot layout: used flag (1 byte), hash (4), key ({@code keyCodec.size()}), value
+ * ({@code valueCodec.size()}). The slots are spread over chunks of at most
+ * {@value #MAX_CHUNK_BYTES} bytes, so the table can outgrow the 2 GB limit of one buffer. The
+ * table uses linear probing and a power-of-two capacity, and {@link #remove(Object)} shifts the
+ * rest of the run back, so no tombstones are left. Keys are compared and hashed by their encoded
+ * bytes.
+ *
+ * The memory belongs to the map until {@link #close()}, which frees it at once instead of
+ * waiting for the collector to find the buffers. After that, every method but {@code close()}
+ * throws {@link IllegalStateException}. Old chunks are freed the same way when the table
+ * doubles. {@link #getOffHeapBytes()} and {@link #getHeapBytes()} report both sides of the
+ * footprint.
+ *
+ * Null keys and values are not allowed. {@link #get(Object)} decodes a new value object, and
+ * {@link #keySet()} and {@link #toArray()} decode every entry onto the heap. The map is not safe
+ * for use by several threads at once.
+ */
+public class OffHeapHashMap<K, V> extends AbstractSlotMap<K, V> implements AutoCloseable {
+
+    public static final int MAX_CHUNK_BYTES = MAX_BUFFER_BYTES;
+
+    // sun.misc.Unsafe.invokeCleaner, to free a direct buffer without waiting for the collector.
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    public OffHeapHashMap(FixedSizeCodec<K> keyCodec, FixedSizeCodec<V> valueCodec, int initialCapacity,
+                          float loadFactor) {
+        this(keyCodec, valueCodec, (long) initialCapacity, loadFactor);
+    }
+
+    /**
+     * @param keyCodec a canonical codec for the keys
+     * @param valueCodec a codec for the values
+     * @param initialCapacity the number of slots to start with, rounded up to a power of two
+     * @param loadFactor the fraction of slots that may fill before the table doubles; below 1
+     */
+    public OffHeapHashMap(FixedSizeCodec<K> keyCodec, FixedSizeCodec<V> valueCodec, long initialCapacity,
+                          float loadFactor) {
+        super(keyCodec, valueCodec, checkArguments(initialCapacity, loadFactor), 0);
+        allocate(Hashing.tableSizeFor(initialCapacity, 2, MAX_CAPACITY));
+    }
+
+    /**
+     * Replaces the table with an empty one of the given capacity. If the memory cannot be
+     * allocated, the chunks allocated so far are freed and the old table is left in place.
+     */
+    private void allocate(long capacity) {
+        int slotsPerChunk = slotsPerBuffer(capacity);
+        ByteBuffer[] allocated = new ByteBuffer[(int) (capacity / slotsPerChunk)];
+        try {
+            for (int i = 0; i < allocated.length; i++) {
+                allocated[i] = ByteBuffer.allocateDirect(slotsPerChunk * slotSize);
+            }
+        } catch (OutOfMemoryError | RuntimeException e) {
+            for (ByteBuffer chunk : allocated) {
+                if (chunk != null) {
+                    release(chunk);
+                }
+            }
+            throw e;
+        }
+        setTable(allocated, capacity);
+    }
+
+    /**
+     * Moves every entry into a table twice the size. If it cannot be allocated, the map keeps its
+     * old table and stays usable.
+     */
+    @Override
+    void grow() {
+        if (getCapacity() >= MAX_CAPACITY) {
+            throw new IllegalStateException("Map cannot grow beyond " + MAX_CAPACITY + " slots");
+        }
+        ByteBuffer[] oldChunks = buffers;
+        allocate(getCapacity() << 1);
+        for (ByteBuffer old : oldChunks) {
+            copyEntries(old);
+            release(old);
+        }
+    }
+
+    /**
+     * @return the bytes of direct memory held by the table
+     */
+    public long getOffHeapBytes() {
+        return getCapacity() * slotSize;
+    }
+
+    /**
+     * @return an estimate of the heap the map itself uses: the map, its chunk buffers and its
+     * scratch arrays, but not the codecs. It does not grow with the number of entries.
+     */
+    public long getHeapBytes() {
+        checkOpen();
+        long objectHeader = 16;
+        long bufferObject = 64;
+        return objectHeader + 64 // the map's own fields
+                + objectHeader + (long) buffers.length * (8 + bufferObject)
+                + bufferObject + objectHeader + keySize // scratch
+                + objectHeader + slotSize; // moving
+    }
+
+    /**
+     * Frees the direct memory of the table. Calling it again does nothing.
+     */
+    @Override
+    public void close() {
+        if (buffers == null) {
+            return;
+        }
+        ByteBuffer[] released = buffers;
+        buffers = null;
+        size = 0;
+        for (ByteBuffer chunk : released) {
+            release(chunk);
+        }
+    }
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not available on this JVM: buffers are freed when they are collected.
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Frees a direct buffer now rather than when the collector gets to it. The buffer must not
+     * be used afterwards; the map never hands out views of its chunks, so nothing else can.
+     */
+    private static void release(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Leave it to the collector.
+        }
+    }
+}
@@ -0,0 +1,405 @@
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An open-addressing {@link Map} for high load factors (0.85 to 0.9), where plain linear probing
+ * builds long clusters.
+ *
+ * Every slot stores its probe length: 1 if the entry sits in its home slot, 2 one slot further,
+ * and so on; 0 marks an empty slot. With Robin Hood hashing, an insert that meets an entry
+ * closer to home than itself takes that slot and carries the displaced entry on. Probe lengths
+ * stay short and even, and the entries of a run are ordered by home slot. That lets a lookup
+ * for a missing key stop as soon as it reaches an entry closer to home than the key would be,
+ * instead of scanning to the end of the cluster. {@link #remove(Object)} shifts the rest of the
+ * run back one slot, so no tombstones are left.
+ *
+ * Pass {@code robinHood = false} to get plain linear probing with the same storage, for
+ * comparison. {@link #getMaxProbeLength()} and {@link #getMeanProbeLength()} show how far
+ * lookups walk in either mode.
+ *
+ * Growing the table normally rehashes every entry inside the {@code put} that crosses the load
+ * factor, which stalls that one call on a large map. After
+ * {@link #setIncrementalResize(int)}, a resize only allocates the new table. The old one stays
+ * next to it, and every later operation moves a bounded number of old slots across. Until the
+ * migration finishes, lookups try the new table first and then the old one. The old table is
+ * never reordered: slots before the migration cursor count as moved, and keys removed from the
+ * old part are marked instead of shifted, so its probe runs stay intact.
+ *
+ * Null keys are not allowed.
+ */
+public class RobinHoodHashMap<K, V> implements Map<K, V> {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final Object REMOVED = new Object(); // value of a removed, not yet moved old entry
+
+    private final float loadFactor;
+    private final boolean robinHood;
+
+    private Object[] keys;
+    private Object[] values;
+    private int[] hashes;
+    private int[] probes; // probe length of the entry in each slot, 0 if empty
+    private int mask;
+    private int threshold;
+    private int size;
+
+    private int slotsPerOperation; // old slots moved per operation, 0 to resize all at once
+    private Object[] oldKeys; // the table being migrated from, null when not resizing
+    private Object[] oldValues;
+    private int[] oldHashes;
+    private int[] oldProbes;
+    private int migrated; // old slots before this have been moved
+
+    public RobinHoodHashMap(int initialCapacity, float loadFactor) {
+        this(initialCapacity, loadFactor, true);
+    }
+
+    /**
+     * @param initialCapacity the number of slots to start with, rounded up to a power of two
+     * @param loadFactor the fraction of slots that may fill before the table doubles; below 1
+     * @param robinHood true to displace entries closer to home, false for plain linear probing
+     */
+    public RobinHoodHashMap(int initialCapacity, float loadFactor, boolean robinHood) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + initialCapacity);
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        this.robinHood = robinHood;
+        allocate(Hashing.tableSizeFor(initialCapacity, 2, MAX_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+        probes = new int[capacity];
+        mask = capacity - 1;
+        threshold = Math.min(capacity - 1, (int) (capacity * loadFactor));
+    }
+
+    /**
+     * @return the slot holding the key, or -1
+     */
+    private int find(Object key, int hash) {
+        int slot = hash & mask;
+        for (int probe = 1; ; probe++) {
+            int found = probes[slot];
+            if (found == 0 || (robinHood && found < probe)) {
+                // Robin Hood: the key would have displaced this entry, so it is not further on.
+                return -1;
+            }
+            if (hashes[slot] == hash && keys[slot].equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the slot of the old table still holding the key, or -1
+     */
+    private int findOld(Object key, int hash) {
+        int oldMask = oldKeys.length - 1;
+        int slot = hash & oldMask;
+        for (int probe = 1; ; probe++) {
+            int found = oldProbes[slot];
+            if (found == 0 || (robinHood && found < probe)) {
+                return -1;
+            }
+            if (oldHashes[slot] == hash && oldKeys[slot].equals(key)) {
+                return slot >= migrated && oldValues[slot] != REMOVED ? slot : -1;
+            }
+            slot = (slot + 1) & oldMask;
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        migrate();
+        int hash = Hashing.hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+        if (oldKeys != null && (slot = findOld(key, hash)) >= 0) {
+            oldValues[slot] = value;
+            return;
+        }
+        if (size >= threshold) {
+            resize(keys.length << 1);
+        }
+        insert(key, value, hash);
+        size++;
+    }
+
+    /**
+     * Places an entry that is not in the table yet.
+     */
+    private void insert(Object key, Object value, int hash) {
+        int slot = hash & mask;
+        int probe = 1;
+        while (probes[slot] != 0) {
+            if (robinHood && probes[slot] < probe) {
+                // Take the slot from the entry closer to home and carry that one on instead.
+                Object displacedKey = keys[slot];
+                Object displacedValue = values[slot];
+                int displacedHash = hashes[slot];
+                int displacedProbe = probes[slot];
+                keys[slot] = key;
+                values[slot] = value;
+                hashes[slot] = hash;
+                probes[slot] = probe;
+                key = displacedKey;
+                value = displacedValue;
+                hash = displacedHash;
+                probe = displacedProbe;
+            }
+            slot = (slot + 1) & mask;
+            probe++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        hashes[slot] = hash;
+        probes[slot] = probe;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(K key) {
+        migrate();
+        int hash = Hashing.hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            return (V) values[slot];
+        }
+        if (oldKeys != null && (slot = findOld(key, hash)) >= 0) {
+            return (V) oldValues[slot];
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        migrate();
+        int hash = Hashing.hash(key);
+        return find(key, hash) >= 0 || (oldKeys != null && findOld(key, hash) >= 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(K key) {
+        migrate();
+        int hash = Hashing.hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            V value = (V) values[slot];
+            shiftBack(slot);
+            size--;
+            return value;
+        }
+        if (oldKeys != null && (slot = findOld(key, hash)) >= 0) {
+            V value = (V) oldValues[slot];
+            oldValues[slot] = REMOVED;
+            size--;
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Empties {@code hole} by moving back the later entries of its run that may live there.
+     */
+    private void shiftBack(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int probe = probes[slot];
+            if (probe == 0 || (robinHood && probe == 1)) {
+                // Robin Hood runs are ordered by home slot: an entry at home ends the shift.
+                break;
+            }
+            int distance = (slot - hole) & mask;
+            if (probe > distance) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                hashes[hole] = hashes[slot];
+                probes[hole] = probe - distance;
+                hole = slot;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = null;
+        probes[hole] = 0;
+    }
+
+    private void resize(int capacity) {
+        if (keys.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("Map cannot grow beyond " + MAX_CAPACITY + " slots");
+        }
+        // A migration still running when the new table fills up is finished first.
+        finishResize();
+        oldKeys = keys;
+        oldValues = values;
+        oldHashes = hashes;
+        oldProbes = probes;
+        migrated = 0;
+        allocate(capacity);
+        if (slotsPerOperation == 0) {
+            finishResize();
+        }
+    }
+
+    /**
+     * Moves the next old slots into the new table, if a resize is in progress.
+     */
+    private void migrate() {
+        if (oldKeys != null) {
+            moveOldSlots(slotsPerOperation);
+        }
+    }
+
+    private void finishResize() {
+        if (oldKeys != null) {
+            moveOldSlots(oldKeys.length);
+        }
+    }
+
+    private void moveOldSlots(int count) {
+        int end = (int) Math.min(oldKeys.length, (long) migrated + count);
+        for (int i = migrated; i < end; i++) {
+            if (oldProbes[i] != 0 && oldValues[i] != REMOVED) {
+                insert(oldKeys[i], oldValues[i], oldHashes[i]);
+            }
+        }
+        migrated = end;
+        if (migrated == oldKeys.length) {
+            oldKeys = null;
+            oldValues = null;
+            oldHashes = null;
+            oldProbes = null;
+        }
+    }
+
+    /**
+     * Makes later resizes incremental, or not.
+     * @param slotsPerOperation how many slots of the old table every operation moves into the new
+     *                          one while a resize is in progress; 0 (the default) moves them all
+     *                          in the {@code put} that triggers the resize
+     */
+    public void setIncrementalResize(int slotsPerOperation) {
+        if (slotsPerOperation < 0) {
+            throw new IllegalArgumentException("Slots per operation must not be negative: " + slotsPerOperation);
+        }
+        this.slotsPerOperation = slotsPerOperation;
+        if (slotsPerOperation == 0) {
+            finishResize();
+        }
+    }
+
+    public int getIncrementalResize() {
+        return slotsPerOperation;
+    }
+
+    /**
+     * @return true while entries are still being moved from the old table to the new one
+     */
+    public boolean isResizing() {
+        return oldKeys != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Set<K> keySet() {
+        Set<K> result = new HashSet<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (probes[i] != 0) {
+                result.add((K) keys[i]);
+            }
+        }
+        if (oldKeys != null) {
+            for (int i = migrated; i < oldKeys.length; i++) {
+                if (oldProbes[i] != 0 && oldValues[i] != REMOVED) {
+                    result.add((K) oldKeys[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every entry but keeps the capacity; a resize in progress is dropped.
+     */
+    @Override
+    public void clear() {
+        oldKeys = null;
+        oldValues = null;
+        oldHashes = null;
+        oldProbes = null;
+        Arrays.fill(keys, null);
+        Arrays.fill(values, null);
+        Arrays.fill(probes, 0);
+        size = 0;
+    }
+
+    /**
+     * Finishes a resize in progress.
+     * @return one slot per element of the table: a {@code java.util.Map.Entry} or null if empty
+     */
+    @Override
+    public Object[] toArray() {
+        finishResize();
+        Object[] slots = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (probes[i] != 0) {
+                slots[i] = new AbstractMap.SimpleImmutableEntry<>(keys[i], values[i]);
+            }
+        }
+        return slots;
+    }
+
+    public boolean isRobinHood() {
+        return robinHood;
+    }
+
+    /**
+     * Finishes a resize in progress.
+     * @return the most slots a lookup of a present key examines, 0 if the map is empty
+     */
+    public int getMaxProbeLength() {
+        finishResize();
+        int max = 0;
+        for (int probe : probes) {
+            max = Math.max(max, probe);
+        }
+        return max;
+    }
+
+    /**
+     * Finishes a resize in progress.
+     * @return the average number of slots a lookup of a present key examines, 0 if the map is empty
+     */
+    public double getMeanProbeLength() {
+        finishResize();
+        long total = 0;
+        for (int probe : probes) {
+            total += probe;
+        }
+        return size == 0 ? 0 : (double) total / size;
+    }
+}
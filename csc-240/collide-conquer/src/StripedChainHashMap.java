@@ -0,0 +1,316 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A separate-chaining {@link Map} that many threads can use at once without an outside lock.
+ *
+ * Writers lock one of a fixed number of stripes. Bucket {@code i} belongs to stripe
+ * {@code i % stripes}; the table always has at least as many buckets as there are stripes, and
+ * both are powers of two, so a key keeps its stripe when the table doubles. Readers take no lock:
+ * chain nodes never change their key or successor, so {@link #put} adds new keys at the head and
+ * {@link #remove} copies the nodes in front of the removed one. A reader walking a chain
+ * therefore always sees a complete list.
+ *
+ * Resizing locks every stripe, copies the chains into a table twice the size, and then replaces
+ * each old bucket with a forwarding node. Readers keep going during the resize. One that meets a
+ * forwarding node moves to the new table, so it never misses a write made after the resize.
+ * {@link #size()} is the sum of a {@link LongAdder}, so counting does not make every writer
+ * contend on one field.
+ *
+ * Null keys are not allowed. {@link #keySet()} and {@link #toArray()} are snapshots that may miss
+ * changes made while they run.
+ */
+public class StripedChainHashMap<K, V> implements Map<K, V> {
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final float loadFactor;
+    private final ReentrantLock[] locks;
+    private final LongAdder count = new LongAdder();
+    private volatile AtomicReferenceArray<Node<K, V>> table;
+    private volatile long threshold;
+
+    /**
+     * A chain entry. Only the value changes after it is linked in, and only under the stripe lock.
+     */
+    static class Node<K, V> implements java.util.Map.Entry<K, V> {
+        final int hash;
+        final K key;
+        volatile V value;
+        final Node<K, V> next;
+
+        Node(int hash, K key, V value, Node<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("Use put to change a value");
+        }
+    }
+
+    /**
+     * Put in every bucket of a table that has been copied to {@code table}.
+     */
+    static final class Forward<K, V> extends Node<K, V> {
+        final AtomicReferenceArray<Node<K, V>> table;
+
+        Forward(AtomicReferenceArray<Node<K, V>> table) {
+            super(0, null, null, null);
+            this.table = table;
+        }
+    }
+
+    public StripedChainHashMap(int initialCapacity, float loadFactor) {
+        this(initialCapacity, loadFactor, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param initialCapacity the number of buckets to start with, rounded up to a power of two
+     *                        and to at least {@code stripes}
+     * @param loadFactor the average chain length above which the table doubles
+     * @param stripes the number of locks, rounded up to a power of two; about the number of
+     *                threads expected to write at once
+     */
+    public StripedChainHashMap(int initialCapacity, float loadFactor, int stripes) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + initialCapacity);
+        }
+        if (!(loadFactor > 0)) {
+            throw new IllegalArgumentException("Load factor must be positive: " + loadFactor);
+        }
+        if (stripes < 1 || stripes > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Stripes must be between 1 and " + MAX_CAPACITY + ": " + stripes);
+        }
+        this.loadFactor = loadFactor;
+        this.locks = new ReentrantLock[Hashing.tableSizeFor(stripes, 1, MAX_CAPACITY)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        int capacity = Hashing.tableSizeFor(initialCapacity, locks.length, MAX_CAPACITY);
+        this.table = new AtomicReferenceArray<>(capacity);
+        this.threshold = (long) (capacity * (double) loadFactor);
+    }
+
+    private ReentrantLock lockFor(int hash) {
+        return locks[hash & (locks.length - 1)];
+    }
+
+    /**
+     * @return the node of the key, or null; takes no lock
+     */
+    private Node<K, V> find(Object key, int hash) {
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        while (true) {
+            Node<K, V> node = tab.get(hash & (tab.length() - 1));
+            if (node instanceof Forward) {
+                tab = ((Forward<K, V>) node).table;
+                continue;
+            }
+            for (; node != null; node = node.next) {
+                if (node.hash == hash && node.key.equals(key)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        int hash = Hashing.hash(key);
+        AtomicReferenceArray<Node<K, V>> tab;
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            // Holding the stripe lock means no resize is running, so this is the current table.
+            tab = table;
+            int bucket = hash & (tab.length() - 1);
+            Node<K, V> head = tab.get(bucket);
+            for (Node<K, V> node = head; node != null; node = node.next) {
+                if (node.hash == hash && node.key.equals(key)) {
+                    node.value = value;
+                    return;
+                }
+            }
+            tab.set(bucket, new Node<>(hash, key, value, head));
+            count.increment();
+        } finally {
+            lock.unlock();
+        }
+        if (count.sum() > threshold) {
+            resize(tab);
+        }
+    }
+
+    @Override
+    public V get(K key) {
+        Node<K, V> node = find(key, Hashing.hash(key));
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return find(key, Hashing.hash(key)) != null;
+    }
+
+    @Override
+    public V remove(K key) {
+        int hash = Hashing.hash(key);
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            AtomicReferenceArray<Node<K, V>> tab = table;
+            int bucket = hash & (tab.length() - 1);
+            Node<K, V> head = tab.get(bucket);
+            Node<K, V> found = head;
+            while (found != null && !(found.hash == hash && found.key.equals(key))) {
+                found = found.next;
+            }
+            if (found == null) {
+                return null;
+            }
+            // Copy the nodes in front of the removed one; readers may still be walking the old ones.
+            Node<K, V> chain = found.next;
+            for (Node<K, V> node = head; node != found; node = node.next) {
+                chain = new Node<>(node.hash, node.key, node.value, chain);
+            }
+            tab.set(bucket, chain);
+            count.decrement();
+            return found.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Doubles the table, unless another thread already replaced {@code expected}.
+     */
+    private void resize(AtomicReferenceArray<Node<K, V>> expected) {
+        lockAll();
+        try {
+            AtomicReferenceArray<Node<K, V>> old = table;
+            if (old != expected || count.sum() <= threshold || old.length() >= MAX_CAPACITY) {
+                return;
+            }
+            AtomicReferenceArray<Node<K, V>> grown = new AtomicReferenceArray<>(old.length() << 1);
+            int mask = grown.length() - 1;
+            for (int i = 0; i < old.length(); i++) {
+                for (Node<K, V> node = old.get(i); node != null; node = node.next) {
+                    int bucket = node.hash & mask;
+                    grown.set(bucket, new Node<>(node.hash, node.key, node.value, grown.get(bucket)));
+                }
+            }
+            Forward<K, V> forward = new Forward<>(grown);
+            for (int i = 0; i < old.length(); i++) {
+                old.set(i, forward);
+            }
+            threshold = (long) (grown.length() * (double) loadFactor);
+            table = grown;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, count.sum()));
+    }
+
+    @Override
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<>();
+        for (Object head : toArray()) {
+            for (Node<K, V> node = node(head); node != null; node = node.next) {
+                keys.add(node.key);
+            }
+        }
+        return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<K, V> node(Object head) {
+        return (Node<K, V>) head;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Removes every entry but keeps the capacity. Waits for every writer in progress.
+     */
+    @Override
+    public void clear() {
+        lockAll();
+        try {
+            AtomicReferenceArray<Node<K, V>> tab = table;
+            for (int i = 0; i < tab.length(); i++) {
+                tab.set(i, null);
+            }
+            count.reset();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * @return one element per bucket: the first node of its chain, a {@code java.util.Map.Entry},
+     * or null if the bucket is empty
+     */
+    @Override
+    public Object[] toArray() {
+        AtomicReferenceArray<Node<K, V>> tab = table;
+        Object[] buckets = new Object[tab.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            Node<K, V> head = tab.get(i);
+            if (head instanceof Forward) {
+                // Resized while copying: start over on the new table.
+                tab = ((Forward<K, V>) head).table;
+                buckets = new Object[tab.length()];
+                i = -1;
+                continue;
+            }
+            buckets[i] = head;
+        }
+        return buckets;
+    }
+
+    /**
+     * @return the number of stripe locks
+     */
+    public int getStripes() {
+        return locks.length;
+    }
+}
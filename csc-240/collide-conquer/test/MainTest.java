@@ -104,4 +104,203 @@ public class MainTest {
         assertTrue(afterSeparate.length >= beforeSeparate.length * 2);
         assertTrue(afterAddress.length >= beforeAddress.length * 2);
     }
+
+    @Test
+    void testPrimitiveProbeMapsMatchHashMap() {
+        IntIntProbeHashMap ints = new IntIntProbeHashMap(4, 0.75f, -1);
+        LongObjectProbeHashMap<String> longs = new LongObjectProbeHashMap<>(4, 0.75f);
+        java.util.HashMap<Integer, Integer> expectedInts = new java.util.HashMap<>();
+        java.util.HashMap<Long, String> expectedLongs = new java.util.HashMap<>();
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(200) - 20; // includes 0 and negative keys
+            long longKey = (long) key << 40;
+            if (random.nextInt(3) == 0) {
+                Integer removed = expectedInts.remove(key);
+                assertEquals(removed == null ? -1 : removed, ints.remove(key));
+                assertEquals(expectedLongs.remove(longKey), longs.remove(longKey));
+            } else {
+                ints.put(key, i);
+                expectedInts.put(key, i);
+                longs.put(longKey, "v" + i);
+                expectedLongs.put(longKey, "v" + i);
+            }
+            assertEquals(expectedInts.size(), ints.size());
+            assertEquals(expectedLongs.size(), longs.size());
+        }
+        for (int key = -20; key < 180; key++) {
+            assertEquals(expectedInts.containsKey(key), ints.containsKey(key));
+            assertEquals(expectedInts.getOrDefault(key, -1), ints.get(key));
+            assertEquals(expectedLongs.get((long) key << 40), longs.get((long) key << 40));
+        }
+        assertEquals(expectedInts.size(), ints.keys().length);
+        assertEquals(expectedLongs.size(), longs.keys().length);
+        assertEquals(1, Integer.bitCount(ints.capacity()));
+
+        ints.clear();
+        longs.clear();
+        assertTrue(ints.isEmpty());
+        assertTrue(longs.isEmpty());
+        assertFalse(ints.containsKey(0));
+        assertNull(longs.get(0));
+    }
+
+    @Test
+    void testRobinHoodKeepsProbeLengthsShortAtHighLoad() {
+        RobinHoodHashMap<Integer, Integer> robinHood = new RobinHoodHashMap<>(1 << 12, 0.9f);
+        RobinHoodHashMap<Integer, Integer> linear = new RobinHoodHashMap<>(1 << 12, 0.9f, false);
+        java.util.Random random = new java.util.Random(7);
+        int[] keys = new int[(int) ((1 << 12) * 0.9f)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            robinHood.put(keys[i], i);
+            linear.put(keys[i], i);
+        }
+        assertEquals(1 << 12, robinHood.toArray().length);
+        assertTrue(robinHood.getMaxProbeLength() < linear.getMaxProbeLength());
+        assertEquals(linear.getMeanProbeLength(), robinHood.getMeanProbeLength(), 1e-9);
+
+        for (int i = 0; i < keys.length; i += 2) {
+            assertEquals(i, robinHood.remove(keys[i]));
+            assertEquals(i, linear.remove(keys[i]));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            Integer expected = i % 2 == 0 ? null : i;
+            assertEquals(expected, robinHood.get(keys[i]));
+            assertEquals(expected, linear.get(keys[i]));
+        }
+        assertEquals(keys.length / 2, robinHood.size());
+        assertEquals(linear.keySet(), robinHood.keySet());
+    }
+
+    @Test
+    void testIncrementalResizeConsultsBothTables() {
+        RobinHoodHashMap<String, Integer> map = new RobinHoodHashMap<>(8, 0.75f);
+        map.setIncrementalResize(1);
+        for (int i = 0; i < 6; i++) {
+            map.put("key" + i, i);
+        }
+        assertFalse(map.isResizing());
+
+        map.put("key6", 6); // crosses the load factor: only the new table is allocated
+        assertTrue(map.isResizing());
+        assertEquals(7, map.size());
+        assertEquals(7, map.keySet().size());
+        assertEquals(3, map.remove("key3"));
+        map.put("key0", 100);
+        assertTrue(map.isResizing());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i == 3 ? null : i == 0 ? 100 : i, map.get("key" + i));
+        }
+        assertFalse(map.keySet().contains("key3"));
+
+        for (int i = 0; i < 10 && map.isResizing(); i++) {
+            map.containsKey("key1");
+        }
+        assertFalse(map.isResizing());
+        assertEquals(16, map.toArray().length);
+        assertEquals(6, map.size());
+        assertNull(map.get("key3"));
+        assertEquals(100, map.get("key0"));
+    }
+
+    @Test
+    void testStripedMapKeepsEveryWriteAcrossThreadsAndResizes() throws InterruptedException {
+        StripedChainHashMap<Integer, Integer> map = new StripedChainHashMap<>(1, 0.75f, 4);
+        int threads = 4;
+        int perThread = 5000;
+        java.util.concurrent.ConcurrentLinkedQueue<Throwable> errors = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        map.put(base + i, i);
+                        assertEquals(i, map.get(base + i));
+                    }
+                    for (int i = 0; i < perThread; i += 2) {
+                        assertEquals(i, map.remove(base + i));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue(errors.isEmpty(), String.valueOf(errors.peek()));
+        assertEquals(threads * perThread / 2, map.size());
+        assertEquals(threads * perThread / 2, map.keySet().size());
+        assertTrue(map.toArray().length >= threads * perThread / 2 / 0.75);
+        assertNull(map.get(0));
+        assertEquals(1, map.get(1));
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void testOffHeapMapStoresEntriesThroughCodecsUntilClosed() {
+        OffHeapHashMap<Long, byte[]> map =
+                new OffHeapHashMap<>(FixedSizeCodec.LONG, FixedSizeCodec.bytes(3), 4, 0.75f);
+        for (long key = 0; key < 1000; key++) {
+            map.put(key << 20, new byte[] {(byte) key, 1, 2});
+        }
+        assertEquals(1000, map.size());
+        assertArrayEquals(new byte[] {42, 1, 2}, map.get(42L << 20));
+        assertNull(map.get(42L));
+        for (long key = 0; key < 1000; key += 3) {
+            assertEquals((byte) key, map.remove(key << 20)[0]);
+        }
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(key % 3 != 0, map.containsKey(key << 20));
+        }
+        assertEquals(666, map.keySet().size());
+        assertEquals(map.getCapacity(), map.toArray().length);
+        assertEquals(map.getCapacity() * (1 + 4 + 8 + 3), map.getOffHeapBytes());
+        assertTrue(map.getHeapBytes() < map.getOffHeapBytes());
+
+        map.close();
+        map.close();
+        assertThrows(IllegalStateException.class, () -> map.get(1L));
+        assertThrows(IllegalStateException.class, map::size);
+    }
+
+    @Test
+    void testMappedMapReopensWithItsEntries() throws java.io.IOException {
+        String path = "mapped_map_test.bin";
+        try {
+            MappedHashMap<Integer, Long> map =
+                    MappedHashMap.create(path, FixedSizeCodec.INT, FixedSizeCodec.LONG, 4, 0.75f);
+            for (int key = 0; key < 1000; key++) {
+                map.put(key, key * 10L);
+            }
+            assertTrue(map.getCapacity() >= 1000 / 0.75);
+            map.remove(7);
+            long seed = map.getSeed();
+            map.close();
+
+            map = MappedHashMap.open(path, FixedSizeCodec.INT, FixedSizeCodec.LONG);
+            assertEquals(999, map.size());
+            assertEquals(seed, map.getSeed());
+            assertEquals(0.75f, map.getLoadFactor());
+            assertEquals(420L, map.get(42));
+            assertNull(map.get(7));
+            map.put(7, 70L);
+            map.force();
+            map.put(1000, 10000L); // not checkpointed: the reopen below counts the entries again
+            MappedHashMap<Integer, Long> reopened = MappedHashMap.open(path, FixedSizeCodec.INT, FixedSizeCodec.LONG);
+            assertEquals(1001, reopened.size());
+            assertEquals(70L, reopened.get(7));
+            reopened.close();
+            map.close();
+
+            assertThrows(java.io.IOException.class,
+                    () -> MappedHashMap.open(path, FixedSizeCodec.LONG, FixedSizeCodec.LONG));
+        } finally {
+            new java.io.File(path).delete();
+        }
+    }
 }